@@ -0,0 +1,109 @@
+/* 
+ * NOTICE OF LICENSE
+ * 
+ * This source file is subject to the Open Software License (OSL 3.0) that is 
+ * bundled with this package in the file LICENSE.txt. It is also available 
+ * through the world-wide-web at http://opensource.org/licenses/osl-3.0.php
+ * If you did not receive a copy of the license and are unable to obtain it 
+ * through the world-wide-web, please send an email to pdiffenderfer@gmail.com 
+ * so we can send you a copy immediately. If you use any of this software please
+ * notify me via my website or email, your feedback is much appreciated. 
+ * 
+ * @copyright   Copyright (c) 2011 Magnos Software (http://www.magnos.org)
+ * @license     http://opensource.org/licenses/osl-3.0.php
+ * 				Open Software License (OSL 3.0)
+ */
+
+package org.magnos.util;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the round trip of handing control to another thread and back
+ * through a pair of gates, with parking gates and with adaptive gates. The
+ * benchmark thread opens the ping gate and waits on the pong gate, and a
+ * ponger thread waits on the ping gate and opens the pong gate. Adaptive
+ * gates only spin when there is more than one processor, so this needs to
+ * run on a multi-core machine to measure spinning. Run it with
+ * <code>ant benchmark -Djmh.lib=&lt;directory of the JMH jars&gt;</code>.
+ *
+ * @author Philip Diffenderfer
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+public class GateBenchmark
+{
+
+	// Whether the gates spin and yield before parking.
+	@Param({"false", "true"})
+	public boolean adaptive;
+
+	// The gate opened by the benchmark thread.
+	private Gate<Object> ping;
+
+	// The gate opened by the ponger.
+	private Gate<Object> pong;
+
+	// The thread which answers every ping with a pong.
+	private Thread ponger;
+
+	// Whether the ponger should keep answering.
+	private volatile boolean running;
+
+	@Setup
+	public void setup()
+	{
+		ping = new Gate<Object>(null, adaptive);
+		pong = new Gate<Object>(null, adaptive);
+		running = true;
+		ponger = new Thread() {
+			public void run() {
+				for (;;) {
+					ping.await();
+					if (!running) {
+						return;
+					}
+					ping.close();
+					pong.open();
+				}
+			}
+		};
+		ponger.setDaemon(true);
+		ponger.start();
+	}
+
+	@TearDown
+	public void tearDown() throws InterruptedException
+	{
+		running = false;
+		ping.open();
+		ponger.join();
+	}
+
+	@Benchmark
+	public void handoff()
+	{
+		ping.open();
+		pong.await();
+		pong.close();
+	}
+
+}
@@ -0,0 +1,526 @@
+/* 
+ * NOTICE OF LICENSE
+ * 
+ * This source file is subject to the Open Software License (OSL 3.0) that is 
+ * bundled with this package in the file LICENSE.txt. It is also available 
+ * through the world-wide-web at http://opensource.org/licenses/osl-3.0.php
+ * If you did not receive a copy of the license and are unable to obtain it 
+ * through the world-wide-web, please send an email to pdiffenderfer@gmail.com 
+ * so we can send you a copy immediately. If you use any of this software please
+ * notify me via my website or email, your feedback is much appreciated. 
+ * 
+ * @copyright   Copyright (c) 2011 Magnos Software (http://www.magnos.org)
+ * @license     http://opensource.org/licenses/osl-3.0.php
+ * 				Open Software License (OSL 3.0)
+ */
+
+package org.magnos.util;
+
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free set of objects which uses open addressing. The elements are held
+ * directly in a flat table and collisions are resolved with linear probing, so
+ * there are no nodes to allocate and a lookup scans adjacent slots instead of
+ * chasing pointers. Elements are added by a compare-and-set on an empty slot
+ * and removed by replacing them with a tombstone. Tombstones are never reused,
+ * they are reclaimed when the table is rebuilt. A table is rebuilt when too
+ * many of its slots have been used, during a rebuild every slot is frozen so
+ * readers can continue to read the old table. A writer which runs into a 
+ * frozen slot helps the rebuild instead of waiting for it: it freezes the
+ * remaining slots itself and, once the old table can no longer change, builds
+ * the new table if no other thread has published one yet. A stalled rebuild
+ * never holds up other writers. An element can exist in the set at most once.
+ *
+ * @author Philip Diffenderfer
+ *
+ * @param <E>
+ * 		The element to contain in the set.
+ */
+public class AtomicSet<E> extends AbstractSet<E>
+{
+
+	/**
+	 * A slot value which has been frozen during a rebuild. Once a slot is
+	 * frozen it cannot be changed.
+	 *
+	 * @author Philip Diffenderfer
+	 *
+	 */
+	private static final class Frozen
+	{
+		private final Object value;
+		public Frozen(Object value) {
+			this.value = value;
+		}
+	}
+
+	/**
+	 * A table of slots.
+	 *
+	 * @author Philip Diffenderfer
+	 *
+	 */
+	private static final class Table
+	{
+		private final AtomicReferenceArray<Object> slots;
+		private final int mod;
+		private final int threshold;
+		private final AtomicInteger used = new AtomicInteger();
+		private final AtomicReference<Table> next = new AtomicReference<Table>();
+		public Table(int capacity) {
+			this.slots = new AtomicReferenceArray<Object>(capacity);
+			this.mod = capacity - 1;
+			this.threshold = capacity - (capacity >> 2);
+		}
+	}
+
+	// The value of a slot which held an element that has been removed.
+	private static final Object TOMBSTONE = new Object();
+
+	// Frozen empty and removed slots, these don't need to be allocated.
+	private static final Frozen FROZEN_EMPTY = new Frozen(null);
+	private static final Frozen FROZEN_TOMBSTONE = new Frozen(TOMBSTONE);
+
+	// The results of trying to modify a table.
+	private static final int SUCCESS = 0;
+	private static final int FAILURE = 1;
+	private static final int RETRY = 2;
+
+	// The current table of slots.
+	private final AtomicReference<Table> table;
+
+	// The number of elements in the set.
+	private final LongAdder count = new LongAdder();
+
+
+	/**
+	 * Instantiates an AtomicSet with a table size of 32.
+	 */
+	public AtomicSet()
+	{
+		this(32);
+	}
+
+	/**
+	 * Instantiates an AtomicSet.
+	 *
+	 * @param minTableSize
+	 * 		The minimum size of the initial table. The actual size of the table
+	 * 		will be calculated by finding the next highest power of 2 number.
+	 */
+	public AtomicSet(int minTableSize)
+	{
+		this.table = new AtomicReference<Table>(new Table(powerOf2(Math.max(2, minTableSize))));
+	}
+
+	/**
+	 * Returns a power of 2 number greater than or equal to x.
+	 *
+	 * @param x
+	 * 		The number in question.
+	 * @return
+	 * 		A power of 2 number >= x.
+	 */
+	private static int powerOf2(int x)
+	{
+		return (Integer.highestOneBit(x - 1) << 1);
+	}
+
+	/**
+	 * Spreads the bits of the given hash so that hashes which only differ in
+	 * their upper bits don't all probe from the same slot.
+	 *
+	 * @param h
+	 * 		The hash of the object.
+	 * @return
+	 * 		The spread hash.
+	 */
+	private static int spread(int h)
+	{
+		h ^= (h >>> 16);
+		h *= 0x85ebca6b;
+		h ^= (h >>> 13);
+		h *= 0xc2b2ae35;
+		h ^= (h >>> 16);
+		return h;
+	}
+
+	/**
+	 * Returns the size of the current table.
+	 *
+	 * @return
+	 * 		The size of the current table.
+	 */
+	public int getCapacity()
+	{
+		return table.get().slots.length();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public boolean add(E e)
+	{
+		if (e == null) {
+			return false;
+		}
+		int h = spread(e.hashCode());
+		for (;;) {
+			Table t = table.get();
+			int result = add(t, e, h);
+			if (result == SUCCESS) {
+				count.increment();
+				if (t.used.incrementAndGet() > t.threshold) {
+					rebuild(t);
+				}
+				return true;
+			}
+			if (result == FAILURE) {
+				return false;
+			}
+			rebuild(t);
+		}
+	}
+
+	/**
+	 * Tries to add the element to the given table.
+	 *
+	 * @param t
+	 * 		The table to add to.
+	 * @param e
+	 * 		The element to add.
+	 * @param h
+	 * 		The spread hash of the element.
+	 * @return
+	 * 		SUCCESS if the element was added, FAILURE if it already exists,
+	 * 		and RETRY if the table is being rebuilt or is full.
+	 */
+	private int add(Table t, E e, int h)
+	{
+		int m = t.mod;
+		int i = h & m;
+		for (int probes = 0; probes <= m;) {
+			Object s = t.slots.get(i);
+			if (s == null) {
+				if (t.slots.compareAndSet(i, null, e)) {
+					return SUCCESS;
+				}
+				// Someone claimed the slot first, look at it again.
+				continue;
+			}
+			if (s instanceof Frozen) {
+				return RETRY;
+			}
+			if (s != TOMBSTONE && (s == e || s.equals(e))) {
+				return FAILURE;
+			}
+			i = (i + 1) & m;
+			probes++;
+		}
+		return RETRY;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public boolean contains(Object o)
+	{
+		if (o == null) {
+			return false;
+		}
+		Table t = table.get();
+		int m = t.mod;
+		int i = spread(o.hashCode()) & m;
+		for (int probes = 0; probes <= m; probes++) {
+			Object s = t.slots.get(i);
+			if (s instanceof Frozen) {
+				s = ((Frozen)s).value;
+			}
+			if (s == null) {
+				return false;
+			}
+			if (s != TOMBSTONE && (s == o || s.equals(o))) {
+				return true;
+			}
+			i = (i + 1) & m;
+		}
+		return false;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public boolean remove(Object o)
+	{
+		if (o == null) {
+			return false;
+		}
+		int h = spread(o.hashCode());
+		for (;;) {
+			Table t = table.get();
+			int result = remove(t, o, h);
+			if (result == SUCCESS) {
+				count.decrement();
+				return true;
+			}
+			if (result == FAILURE) {
+				return false;
+			}
+			rebuild(t);
+		}
+	}
+
+	/**
+	 * Tries to remove the object from the given table.
+	 *
+	 * @param t
+	 * 		The table to remove from.
+	 * @param o
+	 * 		The object to remove.
+	 * @param h
+	 * 		The spread hash of the object.
+	 * @return
+	 * 		SUCCESS if the object was removed, FAILURE if it doesn't exist,
+	 * 		and RETRY if the table is being rebuilt.
+	 */
+	private int remove(Table t, Object o, int h)
+	{
+		int m = t.mod;
+		int i = h & m;
+		for (int probes = 0; probes <= m;) {
+			Object s = t.slots.get(i);
+			if (s == null) {
+				return FAILURE;
+			}
+			if (s instanceof Frozen) {
+				return RETRY;
+			}
+			if (s != TOMBSTONE && (s == o || s.equals(o))) {
+				if (t.slots.compareAndSet(i, s, TOMBSTONE)) {
+					return SUCCESS;
+				}
+				// The slot was removed or frozen, look at it again.
+				continue;
+			}
+			i = (i + 1) & m;
+			probes++;
+		}
+		return FAILURE;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void clear()
+	{
+		for (;;) {
+			Table t = table.get();
+			if (clear(t)) {
+				return;
+			}
+			rebuild(t);
+		}
+	}
+
+	/**
+	 * Tries to remove every element from the given table.
+	 *
+	 * @param t
+	 * 		The table to clear.
+	 * @return
+	 * 		True if the table was cleared, false if the table is being rebuilt.
+	 */
+	private boolean clear(Table t)
+	{
+		for (int i = 0; i < t.slots.length(); i++) {
+			Object s = t.slots.get(i);
+			while (s != null && s != TOMBSTONE) {
+				if (s instanceof Frozen) {
+					return false;
+				}
+				if (t.slots.compareAndSet(i, s, TOMBSTONE)) {
+					count.decrement();
+					break;
+				}
+				s = t.slots.get(i);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Rebuilds the given table if it has not already been rebuilt. Any number
+	 * of threads can rebuild the same table at once and none of them waits on
+	 * another. Every slot in the table is frozen, after which the table can't
+	 * change, so any thread can copy the elements into a new table (without
+	 * the tombstones). The first new table published for the old one replaces
+	 * it, and threads which lose that race discard their copy. The new table
+	 * is twice the size of the old one if the elements would take up more 
+	 * than half of the old table.
+	 *
+	 * @param t
+	 * 		The table to rebuild.
+	 */
+	private void rebuild(Table t)
+	{
+		if (table.get() != t) {
+			return;
+		}
+
+		AtomicReferenceArray<Object> slots = t.slots;
+		for (int i = 0; i < slots.length(); i++) {
+			for (;;) {
+				Object s = slots.get(i);
+				if (s instanceof Frozen) {
+					break;
+				}
+				Frozen f = (s == null ? FROZEN_EMPTY : (s == TOMBSTONE ? FROZEN_TOMBSTONE : new Frozen(s)));
+				if (slots.compareAndSet(i, s, f)) {
+					break;
+				}
+			}
+		}
+
+		Table n = t.next.get();
+		if (n == null) {
+			t.next.compareAndSet(null, copy(slots));
+			n = t.next.get();
+		}
+
+		table.compareAndSet(t, n);
+	}
+
+	/**
+	 * Copies the elements of the given frozen slots into a new table.
+	 *
+	 * @param slots
+	 * 		The slots of the table being rebuilt, every slot is frozen.
+	 * @return
+	 * 		The new table.
+	 */
+	private static Table copy(AtomicReferenceArray<Object> slots)
+	{
+		int live = 0;
+		for (int i = 0; i < slots.length(); i++) {
+			Object s = ((Frozen)slots.get(i)).value;
+			if (s != null && s != TOMBSTONE) {
+				live++;
+			}
+		}
+
+		int capacity = slots.length();
+		while ((live << 1) > capacity) {
+			capacity <<= 1;
+		}
+
+		Table n = new Table(capacity);
+		for (int i = 0; i < slots.length(); i++) {
+			Object s = ((Frozen)slots.get(i)).value;
+			if (s != null && s != TOMBSTONE) {
+				int j = spread(s.hashCode()) & n.mod;
+				while (n.slots.get(j) != null) {
+					j = (j + 1) & n.mod;
+				}
+				n.slots.set(j, s);
+			}
+		}
+		n.used.set(live);
+		return n;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int size()
+	{
+		long sum = count.sum();
+		return (int)Math.max(0, Math.min(sum, Integer.MAX_VALUE));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public boolean isEmpty()
+	{
+		return (count.sum() <= 0);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public Iterator<E> iterator()
+	{
+		return new SetIterator(table.get());
+	}
+
+	/**
+	 * An iterator which walks the slots of a table in place. The iterator is
+	 * weakly consistent, if the table is rebuilt while iterating the iterator
+	 * will continue to return the elements of the old table.
+	 *
+	 * @author Philip Diffenderfer
+	 *
+	 */
+	private class SetIterator implements Iterator<E>
+	{
+		// The table being iterated.
+		private final Table t;
+		// The index of the next element's slot.
+		private int index = -1;
+		// The next element to return.
+		private E next;
+		// The last element returned.
+		private E last;
+
+		public SetIterator(Table t) {
+			this.t = t;
+			advance();
+		}
+		@SuppressWarnings("unchecked")
+		private void advance() {
+			next = null;
+			while (next == null && ++index < t.slots.length()) {
+				Object s = t.slots.get(index);
+				if (s instanceof Frozen) {
+					s = ((Frozen)s).value;
+				}
+				if (s != null && s != TOMBSTONE) {
+					next = (E)s;
+				}
+			}
+		}
+		public boolean hasNext() {
+			return (next != null);
+		}
+		public E next() {
+			if (next == null) {
+				throw new NoSuchElementException();
+			}
+			last = next;
+			advance();
+			return last;
+		}
+		public void remove() {
+			if (last == null) {
+				throw new IllegalStateException();
+			}
+			AtomicSet.this.remove(last);
+			last = null;
+		}
+	}
+
+}
@@ -0,0 +1,413 @@
+/* 
+ * NOTICE OF LICENSE
+ * 
+ * This source file is subject to the Open Software License (OSL 3.0) that is 
+ * bundled with this package in the file LICENSE.txt. It is also available 
+ * through the world-wide-web at http://opensource.org/licenses/osl-3.0.php
+ * If you did not receive a copy of the license and are unable to obtain it 
+ * through the world-wide-web, please send an email to pdiffenderfer@gmail.com 
+ * so we can send you a copy immediately. If you use any of this software please
+ * notify me via my website or email, your feedback is much appreciated. 
+ * 
+ * @copyright   Copyright (c) 2011 Magnos Software (http://www.magnos.org)
+ * @license     http://opensource.org/licenses/osl-3.0.php
+ * 				Open Software License (OSL 3.0)
+ */
+
+package org.magnos.util;
+
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A thread safe set of objects which stores the elements of each bucket in a
+ * compact array instead of a chain of nodes. A set holds one array per
+ * non-empty bucket and a small fixed number of locks, so there are no per
+ * element nodes and no per bucket sentinels, which greatly reduces the number
+ * of objects a churning set creates and makes scanning a bucket sequential.
+ * A bucket's array is never modified once it's published, a writer copies the
+ * array with the change while holding the bucket's lock and then replaces it,
+ * so lookups and iteration never lock. Buckets are expected to hold only a
+ * few elements, adding to or removing from a bucket copies its array.
+ * Once a set has been created its internal table cannot and will not change
+ * size. No matter the minimum table size given to the constructor the
+ * internal table size of the set will always be a power of 2.
+ *
+ * @author Philip Diffenderfer
+ *
+ * @param <E>
+ * 		The element to contain in the set.
+ */
+public class CompactConcurrentSet<E> extends AbstractSet<E>
+{
+
+	// The array of elements in each bucket, or null if a bucket is empty.
+	private final AtomicReferenceArray<Object[]> buckets;
+
+	// A value used to calculate the index of an object on the table given
+	// its hashCode. This is essentially the size of the table - 1.
+	private final int mod;
+
+	// The locks which guard the buckets.
+	private final Object[] locks;
+
+	// A value used to calculate the index of a bucket's lock given the index
+	// of the bucket. This is essentially locks.length - 1.
+	private final int lockMod;
+
+	// The number of elements in the set.
+	private final LongAdder count = new LongAdder();
+
+
+	/**
+	 * Instantiates a CompactConcurrentSet with a table size of 32 and 16 locks.
+	 */
+	public CompactConcurrentSet()
+	{
+		this(32, 16);
+	}
+
+	/**
+	 * Instantiates a CompactConcurrentSet with 16 locks.
+	 *
+	 * @param minTableSize
+	 * 		The minimum size of the internal hash table. The actual size of the
+	 * 		internal hash table will be calculated by finding the next highest
+	 * 		power of 2 number.
+	 */
+	public CompactConcurrentSet(int minTableSize)
+	{
+		this(minTableSize, 16);
+	}
+
+	/**
+	 * Instantiates a CompactConcurrentSet.
+	 *
+	 * @param minTableSize
+	 * 		The minimum size of the internal hash table. The actual size of the
+	 * 		internal hash table will be calculated by finding the next highest
+	 * 		power of 2 number.
+	 * @param concurrency
+	 * 		The minimum number of locks which guard the buckets. The actual
+	 * 		number of locks will be the next highest power of 2 number, and is
+	 * 		never more than the size of the table.
+	 */
+	public CompactConcurrentSet(int minTableSize, int concurrency)
+	{
+		int capacity = powerOf2(minTableSize);
+		this.buckets = new AtomicReferenceArray<Object[]>(capacity);
+		this.mod = capacity - 1;
+		this.locks = new Object[Math.min(capacity, powerOf2(concurrency))];
+		this.lockMod = locks.length - 1;
+		for (int i = 0; i < locks.length; i++) {
+			locks[i] = new Object();
+		}
+	}
+
+	/**
+	 * Returns a power of 2 number greater than or equal to x.
+	 *
+	 * @param x
+	 * 		The number in question.
+	 * @return
+	 * 		A power of 2 number >= x.
+	 */
+	private static int powerOf2(int x)
+	{
+		return (x <= 1 ? 1 : Integer.highestOneBit(x - 1) << 1);
+	}
+
+	/**
+	 * Returns the index in the table an object should go with the given hash.
+	 *
+	 * @param hash
+	 * 		The hash of the object.
+	 * @return
+	 * 		The index in the table.
+	 */
+	private int index(int hash)
+	{
+		return (hash & mod);
+	}
+
+	/**
+	 * Returns the lock which guards the bucket at the given index.
+	 *
+	 * @param i
+	 * 		The index of the bucket in the table.
+	 * @return
+	 * 		The lock of the bucket.
+	 */
+	private Object lock(int i)
+	{
+		return locks[i & lockMod];
+	}
+
+	/**
+	 * Returns the size of the internal hash table.
+	 *
+	 * @return
+	 * 		The size of the internal hash table.
+	 */
+	public int getCapacity()
+	{
+		return buckets.length();
+	}
+
+	/**
+	 * Returns the number of locks which guard the buckets.
+	 *
+	 * @return
+	 * 		The number of locks which guard the buckets.
+	 */
+	public int getConcurrency()
+	{
+		return locks.length;
+	}
+
+	/**
+	 * Returns the index of the given object in the given bucket array.
+	 *
+	 * @param bucket
+	 * 		The array of elements in a bucket, may be null.
+	 * @param o
+	 * 		The object to search for.
+	 * @return
+	 * 		The index of the object or -1 if it isn't in the bucket.
+	 */
+	private static int indexOf(Object[] bucket, Object o)
+	{
+		if (bucket != null) {
+			for (int j = 0; j < bucket.length; j++) {
+				if (bucket[j] == o || bucket[j].equals(o)) {
+					return j;
+				}
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Adds the given element to the set if an equivalent element does not
+	 * already exist.
+	 *
+	 * @param e
+	 * 		The element to add.
+	 * @return
+	 * 		True if the element was added, false if it already exists.
+	 */
+	@Override
+	public boolean add(E e)
+	{
+		if (e == null) {
+			return false;
+		}
+		int i = index(e.hashCode());
+		synchronized (lock(i)) {
+			Object[] bucket = buckets.get(i);
+			if (indexOf(bucket, e) != -1) {
+				return false;
+			}
+			Object[] next;
+			if (bucket == null) {
+				next = new Object[] {e};
+			}
+			else {
+				next = new Object[bucket.length + 1];
+				System.arraycopy(bucket, 0, next, 0, bucket.length);
+				next[bucket.length] = e;
+			}
+			buckets.set(i, next);
+		}
+		count.increment();
+		return true;
+	}
+
+	/**
+	 * Returns whether the given object is in this set. The bucket the object
+	 * would be in is scanned without locking.
+	 *
+	 * @param o
+	 * 		The object to search for.
+	 * @return
+	 * 		True if an equivalent element is in the set, otherwise false.
+	 */
+	@Override
+	public boolean contains(Object o)
+	{
+		return (o != null && indexOf(buckets.get(index(o.hashCode())), o) != -1);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public boolean remove(Object o)
+	{
+		if (o == null) {
+			return false;
+		}
+		int i = index(o.hashCode());
+		synchronized (lock(i)) {
+			Object[] bucket = buckets.get(i);
+			int j = indexOf(bucket, o);
+			if (j == -1) {
+				return false;
+			}
+			buckets.set(i, without(bucket, j));
+		}
+		count.decrement();
+		return true;
+	}
+
+	/**
+	 * Removes the given element from the bucket at the given index if it's
+	 * the exact element in the bucket.
+	 *
+	 * @param i
+	 * 		The index of the bucket in the table.
+	 * @param e
+	 * 		The element to remove.
+	 */
+	private void remove(int i, Object e)
+	{
+		synchronized (lock(i)) {
+			Object[] bucket = buckets.get(i);
+			if (bucket != null) {
+				for (int j = 0; j < bucket.length; j++) {
+					if (bucket[j] == e) {
+						buckets.set(i, without(bucket, j));
+						count.decrement();
+						return;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns a copy of the given bucket array without the element at the
+	 * given index, or null if the bucket would be empty.
+	 *
+	 * @param bucket
+	 * 		The array of elements in a bucket.
+	 * @param j
+	 * 		The index of the element to leave out.
+	 * @return
+	 * 		The new array of elements in the bucket.
+	 */
+	private static Object[] without(Object[] bucket, int j)
+	{
+		if (bucket.length == 1) {
+			return null;
+		}
+		Object[] next = new Object[bucket.length - 1];
+		System.arraycopy(bucket, 0, next, 0, j);
+		System.arraycopy(bucket, j + 1, next, j, next.length - j);
+		return next;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void clear()
+	{
+		for (int i = 0; i < buckets.length(); i++) {
+			synchronized (lock(i)) {
+				Object[] bucket = buckets.get(i);
+				if (bucket != null) {
+					buckets.set(i, null);
+					count.add(-bucket.length);
+				}
+			}
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int size()
+	{
+		long sum = count.sum();
+		return (int)Math.max(0, Math.min(sum, Integer.MAX_VALUE));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public boolean isEmpty()
+	{
+		return (count.sum() <= 0);
+	}
+
+	/**
+	 * Returns an iterator over the elements of this set. Each bucket is seen
+	 * as it was when the iterator reached it, so the iterator is weakly
+	 * consistent and never locks.
+	 *
+	 * @return
+	 * 		A new iterator over the elements.
+	 */
+	@Override
+	public Iterator<E> iterator()
+	{
+		return new SetIterator();
+	}
+
+	/**
+	 * An iterator which scans the arrays of the buckets in place.
+	 *
+	 * @author Philip Diffenderfer
+	 *
+	 */
+	private class SetIterator implements Iterator<E>
+	{
+		// The index of the bucket being scanned.
+		private int index = -1;
+		// The array of the bucket being scanned.
+		private Object[] bucket;
+		// The index of the next element in the bucket.
+		private int next;
+		// The index of the bucket the last element returned is in.
+		private int lastIndex;
+		// The last element returned.
+		private Object last;
+
+		public SetIterator() {
+			advance();
+		}
+		private void advance() {
+			while ((bucket == null || next >= bucket.length) && ++index < buckets.length()) {
+				bucket = buckets.get(index);
+				next = 0;
+			}
+		}
+		public boolean hasNext() {
+			return (index < buckets.length());
+		}
+		@SuppressWarnings("unchecked")
+		public E next() {
+			if (index >= buckets.length()) {
+				throw new NoSuchElementException();
+			}
+			last = bucket[next++];
+			lastIndex = index;
+			advance();
+			return (E)last;
+		}
+		public void remove() {
+			if (last == null) {
+				throw new IllegalStateException();
+			}
+			CompactConcurrentSet.this.remove(lastIndex, last);
+			last = null;
+		}
+	}
+
+}
@@ -0,0 +1,424 @@
+/* 
+ * NOTICE OF LICENSE
+ * 
+ * This source file is subject to the Open Software License (OSL 3.0) that is 
+ * bundled with this package in the file LICENSE.txt. It is also available 
+ * through the world-wide-web at http://opensource.org/licenses/osl-3.0.php
+ * If you did not receive a copy of the license and are unable to obtain it 
+ * through the world-wide-web, please send an email to pdiffenderfer@gmail.com 
+ * so we can send you a copy immediately. If you use any of this software please
+ * notify me via my website or email, your feedback is much appreciated. 
+ * 
+ * @copyright   Copyright (c) 2011 Magnos Software (http://www.magnos.org)
+ * @license     http://opensource.org/licenses/osl-3.0.php
+ * 				Open Software License (OSL 3.0)
+ */
+
+package org.magnos.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A thread safe set of non-negative integers stored as bits, which is far
+ * smaller and faster than a set of Integers when the integers are dense ids
+ * in a range starting near 0. Checking whether an integer is in the set is a
+ * single read of the word that holds its bit, and setting or clearing a bit
+ * is a compare-and-set of that word, so no operation ever locks except when
+ * the set grows. The bits are stored in fixed size pages held by a directory,
+ * a growable set grows by copying the directory to a larger one with new
+ * pages, the existing pages are never copied so a bit set during growth is
+ * never lost. Bulk operations with another set are applied one word at a time
+ * and are not atomic as a whole.
+ *
+ * @author Philip Diffenderfer
+ *
+ */
+public class ConcurrentBitSet
+{
+
+	// The number of words in a page as a power of 2.
+	private static final int PAGE_SHIFT = 6;
+
+	// The number of words in a page.
+	private static final int PAGE_WORDS = 1 << PAGE_SHIFT;
+
+	// The number of bits in a page.
+	private static final int PAGE_BITS = PAGE_WORDS << 6;
+
+	// The pages of bits.
+	private volatile AtomicLongArray[] pages;
+
+	// Whether the set grows when a bit past its capacity is set.
+	private final boolean growable;
+
+	// The lock held while growing the set.
+	private final Object growLock = new Object();
+
+
+	/**
+	 * Instantiates a growable ConcurrentBitSet with room for 4096 bits.
+	 */
+	public ConcurrentBitSet()
+	{
+		this(PAGE_BITS, true);
+	}
+
+	/**
+	 * Instantiates a ConcurrentBitSet.
+	 *
+	 * @param capacity
+	 * 		The minimum number of bits the set can hold, the actual capacity
+	 * 		is rounded up to a whole number of pages.
+	 * @param growable
+	 * 		Whether the set grows when a bit past its capacity is set, if not
+	 * 		setting such a bit throws an IndexOutOfBoundsException.
+	 */
+	public ConcurrentBitSet(int capacity, boolean growable)
+	{
+		if (capacity < 0) {
+			throw new IllegalArgumentException("capacity must be >= 0");
+		}
+		this.growable = growable;
+		this.pages = newPages(new AtomicLongArray[0], pagesFor(capacity));
+	}
+
+	/**
+	 * Returns the number of pages needed to hold the given number of bits.
+	 *
+	 * @param bits
+	 * 		The number of bits.
+	 * @return
+	 * 		The number of pages needed.
+	 */
+	private static int pagesFor(long bits)
+	{
+		return (int)((bits + PAGE_BITS - 1) / PAGE_BITS);
+	}
+
+	/**
+	 * Returns a directory of the given size which holds the given pages
+	 * followed by new empty pages.
+	 *
+	 * @param existing
+	 * 		The pages to keep.
+	 * @param count
+	 * 		The number of pages in the new directory.
+	 * @return
+	 * 		The new directory of pages.
+	 */
+	private static AtomicLongArray[] newPages(AtomicLongArray[] existing, int count)
+	{
+		AtomicLongArray[] next = new AtomicLongArray[count];
+		System.arraycopy(existing, 0, next, 0, existing.length);
+		for (int i = existing.length; i < count; i++) {
+			next[i] = new AtomicLongArray(PAGE_WORDS);
+		}
+		return next;
+	}
+
+	/**
+	 * Returns the number of bits the set can hold without growing.
+	 *
+	 * @return
+	 * 		The capacity of the set in bits.
+	 */
+	public int getCapacity()
+	{
+		return (int)Math.min((long)pages.length * PAGE_BITS, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Returns whether the set grows when a bit past its capacity is set.
+	 *
+	 * @return
+	 * 		True if the set is growable, otherwise false.
+	 */
+	public boolean isGrowable()
+	{
+		return growable;
+	}
+
+	/**
+	 * Grows the set so it can hold at least the given number of bits. The
+	 * number of pages is at least doubled so repeated growth is amortized.
+	 *
+	 * @param capacity
+	 * 		The minimum number of bits the set should hold.
+	 * @return
+	 * 		The directory of pages after growing.
+	 */
+	private AtomicLongArray[] grow(long capacity)
+	{
+		synchronized (growLock) {
+			AtomicLongArray[] current = pages;
+			int needed = pagesFor(capacity);
+			if (needed > current.length) {
+				long doubled = Math.min((long)current.length * 2, pagesFor((long)Integer.MAX_VALUE + 1));
+				current = newPages(current, (int)Math.max(needed, doubled));
+				pages = current;
+			}
+			return current;
+		}
+	}
+
+	/**
+	 * Returns the page which holds the given bit, growing the set if needed.
+	 *
+	 * @param bit
+	 * 		The index of the bit.
+	 * @return
+	 * 		The page which holds the bit.
+	 * @throws IndexOutOfBoundsException
+	 * 		The bit is negative, or the bit is past the capacity of a set which
+	 * 		is not growable.
+	 */
+	private AtomicLongArray pageFor(int bit)
+	{
+		if (bit < 0) {
+			throw new IndexOutOfBoundsException("bit < 0: " + bit);
+		}
+		AtomicLongArray[] current = pages;
+		int page = bit >>> (PAGE_SHIFT + 6);
+		if (page >= current.length) {
+			if (!growable) {
+				throw new IndexOutOfBoundsException("bit >= capacity: " + bit);
+			}
+			current = grow((long)bit + 1);
+		}
+		return current[page];
+	}
+
+	/**
+	 * Returns the index of the word in its page which holds the given bit.
+	 *
+	 * @param bit
+	 * 		The index of the bit.
+	 * @return
+	 * 		The index of the word in its page.
+	 */
+	private static int wordOf(int bit)
+	{
+		return (bit >>> 6) & (PAGE_WORDS - 1);
+	}
+
+	/**
+	 * Sets the given bit.
+	 *
+	 * @param bit
+	 * 		The index of the bit to set.
+	 * @return
+	 * 		True if the bit was changed, false if it was already set.
+	 * @throws IndexOutOfBoundsException
+	 * 		The bit is negative, or the bit is past the capacity of a set which
+	 * 		is not growable.
+	 */
+	public boolean set(int bit)
+	{
+		AtomicLongArray page = pageFor(bit);
+		int w = wordOf(bit);
+		long flag = 1L << bit;
+		long current;
+		do {
+			current = page.get(w);
+			if ((current & flag) != 0) {
+				return false;
+			}
+		} while (!page.compareAndSet(w, current, current | flag));
+		return true;
+	}
+
+	/**
+	 * Clears the given bit.
+	 *
+	 * @param bit
+	 * 		The index of the bit to clear.
+	 * @return
+	 * 		True if the bit was changed, false if it was already clear.
+	 */
+	public boolean clear(int bit)
+	{
+		AtomicLongArray[] current = pages;
+		int page = bit >>> (PAGE_SHIFT + 6);
+		if (bit < 0 || page >= current.length) {
+			return false;
+		}
+		int w = wordOf(bit);
+		long flag = 1L << bit;
+		long word;
+		do {
+			word = current[page].get(w);
+			if ((word & flag) == 0) {
+				return false;
+			}
+		} while (!current[page].compareAndSet(w, word, word & ~flag));
+		return true;
+	}
+
+	/**
+	 * Returns whether the given bit is set.
+	 *
+	 * @param bit
+	 * 		The index of the bit.
+	 * @return
+	 * 		True if the bit is set, otherwise false.
+	 */
+	public boolean get(int bit)
+	{
+		AtomicLongArray[] current = pages;
+		int page = bit >>> (PAGE_SHIFT + 6);
+		return (bit >= 0 && page < current.length && (current[page].get(wordOf(bit)) & (1L << bit)) != 0);
+	}
+
+	/**
+	 * Returns the index of the first set bit at or after the given bit.
+	 *
+	 * @param from
+	 * 		The index of the bit to start searching at.
+	 * @return
+	 * 		The index of the next set bit, or -1 if there are none.
+	 */
+	public int nextSetBit(int from)
+	{
+		if (from < 0) {
+			throw new IndexOutOfBoundsException("from < 0: " + from);
+		}
+		AtomicLongArray[] current = pages;
+		int page = from >>> (PAGE_SHIFT + 6);
+		int w = wordOf(from);
+		long mask = -1L << from;
+		while (page < current.length) {
+			long word = current[page].get(w) & mask;
+			if (word != 0) {
+				return (((page << PAGE_SHIFT) + w) << 6) + Long.numberOfTrailingZeros(word);
+			}
+			mask = -1L;
+			if (++w == PAGE_WORDS) {
+				w = 0;
+				page++;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the number of set bits. If the set is being modified the value
+	 * returned is only an estimate.
+	 *
+	 * @return
+	 * 		The number of set bits.
+	 */
+	public int cardinality()
+	{
+		AtomicLongArray[] current = pages;
+		int count = 0;
+		for (int p = 0; p < current.length; p++) {
+			for (int w = 0; w < PAGE_WORDS; w++) {
+				count += Long.bitCount(current[p].get(w));
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Returns whether no bits are set.
+	 *
+	 * @return
+	 * 		True if no bits are set, otherwise false.
+	 */
+	public boolean isEmpty()
+	{
+		return (nextSetBit(0) == -1);
+	}
+
+	/**
+	 * Clears every bit in the set. Words are cleared one at a time so bits
+	 * set during a clear may remain.
+	 */
+	public void clear()
+	{
+		AtomicLongArray[] current = pages;
+		for (int p = 0; p < current.length; p++) {
+			for (int w = 0; w < PAGE_WORDS; w++) {
+				current[p].set(w, 0L);
+			}
+		}
+	}
+
+	/**
+	 * Sets every bit which is set in the given set. A growable set grows to
+	 * hold the bits of the given set.
+	 *
+	 * @param other
+	 * 		The set of bits to set.
+	 * @throws IndexOutOfBoundsException
+	 * 		A bit past the capacity of a set which is not growable is set in
+	 * 		the given set.
+	 */
+	public void or(ConcurrentBitSet other)
+	{
+		AtomicLongArray[] theirs = other.pages;
+		AtomicLongArray[] ours = pages;
+		if (growable && theirs.length > ours.length) {
+			ours = grow((long)theirs.length * PAGE_BITS);
+		}
+		for (int p = 0; p < theirs.length; p++) {
+			for (int w = 0; w < PAGE_WORDS; w++) {
+				long bits = theirs[p].get(w);
+				if (bits == 0) {
+					continue;
+				}
+				if (p >= ours.length) {
+					throw new IndexOutOfBoundsException("bit >= capacity: " + (((p << PAGE_SHIFT) + w) << 6));
+				}
+				long word;
+				do {
+					word = ours[p].get(w);
+				} while ((word | bits) != word && !ours[p].compareAndSet(w, word, word | bits));
+			}
+		}
+	}
+
+	/**
+	 * Clears every bit which is not set in the given set.
+	 *
+	 * @param other
+	 * 		The set of bits to keep.
+	 */
+	public void and(ConcurrentBitSet other)
+	{
+		AtomicLongArray[] theirs = other.pages;
+		AtomicLongArray[] ours = pages;
+		for (int p = 0; p < ours.length; p++) {
+			for (int w = 0; w < PAGE_WORDS; w++) {
+				long bits = (p < theirs.length ? theirs[p].get(w) : 0L);
+				long word;
+				do {
+					word = ours[p].get(w);
+				} while ((word & bits) != word && !ours[p].compareAndSet(w, word, word & bits));
+			}
+		}
+	}
+
+	/**
+	 * Clears every bit which is set in the given set.
+	 *
+	 * @param other
+	 * 		The set of bits to clear.
+	 */
+	public void andNot(ConcurrentBitSet other)
+	{
+		AtomicLongArray[] theirs = other.pages;
+		AtomicLongArray[] ours = pages;
+		int count = Math.min(ours.length, theirs.length);
+		for (int p = 0; p < count; p++) {
+			for (int w = 0; w < PAGE_WORDS; w++) {
+				long bits = theirs[p].get(w);
+				long word;
+				do {
+					word = ours[p].get(w);
+				} while ((word & bits) != 0 && !ours[p].compareAndSet(w, word, word & ~bits));
+			}
+		}
+	}
+
+}
@@ -0,0 +1,488 @@
+/* 
+ * NOTICE OF LICENSE
+ * 
+ * This source file is subject to the Open Software License (OSL 3.0) that is 
+ * bundled with this package in the file LICENSE.txt. It is also available 
+ * through the world-wide-web at http://opensource.org/licenses/osl-3.0.php
+ * If you did not receive a copy of the license and are unable to obtain it 
+ * through the world-wide-web, please send an email to pdiffenderfer@gmail.com 
+ * so we can send you a copy immediately. If you use any of this software please
+ * notify me via my website or email, your feedback is much appreciated. 
+ * 
+ * @copyright   Copyright (c) 2011 Magnos Software (http://www.magnos.org)
+ * @license     http://opensource.org/licenses/osl-3.0.php
+ * 				Open Software License (OSL 3.0)
+ */
+
+package org.magnos.util;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Array;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A thread safe set of objects which compares elements by identity instead of
+ * with equals and hashCode, which makes it well suited for registries of
+ * listeners, connections, and other handles. Like the ConcurrentSet only the
+ * chain an element exists on is synchronized when modifying the set, and
+ * lookups walk a chain without locking at all. A set can optionally hold its
+ * elements weakly, in which case an element which is no longer referenced
+ * anywhere else is removed from the set once it has been garbage collected.
+ * Collected elements are removed from their chains whenever the set is
+ * modified, so the size of a weak set may include elements which have been
+ * collected and not yet removed.
+ *
+ * @author Philip Diffenderfer
+ *
+ * @param <E>
+ * 		The element to contain in the set.
+ */
+public class ConcurrentIdentitySet<E> extends AbstractSet<E>
+{
+
+	/**
+	 * A node on a chain that holds an element and a pointer.
+	 *
+	 * @author Philip Diffenderfer
+	 *
+	 */
+	private interface Node<T>
+	{
+		public T element();
+		public Node<T> getNext();
+		public void setNext(Node<T> next);
+		public void clear();
+	}
+
+	/**
+	 * A node that holds its element strongly, used by sets which hold their
+	 * elements strongly and for the heads of the chains.
+	 *
+	 * @author Philip Diffenderfer
+	 *
+	 */
+	private static class StrongNode<T> implements Node<T>
+	{
+		private final T element;
+		private volatile Node<T> next;
+		public StrongNode(T element, Node<T> next) {
+			this.element = element;
+			this.next = next;
+		}
+		public T element() {
+			return element;
+		}
+		public Node<T> getNext() {
+			return next;
+		}
+		public void setNext(Node<T> next) {
+			this.next = next;
+		}
+		public void clear() {
+		}
+	}
+
+	/**
+	 * A node that holds its element weakly along with the identity hash of
+	 * the element, so the node can be found on its chain once the element is
+	 * collected and the node is placed on the queue.
+	 *
+	 * @author Philip Diffenderfer
+	 *
+	 */
+	private static class WeakNode<T> extends WeakReference<T> implements Node<T>
+	{
+		private final int hash;
+		private volatile Node<T> next;
+		public WeakNode(T element, int hash, Node<T> next, ReferenceQueue<? super T> queue) {
+			super(element, queue);
+			this.hash = hash;
+			this.next = next;
+		}
+		public T element() {
+			return get();
+		}
+		public Node<T> getNext() {
+			return next;
+		}
+		public void setNext(Node<T> next) {
+			this.next = next;
+		}
+	}
+
+	// The table of nodes.
+	private final Node<E>[] table;
+
+	// A value used to calculate the index of an object on the table given
+	// its identity hash. This is essentially the size of the table - 1.
+	private final int mod;
+
+	// The queue collected elements are placed on, or null if the set holds
+	// its elements strongly.
+	private final ReferenceQueue<E> queue;
+
+	// The number of elements in the set.
+	private final LongAdder count = new LongAdder();
+
+
+	/**
+	 * Instantiates a ConcurrentIdentitySet which holds its elements strongly
+	 * with a table size of 32.
+	 */
+	public ConcurrentIdentitySet()
+	{
+		this(false, 32);
+	}
+
+	/**
+	 * Instantiates a ConcurrentIdentitySet with a table size of 32.
+	 *
+	 * @param weak
+	 * 		Whether the set should hold its elements weakly.
+	 */
+	public ConcurrentIdentitySet(boolean weak)
+	{
+		this(weak, 32);
+	}
+
+	/**
+	 * Instantiates a ConcurrentIdentitySet.
+	 *
+	 * @param weak
+	 * 		Whether the set should hold its elements weakly.
+	 * @param minTableSize
+	 * 		The minimum size of the internal hash table. The actual size of the
+	 * 		internal hash table will be calculated by finding the next highest
+	 * 		power of 2 number.
+	 */
+	@SuppressWarnings("unchecked")
+	public ConcurrentIdentitySet(boolean weak, int minTableSize)
+	{
+		int capacity = (minTableSize <= 1 ? 1 : Integer.highestOneBit(minTableSize - 1) << 1);
+		this.queue = (weak ? new ReferenceQueue<E>() : null);
+		this.mod = capacity - 1;
+		this.table = (Node<E>[])Array.newInstance(Node.class, capacity);
+		for (int i = 0; i < capacity; i++) {
+			table[i] = new StrongNode<E>(null, null);
+		}
+	}
+
+	/**
+	 * Returns the identity hash of the given object. The identity hash is
+	 * spread so the lower bits used to pick a chain are well distributed.
+	 *
+	 * @param o
+	 * 		The object to hash.
+	 * @return
+	 * 		The hash of the object.
+	 */
+	private static int hash(Object o)
+	{
+		int h = System.identityHashCode(o);
+		return h ^ (h >>> 16);
+	}
+
+	/**
+	 * Returns the index in the table an object should go with the given hash.
+	 *
+	 * @param hash
+	 * 		The hash of the object.
+	 * @return
+	 * 		The index in the table.
+	 */
+	private int index(int hash)
+	{
+		return (hash & mod);
+	}
+
+	/**
+	 * Returns the size of the internal hash table.
+	 *
+	 * @return
+	 * 		The size of the internal hash table.
+	 */
+	public int getCapacity()
+	{
+		return table.length;
+	}
+
+	/**
+	 * Returns whether this set holds its elements weakly.
+	 *
+	 * @return
+	 * 		True if the set holds its elements weakly, otherwise false.
+	 */
+	public boolean isWeak()
+	{
+		return (queue != null);
+	}
+
+	/**
+	 * Adds the given element to the set if the same instance is not already
+	 * in the set.
+	 *
+	 * @param e
+	 * 		The element to add.
+	 * @return
+	 * 		True if the element was added, false if it already exists.
+	 */
+	@Override
+	public boolean add(E e)
+	{
+		if (e == null) {
+			return false;
+		}
+		expunge();
+		int hash = hash(e);
+		int i = index(hash);
+		synchronized (table[i]) {
+			if (find(i, e) != null) {
+				return false;
+			}
+			Node<E> next = table[i].getNext();
+			table[i].setNext(queue == null ? new StrongNode<E>(e, next) : new WeakNode<E>(e, hash, next, queue));
+		}
+		count.increment();
+		return true;
+	}
+
+	/**
+	 * Returns the node on the chain at the given index of the table which
+	 * holds the given object.
+	 *
+	 * @param i
+	 * 		The index of the chain in the table.
+	 * @param o
+	 * 		The object to search for.
+	 * @return
+	 * 		The node found or null if none exist.
+	 */
+	private Node<E> find(int i, Object o)
+	{
+		for (Node<E> n = table[i].getNext(); n != null; n = n.getNext()) {
+			if (n.element() == o) {
+				return n;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Returns whether the given object is in this set. The chain the object
+	 * would be on is walked without locking.
+	 *
+	 * @param o
+	 * 		The object to search for.
+	 * @return
+	 * 		True if the same instance is in the set, otherwise false.
+	 */
+	@Override
+	public boolean contains(Object o)
+	{
+		return (o != null && find(index(hash(o)), o) != null);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public boolean remove(Object o)
+	{
+		if (o == null) {
+			return false;
+		}
+		expunge();
+		int i = index(hash(o));
+		synchronized (table[i]) {
+			Node<E> p = table[i], n = p.getNext();
+			while (n != null) {
+				if (n.element() == o) {
+					unlink(p, n);
+					return true;
+				}
+				p = n;
+				n = n.getNext();
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Removes the given node from the chain at the given index of the table
+	 * if it's still on the chain.
+	 *
+	 * @param i
+	 * 		The index of the chain in the table.
+	 * @param node
+	 * 		The node to remove.
+	 * @return
+	 * 		True if the node was removed, false if it was already removed.
+	 */
+	private boolean remove(int i, Node<E> node)
+	{
+		synchronized (table[i]) {
+			Node<E> p = table[i], n = p.getNext();
+			while (n != null) {
+				if (n == node) {
+					unlink(p, n);
+					return true;
+				}
+				p = n;
+				n = n.getNext();
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Unlinks the given node from the chain. The node is cleared so it won't
+	 * be placed on the queue if its element is collected later. The lock for
+	 * the chain must be held by the invoking thread.
+	 *
+	 * @param p
+	 * 		The node before the node to unlink.
+	 * @param n
+	 * 		The node to unlink.
+	 */
+	private void unlink(Node<E> p, Node<E> n)
+	{
+		p.setNext(n.getNext());
+		n.clear();
+		count.decrement();
+	}
+
+	/**
+	 * Removes the elements which have been garbage collected from the set.
+	 * This is done on every modification of the set, but it can also be
+	 * invoked periodically for weak sets which are rarely modified.
+	 */
+	@SuppressWarnings("unchecked")
+	public void expunge()
+	{
+		if (queue != null) {
+			WeakNode<E> n;
+			while ((n = (WeakNode<E>)queue.poll()) != null) {
+				remove(index(n.hash), n);
+			}
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void clear()
+	{
+		expunge();
+		for (int i = 0; i < table.length; i++) {
+			synchronized (table[i]) {
+				Node<E> p = table[i];
+				while (p.getNext() != null) {
+					unlink(p, p.getNext());
+				}
+			}
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int size()
+	{
+		long sum = count.sum();
+		return (int)Math.max(0, Math.min(sum, Integer.MAX_VALUE));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public boolean isEmpty()
+	{
+		return (count.sum() <= 0);
+	}
+
+	/**
+	 * Returns an iterator which walks the chains in place and skips elements
+	 * which have been garbage collected. The iterator is weakly consistent.
+	 *
+	 * @return
+	 * 		A new iterator over the elements.
+	 */
+	@Override
+	public Iterator<E> iterator()
+	{
+		return new SetIterator();
+	}
+
+	/**
+	 * An iterator which walks the chains of the table in place. The element
+	 * of the next node is held strongly so it can't be collected between
+	 * hasNext and next.
+	 *
+	 * @author Philip Diffenderfer
+	 *
+	 */
+	private class SetIterator implements Iterator<E>
+	{
+		// The index of the chain the next node is on.
+		private int index = -1;
+		// The next node to return.
+		private Node<E> next;
+		// The element of the next node.
+		private E nextElement;
+		// The last node returned.
+		private Node<E> last;
+		// The index of the chain the last node is on.
+		private int lastIndex;
+
+		public SetIterator() {
+			advance();
+		}
+		private void advance() {
+			if (next != null) {
+				next = next.getNext();
+			}
+			for (;;) {
+				while (next != null) {
+					nextElement = next.element();
+					if (nextElement != null) {
+						return;
+					}
+					next = next.getNext();
+				}
+				if (++index >= table.length) {
+					nextElement = null;
+					return;
+				}
+				next = table[index].getNext();
+			}
+		}
+		public boolean hasNext() {
+			return (next != null);
+		}
+		public E next() {
+			if (next == null) {
+				throw new NoSuchElementException();
+			}
+			E element = nextElement;
+			last = next;
+			lastIndex = index;
+			advance();
+			return element;
+		}
+		public void remove() {
+			if (last == null) {
+				throw new IllegalStateException();
+			}
+			ConcurrentIdentitySet.this.remove(lastIndex, last);
+			last = null;
+		}
+	}
+
+}
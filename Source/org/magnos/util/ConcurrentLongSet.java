@@ -0,0 +1,355 @@
+/* 
+ * NOTICE OF LICENSE
+ * 
+ * This source file is subject to the Open Software License (OSL 3.0) that is 
+ * bundled with this package in the file LICENSE.txt. It is also available 
+ * through the world-wide-web at http://opensource.org/licenses/osl-3.0.php
+ * If you did not receive a copy of the license and are unable to obtain it 
+ * through the world-wide-web, please send an email to pdiffenderfer@gmail.com 
+ * so we can send you a copy immediately. If you use any of this software please
+ * notify me via my website or email, your feedback is much appreciated. 
+ * 
+ * @copyright   Copyright (c) 2011 Magnos Software (http://www.magnos.org)
+ * @license     http://opensource.org/licenses/osl-3.0.php
+ * 				Open Software License (OSL 3.0)
+ */
+
+package org.magnos.util;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A thread safe set of primitive longs. The set is split into segments and
+ * each segment is an open-addressed table of longs which is synchronized
+ * independently of the others, so threads only contend when their values fall
+ * into the same segment. There are no boxes or nodes, a value takes up a
+ * single slot in a segment's table and a segment doubles its table when it
+ * becomes three quarters full. Removal shifts the following values back into
+ * the vacated slot so there are never any tombstones. The value 0 is used to
+ * mark empty slots internally, so whether 0 is in the set is tracked apart
+ * from the segments.
+ *
+ * @author Philip Diffenderfer
+ *
+ */
+public class ConcurrentLongSet
+{
+
+	/**
+	 * A segment of the set, an open-addressed table of values guarded by the
+	 * segment's monitor.
+	 *
+	 * @author Philip Diffenderfer
+	 *
+	 */
+	private static final class Segment
+	{
+		private long[] values;
+		private volatile int size;
+		public Segment(int capacity) {
+			this.values = new long[capacity];
+		}
+		public synchronized boolean add(long value, int hash) {
+			if (size >= values.length - (values.length >> 2)) {
+				grow();
+			}
+			int mod = values.length - 1;
+			int i = hash & mod;
+			while (values[i] != EMPTY) {
+				if (values[i] == value) {
+					return false;
+				}
+				i = (i + 1) & mod;
+			}
+			values[i] = value;
+			size++;
+			return true;
+		}
+		public synchronized boolean contains(long value, int hash) {
+			return (indexOf(value, hash) != -1);
+		}
+		public synchronized boolean remove(long value, int hash) {
+			int gap = indexOf(value, hash);
+			if (gap == -1) {
+				return false;
+			}
+			// Shift back any values which would no longer be found past the gap.
+			int mod = values.length - 1;
+			int i = gap;
+			for (;;) {
+				i = (i + 1) & mod;
+				long v = values[i];
+				if (v == EMPTY) {
+					break;
+				}
+				int home = (int)mix(v) & mod;
+				if (((i - home) & mod) >= ((i - gap) & mod)) {
+					values[gap] = v;
+					gap = i;
+				}
+			}
+			values[gap] = EMPTY;
+			size--;
+			return true;
+		}
+		public synchronized void clear() {
+			values = new long[values.length];
+			size = 0;
+		}
+		public synchronized long[] toArray() {
+			long[] out = new long[size];
+			for (int i = 0, j = 0; i < values.length; i++) {
+				if (values[i] != EMPTY) {
+					out[j++] = values[i];
+				}
+			}
+			return out;
+		}
+		private int indexOf(long value, int hash) {
+			int mod = values.length - 1;
+			int i = hash & mod;
+			while (values[i] != EMPTY) {
+				if (values[i] == value) {
+					return i;
+				}
+				i = (i + 1) & mod;
+			}
+			return -1;
+		}
+		private void grow() {
+			long[] old = values;
+			values = new long[old.length << 1];
+			int mod = values.length - 1;
+			for (int k = 0; k < old.length; k++) {
+				if (old[k] != EMPTY) {
+					int i = (int)mix(old[k]) & mod;
+					while (values[i] != EMPTY) {
+						i = (i + 1) & mod;
+					}
+					values[i] = old[k];
+				}
+			}
+		}
+	}
+
+	// The value which marks an empty slot in a segment.
+	private static final long EMPTY = 0L;
+
+	// The segments of the set.
+	private final Segment[] segments;
+
+	// A value used to calculate the segment of a value given its hash. This
+	// is essentially the number of segments - 1.
+	private final int mod;
+
+	// Whether the EMPTY value is in the set.
+	private final AtomicBoolean hasEmpty = new AtomicBoolean();
+
+
+	/**
+	 * Instantiates a ConcurrentLongSet with an initial capacity of 256 split
+	 * over 16 segments.
+	 */
+	public ConcurrentLongSet()
+	{
+		this(256, 16);
+	}
+
+	/**
+	 * Instantiates a ConcurrentLongSet.
+	 *
+	 * @param initialCapacity
+	 * 		The number of values the set should hold before any segment needs
+	 * 		to grow its table.
+	 * @param concurrency
+	 * 		The minimum number of segments. The actual number of segments will
+	 * 		be calculated by finding the next highest power of 2 number.
+	 */
+	public ConcurrentLongSet(int initialCapacity, int concurrency)
+	{
+		int segmentCount = powerOf2(Math.max(1, concurrency));
+		int segmentCapacity = powerOf2(Math.max(2, (initialCapacity / segmentCount) * 4 / 3 + 1));
+		this.mod = segmentCount - 1;
+		this.segments = new Segment[segmentCount];
+		for (int i = 0; i < segmentCount; i++) {
+			segments[i] = new Segment(segmentCapacity);
+		}
+	}
+
+	/**
+	 * Returns a power of 2 number greater than or equal to x.
+	 *
+	 * @param x
+	 * 		The number in question.
+	 * @return
+	 * 		A power of 2 number >= x.
+	 */
+	private static int powerOf2(int x)
+	{
+		return (x <= 1 ? 1 : Integer.highestOneBit(x - 1) << 1);
+	}
+
+	/**
+	 * Mixes the bits of the given value so that the lower and upper halves of
+	 * the result are well distributed. The lower half chooses the slot in a
+	 * segment and the upper half chooses the segment.
+	 *
+	 * @param x
+	 * 		The value to mix.
+	 * @return
+	 * 		The mixed value.
+	 */
+	private static long mix(long x)
+	{
+		x ^= (x >>> 33);
+		x *= 0xff51afd7ed558ccdL;
+		x ^= (x >>> 33);
+		x *= 0xc4ceb9fe1a85ec53L;
+		x ^= (x >>> 33);
+		return x;
+	}
+
+	/**
+	 * Returns the segment the value with the given mixed hash belongs to.
+	 *
+	 * @param h
+	 * 		The mixed hash of the value.
+	 * @return
+	 * 		The reference to the segment.
+	 */
+	private Segment segmentFor(long h)
+	{
+		return segments[(int)(h >>> 32) & mod];
+	}
+
+	/**
+	 * Returns the number of segments in the set.
+	 *
+	 * @return
+	 * 		The number of segments in the set.
+	 */
+	public int getConcurrency()
+	{
+		return segments.length;
+	}
+
+	/**
+	 * Adds the given value to the set.
+	 *
+	 * @param value
+	 * 		The value to add.
+	 * @return
+	 * 		True if the value was added, false if it already exists.
+	 */
+	public boolean add(long value)
+	{
+		if (value == EMPTY) {
+			return hasEmpty.compareAndSet(false, true);
+		}
+		long h = mix(value);
+		return segmentFor(h).add(value, (int)h);
+	}
+
+	/**
+	 * Returns whether the given value exists in the set.
+	 *
+	 * @param value
+	 * 		The value to search for.
+	 * @return
+	 * 		True if the value exists in the set, otherwise false.
+	 */
+	public boolean contains(long value)
+	{
+		if (value == EMPTY) {
+			return hasEmpty.get();
+		}
+		long h = mix(value);
+		return segmentFor(h).contains(value, (int)h);
+	}
+
+	/**
+	 * Removes the given value from the set.
+	 *
+	 * @param value
+	 * 		The value to remove.
+	 * @return
+	 * 		True if the value was removed, false if it didn't exist.
+	 */
+	public boolean remove(long value)
+	{
+		if (value == EMPTY) {
+			return hasEmpty.compareAndSet(true, false);
+		}
+		long h = mix(value);
+		return segmentFor(h).remove(value, (int)h);
+	}
+
+	/**
+	 * Removes all values from the set. Each segment is cleared independently
+	 * so values added during a clear may remain in the set.
+	 */
+	public void clear()
+	{
+		hasEmpty.set(false);
+		for (int i = 0; i < segments.length; i++) {
+			segments[i].clear();
+		}
+	}
+
+	/**
+	 * Returns the number of values in the set. If the set is being modified
+	 * the size returned is only an estimate.
+	 *
+	 * @return
+	 * 		The number of values in the set.
+	 */
+	public int size()
+	{
+		int size = (hasEmpty.get() ? 1 : 0);
+		for (int i = 0; i < segments.length; i++) {
+			size += segments[i].size;
+		}
+		return size;
+	}
+
+	/**
+	 * Returns whether the set has no values. If the set is being modified the
+	 * value returned is only an estimate.
+	 *
+	 * @return
+	 * 		True if the set has no values, otherwise false.
+	 */
+	public boolean isEmpty()
+	{
+		return (size() == 0);
+	}
+
+	/**
+	 * Returns the values in this set as an array. The array is a snapshot of
+	 * each segment at the time it was copied, and is in no particular order.
+	 *
+	 * @return
+	 * 		A new array of the values in this set.
+	 */
+	public long[] toArray()
+	{
+		boolean empty = hasEmpty.get();
+		long[][] parts = new long[segments.length][];
+		int total = (empty ? 1 : 0);
+		for (int i = 0; i < segments.length; i++) {
+			parts[i] = segments[i].toArray();
+			total += parts[i].length;
+		}
+		long[] out = new long[total];
+		int offset = 0;
+		if (empty) {
+			out[offset++] = EMPTY;
+		}
+		for (int i = 0; i < parts.length; i++) {
+			System.arraycopy(parts[i], 0, out, offset, parts[i].length);
+			offset += parts[i].length;
+		}
+		return out;
+	}
+
+}
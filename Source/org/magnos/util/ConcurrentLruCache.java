@@ -0,0 +1,572 @@
+/* 
+ * NOTICE OF LICENSE
+ * 
+ * This source file is subject to the Open Software License (OSL 3.0) that is 
+ * bundled with this package in the file LICENSE.txt. It is also available 
+ * through the world-wide-web at http://opensource.org/licenses/osl-3.0.php
+ * If you did not receive a copy of the license and are unable to obtain it 
+ * through the world-wide-web, please send an email to pdiffenderfer@gmail.com 
+ * so we can send you a copy immediately. If you use any of this software please
+ * notify me via my website or email, your feedback is much appreciated. 
+ * 
+ * @copyright   Copyright (c) 2011 Magnos Software (http://www.magnos.org)
+ * @license     http://opensource.org/licenses/osl-3.0.php
+ * 				Open Software License (OSL 3.0)
+ */
+
+package org.magnos.util;
+
+import java.util.HashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * A thread safe cache with a bounded size which evicts entries that have not
+ * been used recently. The cache is split into stripes and each stripe is a
+ * small hash table of chains guarded by its own lock, like the ConcurrentSet,
+ * so threads only contend when their keys fall into the same stripe and no
+ * operation ever locks the whole cache. Each stripe holds an equal share of
+ * the maximum size and evicts with the CLOCK algorithm, an approximation of
+ * least recently used: every entry has a referenced flag which a hit sets
+ * without locking, and when a stripe is full its hand sweeps over its entries
+ * clearing flags until it finds an entry which has not been referenced since
+ * the hand last passed, which is evicted. Lookups walk a chain without
+ * locking. A cache can be given a loader which computes the value of a key
+ * that isn't cached. The value is computed outside of the stripe's lock so a
+ * slow load never holds up other keys, and a key being loaded has a gate in
+ * its stripe which other threads missing the same key wait on, so each key
+ * is only loaded once at a time. The number of hits, misses, and evictions
+ * are counted.
+ *
+ * @author Philip Diffenderfer
+ *
+ * @param <K>
+ * 		The type of key.
+ * @param <V>
+ * 		The type of value.
+ */
+public class ConcurrentLruCache<K, V>
+{
+
+	/**
+	 * An entry in the cache, it's on a chain in its stripe's table and in a
+	 * slot of its stripe's clock.
+	 *
+	 * @author Philip Diffenderfer
+	 *
+	 */
+	private static class Entry<K, V>
+	{
+		private final K key;
+		private final int hash;
+		private volatile V value;
+		private volatile boolean referenced;
+		private volatile Entry<K, V> next;
+		private int slot;
+		public Entry(K key, int hash, V value, Entry<K, V> next) {
+			this.key = key;
+			this.hash = hash;
+			this.value = value;
+			this.next = next;
+		}
+	}
+
+	/**
+	 * A stripe of the cache. The chains of the table start at sentinel
+	 * entries, and the clock holds every entry in the stripe. The keys being
+	 * loaded map to the gates their values are handed out through. The 
+	 * chains, the clock, and the loading keys are modified while holding the
+	 * stripe's monitor.
+	 *
+	 * @author Philip Diffenderfer
+	 *
+	 */
+	private static final class Stripe<K, V>
+	{
+		private final Entry<K, V>[] table;
+		private final int mod;
+		private final Entry<K, V>[] clock;
+		private final HashMap<K, Gate<V>> loading = new HashMap<K, Gate<V>>();
+		private int size;
+		private int hand;
+		@SuppressWarnings({"unchecked", "rawtypes"})
+		public Stripe(int maximumSize) {
+			int capacity = powerOf2(maximumSize + (maximumSize >> 1));
+			this.table = new Entry[capacity];
+			this.mod = capacity - 1;
+			this.clock = new Entry[maximumSize];
+			for (int i = 0; i < capacity; i++) {
+				table[i] = new Entry<K, V>(null, 0, null, null);
+			}
+		}
+		public Entry<K, V> find(Object key, int hash) {
+			for (Entry<K, V> e = table[hash & mod].next; e != null; e = e.next) {
+				if (e.hash == hash && (e.key == key || e.key.equals(key))) {
+					return e;
+				}
+			}
+			return null;
+		}
+		public boolean insert(K key, int hash, V value) {
+			boolean evicted = false;
+			if (size == clock.length) {
+				evict();
+				evicted = true;
+			}
+			Entry<K, V> head = table[hash & mod];
+			Entry<K, V> e = new Entry<K, V>(key, hash, value, head.next);
+			head.next = e;
+			e.slot = size;
+			clock[size++] = e;
+			return evicted;
+		}
+		public void unlink(Entry<K, V> e) {
+			Entry<K, V> p = table[e.hash & mod];
+			while (p.next != e) {
+				p = p.next;
+			}
+			p.next = e.next;
+			Entry<K, V> last = clock[--size];
+			clock[e.slot] = last;
+			last.slot = e.slot;
+			clock[size] = null;
+			if (hand >= size) {
+				hand = 0;
+			}
+		}
+		public void clear() {
+			for (int i = 0; i < table.length; i++) {
+				table[i].next = null;
+			}
+			for (int i = 0; i < size; i++) {
+				clock[i] = null;
+			}
+			size = 0;
+			hand = 0;
+		}
+		private void evict() {
+			for (;;) {
+				Entry<K, V> e = clock[hand];
+				if (e.referenced) {
+					e.referenced = false;
+					hand = (hand + 1) % size;
+				}
+				else {
+					unlink(e);
+					return;
+				}
+			}
+		}
+	}
+
+	// The stripes of the cache.
+	private final Stripe<K, V>[] stripes;
+
+	// A value used to calculate the stripe of a key given its hash. This is
+	// essentially the number of stripes - 1.
+	private final int mod;
+
+	// The amount to shift a hash to get the bits which choose its stripe.
+	private final int shift;
+
+	// The maximum number of entries in the cache.
+	private final int maximumSize;
+
+	// The function which computes the values of keys which aren't cached, or
+	// null if the cache has no loader.
+	private final Function<? super K, ? extends V> loader;
+
+	// The number of lookups which found a cached value.
+	private final LongAdder hits = new LongAdder();
+
+	// The number of lookups which did not find a cached value.
+	private final LongAdder misses = new LongAdder();
+
+	// The number of entries evicted to make room for new entries.
+	private final LongAdder evictions = new LongAdder();
+
+
+	/**
+	 * Instantiates a ConcurrentLruCache split over 16 stripes without a
+	 * loader.
+	 *
+	 * @param maximumSize
+	 * 		The maximum number of entries in the cache.
+	 */
+	public ConcurrentLruCache(int maximumSize)
+	{
+		this(maximumSize, 16, null);
+	}
+
+	/**
+	 * Instantiates a ConcurrentLruCache split over 16 stripes.
+	 *
+	 * @param maximumSize
+	 * 		The maximum number of entries in the cache.
+	 * @param loader
+	 * 		The function which computes the value of a key which isn't cached.
+	 * 		If the function returns null nothing is cached.
+	 */
+	public ConcurrentLruCache(int maximumSize, Function<? super K, ? extends V> loader)
+	{
+		this(maximumSize, 16, loader);
+	}
+
+	/**
+	 * Instantiates a ConcurrentLruCache.
+	 *
+	 * @param maximumSize
+	 * 		The maximum number of entries in the cache. The maximum is split
+	 * 		evenly between the stripes, so the cache may hold slightly more
+	 * 		when it does not divide evenly.
+	 * @param concurrency
+	 * 		The minimum number of stripes. The actual number of stripes will be
+	 * 		the next highest power of 2 number, and never more than needed to
+	 * 		give each stripe at least one entry.
+	 * @param loader
+	 * 		The function which computes the value of a key which isn't cached,
+	 * 		or null if the cache has no loader. If the function returns null
+	 * 		nothing is cached.
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	public ConcurrentLruCache(int maximumSize, int concurrency, Function<? super K, ? extends V> loader)
+	{
+		if (maximumSize < 1) {
+			throw new IllegalArgumentException("maximumSize must be >= 1");
+		}
+		int stripeCount = Math.min(powerOf2(Math.max(1, concurrency)), Integer.highestOneBit(maximumSize));
+		int stripeSize = (maximumSize + stripeCount - 1) / stripeCount;
+		this.maximumSize = maximumSize;
+		this.loader = loader;
+		this.mod = stripeCount - 1;
+		this.shift = 32 - Integer.numberOfTrailingZeros(stripeCount);
+		this.stripes = new Stripe[stripeCount];
+		for (int i = 0; i < stripeCount; i++) {
+			stripes[i] = new Stripe<K, V>(stripeSize);
+		}
+	}
+
+	/**
+	 * Returns a power of 2 number greater than or equal to x.
+	 *
+	 * @param x
+	 * 		The number in question.
+	 * @return
+	 * 		A power of 2 number >= x.
+	 */
+	private static int powerOf2(int x)
+	{
+		return (x <= 1 ? 1 : Integer.highestOneBit(x - 1) << 1);
+	}
+
+	/**
+	 * Mixes the bits of the hash of the given key. The lower bits choose the
+	 * chain in a stripe and the upper bits choose the stripe.
+	 *
+	 * @param key
+	 * 		The key to hash.
+	 * @return
+	 * 		The mixed hash of the key.
+	 */
+	private static int hash(Object key)
+	{
+		int h = key.hashCode();
+		h ^= (h >>> 16);
+		h *= 0x85ebca6b;
+		h ^= (h >>> 13);
+		h *= 0xc2b2ae35;
+		h ^= (h >>> 16);
+		return h;
+	}
+
+	/**
+	 * Returns the stripe the key with the given mixed hash belongs to.
+	 *
+	 * @param hash
+	 * 		The mixed hash of the key.
+	 * @return
+	 * 		The reference to the stripe.
+	 */
+	private Stripe<K, V> stripeFor(int hash)
+	{
+		return stripes[(hash >>> shift) & mod];
+	}
+
+	/**
+	 * Returns the maximum number of entries in the cache.
+	 *
+	 * @return
+	 * 		The maximum number of entries in the cache.
+	 */
+	public int getMaximumSize()
+	{
+		return maximumSize;
+	}
+
+	/**
+	 * Returns the number of stripes in the cache.
+	 *
+	 * @return
+	 * 		The number of stripes in the cache.
+	 */
+	public int getConcurrency()
+	{
+		return stripes.length;
+	}
+
+	/**
+	 * Returns the number of lookups which found a cached value.
+	 *
+	 * @return
+	 * 		The number of cache hits.
+	 */
+	public long getHits()
+	{
+		return hits.sum();
+	}
+
+	/**
+	 * Returns the number of lookups which did not find a cached value.
+	 *
+	 * @return
+	 * 		The number of cache misses.
+	 */
+	public long getMisses()
+	{
+		return misses.sum();
+	}
+
+	/**
+	 * Returns the number of entries evicted to make room for new entries.
+	 *
+	 * @return
+	 * 		The number of evictions.
+	 */
+	public long getEvictions()
+	{
+		return evictions.sum();
+	}
+
+	/**
+	 * Returns the value cached for the given key. If the key isn't cached
+	 * and the cache has a loader the value is loaded and cached, and if
+	 * another thread is already loading the key this waits for that load
+	 * instead of loading the key again.
+	 *
+	 * @param key
+	 * 		The key of the value.
+	 * @return
+	 * 		The value of the key, or null if it isn't cached and could not be
+	 * 		loaded.
+	 */
+	public V get(K key)
+	{
+		if (key == null) {
+			return null;
+		}
+		int hash = hash(key);
+		Stripe<K, V> stripe = stripeFor(hash);
+		Entry<K, V> e = stripe.find(key, hash);
+		if (e != null) {
+			reference(e);
+			hits.increment();
+			return e.value;
+		}
+		misses.increment();
+		if (loader == null) {
+			return null;
+		}
+		Gate<V> gate;
+		synchronized (stripe) {
+			// Another thread may have loaded the key while waiting for the lock.
+			e = stripe.find(key, hash);
+			if (e != null) {
+				reference(e);
+				return e.value;
+			}
+			gate = stripe.loading.get(key);
+			if (gate == null) {
+				stripe.loading.put(key, new Gate<V>());
+			}
+		}
+		if (gate != null) {
+			return gate.acquire();
+		}
+		return load(key, hash, stripe);
+	}
+
+	/**
+	 * Loads the value of the given key outside of its stripe's lock, caches
+	 * it, and hands it to every thread waiting on the key's gate. If the 
+	 * loader throws an exception the waiting threads receive null.
+	 *
+	 * @param key
+	 * 		The key to load.
+	 * @param hash
+	 * 		The mixed hash of the key.
+	 * @param stripe
+	 * 		The stripe of the key, which has a gate for the key.
+	 * @return
+	 * 		The value of the key, or null if it could not be loaded.
+	 */
+	private V load(K key, int hash, Stripe<K, V> stripe)
+	{
+		V value = null;
+		Gate<V> gate;
+		boolean evicted = false;
+		try {
+			value = loader.apply(key);
+		}
+		finally {
+			synchronized (stripe) {
+				gate = stripe.loading.remove(key);
+				if (value != null) {
+					// A value put while loading replaces the loaded value.
+					Entry<K, V> e = stripe.find(key, hash);
+					if (e != null) {
+						value = e.value;
+					}
+					else {
+						evicted = stripe.insert(key, hash, value);
+					}
+				}
+			}
+			gate.open(value);
+		}
+		if (evicted) {
+			evictions.increment();
+		}
+		return value;
+	}
+
+	/**
+	 * Marks the given entry as referenced. The flag is only written when it
+	 * isn't already set so hits on a popular entry don't keep writing to the
+	 * same cache line.
+	 *
+	 * @param e
+	 * 		The entry which was used.
+	 */
+	private static void reference(Entry<?, ?> e)
+	{
+		if (!e.referenced) {
+			e.referenced = true;
+		}
+	}
+
+	/**
+	 * Returns the value cached for the given key without loading it.
+	 *
+	 * @param key
+	 * 		The key of the value.
+	 * @return
+	 * 		The value of the key, or null if it isn't cached.
+	 */
+	public V getIfPresent(K key)
+	{
+		if (key == null) {
+			return null;
+		}
+		int hash = hash(key);
+		Entry<K, V> e = stripeFor(hash).find(key, hash);
+		if (e == null) {
+			misses.increment();
+			return null;
+		}
+		reference(e);
+		hits.increment();
+		return e.value;
+	}
+
+	/**
+	 * Caches the given value for the given key, replacing any value already
+	 * cached for the key.
+	 *
+	 * @param key
+	 * 		The key of the value.
+	 * @param value
+	 * 		The value to cache.
+	 * @return
+	 * 		The value previously cached for the key, or null if none existed.
+	 */
+	public V put(K key, V value)
+	{
+		if (key == null || value == null) {
+			throw new NullPointerException();
+		}
+		int hash = hash(key);
+		Stripe<K, V> stripe = stripeFor(hash);
+		boolean evicted;
+		synchronized (stripe) {
+			Entry<K, V> e = stripe.find(key, hash);
+			if (e != null) {
+				V previous = e.value;
+				e.value = value;
+				e.referenced = true;
+				return previous;
+			}
+			evicted = stripe.insert(key, hash, value);
+		}
+		if (evicted) {
+			evictions.increment();
+		}
+		return null;
+	}
+
+	/**
+	 * Removes the given key from the cache.
+	 *
+	 * @param key
+	 * 		The key to remove.
+	 * @return
+	 * 		The value which was cached for the key, or null if none existed.
+	 */
+	public V remove(K key)
+	{
+		if (key == null) {
+			return null;
+		}
+		int hash = hash(key);
+		Stripe<K, V> stripe = stripeFor(hash);
+		synchronized (stripe) {
+			Entry<K, V> e = stripe.find(key, hash);
+			if (e == null) {
+				return null;
+			}
+			stripe.unlink(e);
+			return e.value;
+		}
+	}
+
+	/**
+	 * Removes all entries from the cache. Each stripe is cleared
+	 * independently so entries added during a clear may remain.
+	 */
+	public void clear()
+	{
+		for (int i = 0; i < stripes.length; i++) {
+			synchronized (stripes[i]) {
+				stripes[i].clear();
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of entries in the cache. If the cache is being
+	 * modified the size returned is only an estimate.
+	 *
+	 * @return
+	 * 		The number of entries in the cache.
+	 */
+	public int size()
+	{
+		int size = 0;
+		for (int i = 0; i < stripes.length; i++) {
+			synchronized (stripes[i]) {
+				size += stripes[i].size;
+			}
+		}
+		return size;
+	}
+
+}
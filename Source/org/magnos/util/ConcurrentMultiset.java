@@ -0,0 +1,420 @@
+/* 
+ * NOTICE OF LICENSE
+ * 
+ * This source file is subject to the Open Software License (OSL 3.0) that is 
+ * bundled with this package in the file LICENSE.txt. It is also available 
+ * through the world-wide-web at http://opensource.org/licenses/osl-3.0.php
+ * If you did not receive a copy of the license and are unable to obtain it 
+ * through the world-wide-web, please send an email to pdiffenderfer@gmail.com 
+ * so we can send you a copy immediately. If you use any of this software please
+ * notify me via my website or email, your feedback is much appreciated. 
+ * 
+ * @copyright   Copyright (c) 2011 Magnos Software (http://www.magnos.org)
+ * @license     http://opensource.org/licenses/osl-3.0.php
+ * 				Open Software License (OSL 3.0)
+ */
+
+package org.magnos.util;
+
+import java.lang.reflect.Array;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A thread safe multiset (or bag) of objects which holds a single entry for
+ * each distinct element along with the number of times it has been added.
+ * Adding an element which already exists only increments its count, so
+ * counting, removing, and purging any number of occurrences of an element is
+ * as fast as looking up the element once. Like the ConcurrentSet the table
+ * is made of chains and only the chain an element belongs on is synchronized
+ * when the multiset is modified, and looking up the count of an element walks
+ * its chain without locking. An element is removed from its chain as soon as
+ * its count reaches zero.
+ * Once a multiset has been created its internal table cannot and will not
+ * change size. No matter the minimum table size given to the constructor the
+ * internal table size of the multiset will always be a power of 2.
+ *
+ * @author Philip Diffenderfer
+ *
+ * @param <E>
+ * 		The element to contain in the multiset.
+ */
+public class ConcurrentMultiset<E> implements Iterable<E>
+{
+
+	/**
+	 * A node that holds a distinct element, the number of times it's in the
+	 * multiset, and a pointer.
+	 *
+	 * @author Philip Diffenderfer
+	 *
+	 */
+	private static class Node<T>
+	{
+		private final T element;
+		private volatile long count;
+		private volatile Node<T> next;
+		public Node(T element, long count, Node<T> next) {
+			this.element = element;
+			this.count = count;
+			this.next = next;
+		}
+	}
+
+	// The table of nodes.
+	private final Node<E>[] table;
+
+	// A value used to calculate the index of an object on the table given
+	// its hashCode. This is essentially the size of the table - 1.
+	private final int mod;
+
+	// The total number of occurrences of all elements.
+	private final LongAdder size = new LongAdder();
+
+	// The number of distinct elements.
+	private final LongAdder distinct = new LongAdder();
+
+
+	/**
+	 * Instantiates a ConcurrentMultiset with a table size of 32.
+	 */
+	public ConcurrentMultiset()
+	{
+		this(32);
+	}
+
+	/**
+	 * Instantiates a ConcurrentMultiset.
+	 *
+	 * @param minTableSize
+	 * 		The minimum size of the internal hash table. The actual size of the
+	 * 		internal hash table will be calculated by finding the next highest
+	 * 		power of 2 number.
+	 */
+	@SuppressWarnings("unchecked")
+	public ConcurrentMultiset(int minTableSize)
+	{
+		int capacity = (minTableSize <= 1 ? 1 : Integer.highestOneBit(minTableSize - 1) << 1);
+		this.mod = capacity - 1;
+		this.table = (Node<E>[])Array.newInstance(Node.class, capacity);
+		for (int i = 0; i < capacity; i++) {
+			table[i] = new Node<E>(null, 0, null);
+		}
+	}
+
+	/**
+	 * Returns the index in the table an object should go with the given hash.
+	 *
+	 * @param hash
+	 * 		The hash of the object.
+	 * @return
+	 * 		The index in the table.
+	 */
+	private int index(int hash)
+	{
+		return (hash & mod);
+	}
+
+	/**
+	 * Returns the size of the internal hash table.
+	 *
+	 * @return
+	 * 		The size of the internal hash table.
+	 */
+	public int getCapacity()
+	{
+		return table.length;
+	}
+
+	/**
+	 * Returns the node on the chain at the given index of the table which
+	 * holds an element equivalent to the given object.
+	 *
+	 * @param i
+	 * 		The index of the chain in the table.
+	 * @param o
+	 * 		The object to search for.
+	 * @return
+	 * 		The node found or null if none exist.
+	 */
+	private Node<E> find(int i, Object o)
+	{
+		for (Node<E> n = table[i].next; n != null; n = n.next) {
+			if (n.element == o || n.element.equals(o)) {
+				return n;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Adds a single occurrence of the given element to the multiset.
+	 *
+	 * @param e
+	 * 		The element to add.
+	 * @return
+	 * 		The number of occurrences of the element before it was added.
+	 */
+	public long add(E e)
+	{
+		return add(e, 1);
+	}
+
+	/**
+	 * Adds the given number of occurrences of the given element to the
+	 * multiset.
+	 *
+	 * @param e
+	 * 		The element to add.
+	 * @param occurrences
+	 * 		The number of occurrences to add.
+	 * @return
+	 * 		The number of occurrences of the element before they were added.
+	 * @throws IllegalArgumentException
+	 * 		The number of occurrences is negative.
+	 */
+	public long add(E e, long occurrences)
+	{
+		if (occurrences < 0) {
+			throw new IllegalArgumentException("occurrences must be >= 0");
+		}
+		if (e == null || occurrences == 0) {
+			return count(e);
+		}
+		int i = index(e.hashCode());
+		long previous = 0;
+		synchronized (table[i]) {
+			Node<E> n = find(i, e);
+			if (n == null) {
+				table[i].next = new Node<E>(e, occurrences, table[i].next);
+				distinct.increment();
+			}
+			else {
+				previous = n.count;
+				n.count = previous + occurrences;
+			}
+		}
+		size.add(occurrences);
+		return previous;
+	}
+
+	/**
+	 * Returns the number of occurrences of the given object in the multiset.
+	 * The chain the object would be on is walked without locking.
+	 *
+	 * @param o
+	 * 		The object to count.
+	 * @return
+	 * 		The number of occurrences of the object.
+	 */
+	public long count(Object o)
+	{
+		if (o == null) {
+			return 0;
+		}
+		Node<E> n = find(index(o.hashCode()), o);
+		return (n == null ? 0 : n.count);
+	}
+
+	/**
+	 * Returns whether the given object occurs at least once in the multiset.
+	 *
+	 * @param o
+	 * 		The object to search for.
+	 * @return
+	 * 		True if the object is in the multiset, otherwise false.
+	 */
+	public boolean contains(Object o)
+	{
+		return (count(o) > 0);
+	}
+
+	/**
+	 * Removes a single occurrence of the given object from the multiset.
+	 *
+	 * @param o
+	 * 		The object to remove.
+	 * @return
+	 * 		The number of occurrences of the object before it was removed.
+	 */
+	public long remove(Object o)
+	{
+		return remove(o, 1);
+	}
+
+	/**
+	 * Removes up to the given number of occurrences of the given object from
+	 * the multiset. If the object occurs fewer times than the given number
+	 * all of its occurrences are removed.
+	 *
+	 * @param o
+	 * 		The object to remove.
+	 * @param occurrences
+	 * 		The number of occurrences to remove.
+	 * @return
+	 * 		The number of occurrences of the object before they were removed.
+	 * @throws IllegalArgumentException
+	 * 		The number of occurrences is negative.
+	 */
+	public long remove(Object o, long occurrences)
+	{
+		if (occurrences < 0) {
+			throw new IllegalArgumentException("occurrences must be >= 0");
+		}
+		if (o == null || occurrences == 0) {
+			return count(o);
+		}
+		int i = index(o.hashCode());
+		long previous = 0;
+		synchronized (table[i]) {
+			Node<E> p = table[i], n = p.next;
+			while (n != null) {
+				if (n.element == o || n.element.equals(o)) {
+					previous = n.count;
+					if (previous <= occurrences) {
+						p.next = n.next;
+						n.count = 0;
+						distinct.decrement();
+					}
+					else {
+						n.count = previous - occurrences;
+					}
+					break;
+				}
+				p = n;
+				n = n.next;
+			}
+		}
+		size.add(-Math.min(previous, occurrences));
+		return previous;
+	}
+
+	/**
+	 * Removes all occurrences of the given object from the multiset.
+	 *
+	 * @param o
+	 * 		The object to remove.
+	 * @return
+	 * 		The number of occurrences removed.
+	 */
+	public long purge(Object o)
+	{
+		return remove(o, Long.MAX_VALUE);
+	}
+
+	/**
+	 * Removes all elements from the multiset. Each chain is cleared
+	 * independently so elements added during a clear may remain.
+	 */
+	public void clear()
+	{
+		for (int i = 0; i < table.length; i++) {
+			synchronized (table[i]) {
+				for (Node<E> n = table[i].next; n != null; n = n.next) {
+					size.add(-n.count);
+					distinct.decrement();
+					n.count = 0;
+				}
+				table[i].next = null;
+			}
+		}
+	}
+
+	/**
+	 * Returns the total number of occurrences of all elements. If the
+	 * multiset is being modified the size returned is only an estimate.
+	 *
+	 * @return
+	 * 		The total number of occurrences in the multiset.
+	 */
+	public long size()
+	{
+		return Math.max(0, size.sum());
+	}
+
+	/**
+	 * Returns the number of distinct elements. If the multiset is being
+	 * modified the value returned is only an estimate.
+	 *
+	 * @return
+	 * 		The number of distinct elements in the multiset.
+	 */
+	public int distinct()
+	{
+		long sum = distinct.sum();
+		return (int)Math.max(0, Math.min(sum, Integer.MAX_VALUE));
+	}
+
+	/**
+	 * Returns whether the multiset has no elements.
+	 *
+	 * @return
+	 * 		True if the multiset is empty, otherwise false.
+	 */
+	public boolean isEmpty()
+	{
+		return (distinct.sum() <= 0);
+	}
+
+	/**
+	 * Returns an iterator over the distinct elements of the multiset, each
+	 * element is returned once regardless of its count. The iterator walks
+	 * the chains in place and is weakly consistent, removing through the
+	 * iterator purges the element.
+	 *
+	 * @return
+	 * 		A new iterator over the distinct elements.
+	 */
+	public Iterator<E> iterator()
+	{
+		return new DistinctIterator();
+	}
+
+	/**
+	 * An iterator which walks the chains of the table in place.
+	 *
+	 * @author Philip Diffenderfer
+	 *
+	 */
+	private class DistinctIterator implements Iterator<E>
+	{
+		// The index of the chain the next node is on.
+		private int index = -1;
+		// The next node to return.
+		private Node<E> next;
+		// The last node returned.
+		private Node<E> last;
+
+		public DistinctIterator() {
+			advance();
+		}
+		private void advance() {
+			if (next != null) {
+				next = next.next;
+			}
+			while (next == null && ++index < table.length) {
+				next = table[index].next;
+			}
+		}
+		public boolean hasNext() {
+			return (next != null);
+		}
+		public E next() {
+			if (next == null) {
+				throw new NoSuchElementException();
+			}
+			last = next;
+			advance();
+			return last.element;
+		}
+		public void remove() {
+			if (last == null) {
+				throw new IllegalStateException();
+			}
+			purge(last.element);
+			last = null;
+		}
+	}
+
+}
@@ -16,21 +16,58 @@
 
 package org.magnos.util;
 
+import java.io.IOException;
 import java.lang.reflect.Array;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.Spliterator;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+import java.util.function.Predicate;
+import java.util.stream.IntStream;
+import java.util.stream.StreamSupport;
 
 /**
  * A thread safe set of objects. This provides better performance then any naive
  * approach to synchronize an entire set by only synchronizing the chain which
- * the element exists on or is being added to. A set can be iterated but the
- * elements it iterates are a snapshot of the set at the time of invocation.
- * The methods to return the size or determine whether the set is empty should
- * be used sparingly since they iterate over the entire set to approximate the
- * size (design choice to avoid locking entire set or using AtomicInteger).
+ * the element exists on or is being added to. A set can be iterated without
+ * locking or copying, the iterator walks the chains in place and is weakly
+ * consistent: it never throws a ConcurrentModificationException and it may or
+ * may not reflect modifications made after it was created. The size of the set
+ * is kept by a striped counter so size and isEmpty are constant time, however
+ * when the set is being modified the size returned is only an estimate.
+ * The set can be split by ranges of its table for parallel streams and bulk
+ * operations, where each chain is only locked while it's being modified.
+ * The bulk operations addAll, removeAll, and containsAll group the given
+ * elements by chain so each chain is locked once per operation.
+ * By default each chain is locked by synchronizing on its sentinel node. A
+ * set can instead be created with a striped array of stamped locks, where
+ * contains reads the chain optimistically without locking and only falls back
+ * to a read lock when a writer modified the chain during the read.
+ * A set can optionally be given a lock-free bloom filter which is checked 
+ * before any chain is locked, so looking up an element which is not in the
+ * set usually only costs a few reads of the filter. Since elements can't be
+ * removed from a bloom filter it should be rebuilt periodically if elements
+ * are frequently removed from the set.
+ * A set can be written to a channel as a snapshot and later restored from 
+ * one, which is far faster than adding elements back one at a time.
+ * By default the set holds at most one of any equivalent elements, it can 
+ * optionally be created as a multiset where adding always succeeds and the
+ * same element may be held any number of times.
  * Once a set has been created its internally table cannot and will not
  * change size. No matter the minimum table size given to the constructor the
  * internal table size of the set will always be a power of 2.
@@ -52,13 +89,123 @@ public class ConcurrentSet<E> implements Set<E>
 	private class Node<T>
 	{
 		private final T element;
-		private Node<T> next;
+		private volatile Node<T> next;
 		public Node(T element, Node<T> next) {
 			this.element = element;
 			this.next = next;
 		}
 	}
 	
+	/**
+	 * A lock-free bloom filter over the hash codes of elements. Each hash code
+	 * sets a fixed number of bits chosen by double hashing, and bits are only
+	 * ever set so they can be set with a simple compare-and-set.
+	 * 
+	 * @author Philip Diffenderfer
+	 *
+	 */
+	private static class Filter
+	{
+		// The number of bits set per element.
+		private static final int HASHES = 5;
+		// The number of bits per expected element.
+		private static final int BITS_PER_ELEMENT = 10;
+		private final AtomicLongArray bits;
+		private final int mask;
+		private final int expected;
+		public Filter(int expected) {
+			int size = powerOf2(Math.max(64, (int)Math.min(1 << 30, (long)Math.max(1, expected) * BITS_PER_ELEMENT)));
+			this.expected = Math.max(1, expected);
+			this.bits = new AtomicLongArray(size >> 6);
+			this.mask = size - 1;
+		}
+		public void add(int hash) {
+			int h1 = spread(hash), h2 = spread(h1) | 1;
+			for (int j = 0; j < HASHES; j++) {
+				int bit = (h1 + j * h2) & mask;
+				long flag = 1L << bit;
+				int word = bit >>> 6;
+				long current = bits.get(word);
+				while ((current & flag) == 0 && !bits.compareAndSet(word, current, current | flag)) {
+					current = bits.get(word);
+				}
+			}
+		}
+		public boolean mightContain(int hash) {
+			int h1 = spread(hash), h2 = spread(h1) | 1;
+			for (int j = 0; j < HASHES; j++) {
+				int bit = (h1 + j * h2) & mask;
+				if ((bits.get(bit >>> 6) & (1L << bit)) == 0) {
+					return false;
+				}
+			}
+			return true;
+		}
+		private static int spread(int h) {
+			h ^= (h >>> 16);
+			h *= 0x85ebca6b;
+			h ^= (h >>> 13);
+			h *= 0xc2b2ae35;
+			h ^= (h >>> 16);
+			return h;
+		}
+	}
+	
+	/**
+	 * Converts elements to and from bytes for snapshots of a set.
+	 * 
+	 * @author Philip Diffenderfer
+	 *
+	 * @param <T>
+	 * 		The type of element converted.
+	 */
+	public interface Codec<T>
+	{
+		
+		/**
+		 * Returns the number of bytes the given element is encoded to.
+		 * 
+		 * @param element
+		 * 		The element to measure.
+		 * @return
+		 * 		The exact number of bytes encode will write.
+		 */
+		public int sizeOf(T element);
+		
+		/**
+		 * Writes the given element to the buffer.
+		 * 
+		 * @param element
+		 * 		The element to write.
+		 * @param out
+		 * 		The buffer to write exactly sizeOf(element) bytes to.
+		 */
+		public void encode(T element, ByteBuffer out);
+		
+		/**
+		 * Reads an element from the buffer.
+		 * 
+		 * @param in
+		 * 		A buffer which holds exactly the bytes of one element.
+		 * @return
+		 * 		The element read.
+		 */
+		public T decode(ByteBuffer in);
+		
+	}
+	
+	// The value at the start of every snapshot ("CSET").
+	private static final int SNAPSHOT_MAGIC = 0x43534554;
+	
+	// The chain index which marks the end of a snapshot.
+	private static final int SNAPSHOT_END = -1;
+	
+	// The number of bytes in the header of a snapshot.
+	private static final int SNAPSHOT_HEADER = 8;
+	
+	// The number of bytes in the header of each chain in a snapshot.
+	private static final int CHAIN_HEADER = 12;
+	
 	// The table of nodes.
 	private final Node<E>[] table;
 	
@@ -68,6 +215,32 @@ public class ConcurrentSet<E> implements Set<E>
 	// A value used to calculate the index of an object on the table given
 	// its hashCode. This is essentially capacity - 1.
 	private final int mod;
+	
+	// The number of elements in the set. This is striped across cells so
+	// writers on different chains don't contend on a single counter.
+	private final LongAdder count = new LongAdder();
+	
+	// Whether the set allows equivalent elements to be added more than once.
+	private final boolean multiset;
+	
+	// The stamped locks which guard the chains, or null if the chains are
+	// guarded by synchronizing on their sentinel nodes.
+	private final StampedLock[] stamps;
+	
+	// A value used to calculate the index of a chain's stamped lock given the
+	// index of the chain. This is essentially stamps.length - 1.
+	private final int stampMod;
+	
+	// The bloom filter checked before looking up an element, or null if the
+	// set has no filter.
+	private volatile Filter filter;
+	
+	// The bloom filter being built to replace the current one, or null if a
+	// filter is not being built. Added elements must be marked on both.
+	private volatile Filter pending;
+	
+	// The lock held while a filter is being built.
+	private final Object filterLock = new Object();
 
 	
 	/**
@@ -86,15 +259,63 @@ public class ConcurrentSet<E> implements Set<E>
 	 * 		internal hash table will be calculated by finding the next highest
 	 * 		power of 2 number.
 	 */
-	@SuppressWarnings("unchecked")
 	public ConcurrentSet(int minTableSize) 
 	{
+		this(minTableSize, false);
+	}
+	
+	/**
+	 * Instantiates a ConcurrentSet.
+	 * 
+	 * @param minTableSize
+	 * 		The minimum size of the internal hash table. The actual size of the
+	 * 		internal hash table will be calculated by finding the next highest
+	 * 		power of 2 number.
+	 * @param multiset
+	 * 		Whether the set allows an element to be added more than once. If
+	 * 		false adding an element already in the set has no effect.
+	 */
+	public ConcurrentSet(int minTableSize, boolean multiset) 
+	{
+		this(minTableSize, multiset, 0);
+	}
+	
+	/**
+	 * Instantiates a ConcurrentSet.
+	 * 
+	 * @param minTableSize
+	 * 		The minimum size of the internal hash table. The actual size of the
+	 * 		internal hash table will be calculated by finding the next highest
+	 * 		power of 2 number.
+	 * @param multiset
+	 * 		Whether the set allows an element to be added more than once. If
+	 * 		false adding an element already in the set has no effect.
+	 * @param stampedLocks
+	 * 		The minimum number of stamped locks to stripe across the chains, 
+	 * 		or 0 to synchronize on each chain instead. The actual number of 
+	 * 		locks will be a power of 2 no larger than the internal hash table.
+	 */
+	@SuppressWarnings("unchecked")
+	public ConcurrentSet(int minTableSize, boolean multiset, int stampedLocks) 
+	{
+		this.multiset = multiset;
 		this.capacity = powerOf2(minTableSize);
 		this.mod = capacity - 1;
 		this.table = (Node<E>[])Array.newInstance(Node.class, capacity);
 		for (int i = 0; i < capacity; i++) {
 			table[i] = new Node<E>(null, null);
 		}
+		if (stampedLocks > 0) {
+			this.stamps = new StampedLock[Math.min(capacity, powerOf2(stampedLocks))];
+			this.stampMod = stamps.length - 1;
+			for (int i = 0; i < stamps.length; i++) {
+				stamps[i] = new StampedLock();
+			}
+		}
+		else {
+			this.stamps = null;
+			this.stampMod = 0;
+		}
 	}
 	
 	/**
@@ -105,9 +326,9 @@ public class ConcurrentSet<E> implements Set<E>
 	 * @return
 	 * 		A power of 2 number >= x.
 	 */
-	private final int powerOf2(int x) 
+	private static int powerOf2(int x) 
 	{
-		return (Integer.highestOneBit(x - 1) << 1);
+		return (x <= 1 ? 1 : Integer.highestOneBit(x - 1) << 1);
 	}
 	
 	/**
@@ -135,225 +356,1478 @@ public class ConcurrentSet<E> implements Set<E>
 	}
 	
 	/**
-	 * {@inheritDoc}
+	 * Returns whether this set allows an element to be added more than once.
+	 * 
+	 * @return
+	 * 		True if this set is a multiset, false if it holds at most one of
+	 * 		any equivalent elements.
 	 */
-	@Override
-	public boolean add(E e) 
+	public final boolean isMultiset()
 	{
-		if (e != null) {
-			int i = index(e.hashCode());
-			synchronized (table[i]) {
-				table[i].next = new Node<E>(e, table[i].next);
+		return multiset;
+	}
+	
+	/**
+	 * Returns the number of stamped locks striped across the chains.
+	 * 
+	 * @return
+	 * 		The number of stamped locks, or 0 if each chain is synchronized on.
+	 */
+	public final int getStampedLocks()
+	{
+		return (stamps == null ? 0 : stamps.length);
+	}
+	
+	/**
+	 * Returns whether this set checks a bloom filter before looking up an
+	 * element.
+	 * 
+	 * @return
+	 * 		True if this set has a bloom filter, otherwise false.
+	 */
+	public final boolean hasFilter()
+	{
+		return (filter != null);
+	}
+	
+	/**
+	 * Gives this set a bloom filter sized for the given number of elements, 
+	 * replacing any existing filter. The filter is filled with the elements
+	 * currently in the set one chain at a time, and it's not used until it
+	 * has been completely filled.
+	 * 
+	 * @param expectedElements
+	 * 		The number of elements the filter should be sized for. If the set
+	 * 		grows past this size lookups for elements not in the set will
+	 * 		start to be passed through the filter more often.
+	 */
+	public void enableFilter(int expectedElements)
+	{
+		synchronized (filterLock) {
+			buildFilter(new Filter(expectedElements));
+		}
+	}
+	
+	/**
+	 * Rebuilds the bloom filter of this set from the elements currently in
+	 * the set. This clears the bits left behind by removed elements and sizes
+	 * the filter for the current size of the set if it has outgrown it. This
+	 * should be done periodically when elements are frequently removed.
+	 */
+	public void rebuildFilter()
+	{
+		synchronized (filterLock) {
+			Filter current = filter;
+			if (current != null) {
+				buildFilter(new Filter(Math.max(current.expected, size())));
 			}
 		}
-		return (e != null);
 	}
-
+	
 	/**
-	 * {@inheritDoc}
+	 * Removes the bloom filter from this set.
 	 */
-	@Override
-	public boolean addAll(Collection<? extends E> c) 
+	public void disableFilter()
 	{
-		boolean added = false;
-		for (E e : c) {
-			added |= add(e);
+		synchronized (filterLock) {
+			filter = null;
 		}
-		return added;
 	}
 	
 	/**
-	 * {@inheritDoc}
+	 * Fills the given filter with the elements currently in the set and then
+	 * makes it the filter of the set. The filter lock must be held by the
+	 * invoking thread.
+	 * 
+	 * @param next
+	 * 		The filter to fill.
 	 */
-	@Override
-	public void clear() 
+	private void buildFilter(Filter next)
 	{
-		for (int i = 0; i < capacity; i++){ 
-			synchronized (table[i]) {
-				table[i].next = null;
+		// Elements added after this is visible are marked by the adder. An 
+		// adder marks while holding the chain lock, so when a chain is walked
+		// below every element on it or added to it later gets marked.
+		pending = next;
+		for (int i = 0; i < capacity; i++) {
+			if (stamps == null) {
+				synchronized (table[i]) {
+					mark(i, next);
+				}
+			}
+			else {
+				StampedLock lock = stamps[i & stampMod];
+				long stamp = lock.readLock();
+				try {
+					mark(i, next);
+				}
+				finally {
+					lock.unlockRead(stamp);
+				}
 			}
 		}
+		filter = next;
+		pending = null;
 	}
 	
 	/**
-	 * {@inheritDoc}
+	 * Marks every element on the chain at the given index of the table on 
+	 * the given filter. The lock for the chain must be held by the invoking
+	 * thread.
+	 * 
+	 * @param i
+	 * 		The index of the chain in the table.
+	 * @param f
+	 * 		The filter to mark.
 	 */
-	@Override
-	public boolean contains(Object o) 
+	private void mark(int i, Filter f)
 	{
-		if (o != null) {
-			int i = index(o.hashCode());
-			synchronized (table[i]) {
-				Node<E> c = table[i].next;
-				while (c != null) {
-					if (c.element == o || c.element.equals(o)) {
-						return true;
-					}
-					c = c.next;
-				}
-			} 
+		for (Node<E> c = table[i].next; c != null; c = c.next) {
+			f.add(c.element.hashCode());
 		}
-		return false;
 	}
-
 	
 	/**
-	 * {@inheritDoc}
+	 * Marks the given element on the filter being built and on the current
+	 * filter. The lock for the chain the element is being added to must be
+	 * held by the invoking thread.
+	 * 
+	 * @param e
+	 * 		The element being added.
 	 */
-	@Override
-	public boolean containsAll(Collection<?> c) 
+	private void mark(E e)
 	{
-		for (Object o : c) {
-			if (!contains(o)) {
-				return false;
-			}
+		// The filter being built is read first. A builder publishes the filter
+		// before it clears the pending filter, so if the pending filter has
+		// already been cleared the filter read after it is the new one.
+		Filter p = pending;
+		if (p != null) {
+			p.add(e.hashCode());
+		}
+		Filter f = filter;
+		if (f != null && f != p) {
+			f.add(e.hashCode());
 		}
-		return true;
 	}
-
 	
 	/**
-	 * {@inheritDoc}
+	 * Returns whether the given object is definitely not in the set according
+	 * to the filter. If the set has no filter this returns false.
+	 * 
+	 * @param o
+	 * 		The object to check.
+	 * @return
+	 * 		True if the object is definitely not in the set.
+	 */
+	private boolean filtered(Object o)
+	{
+		Filter f = filter;
+		return (f != null && !f.mightContain(o.hashCode()));
+	}
+	
+	/**
+	 * Adds the given element to the set. If this set is not a multiset and an
+	 * equivalent element already exists in the set then this has no effect
+	 * and false is returned.
+	 * 
+	 * @param e
+	 * 		The element to add.
+	 * @return
+	 * 		True if the element was added, otherwise false.
 	 */
 	@Override
-	public boolean remove(Object o) 
+	public boolean add(E e) 
 	{
-		if (o != null) {
-			int i = index(o.hashCode());
+		return add(e, !multiset);
+	}
+	
+	/**
+	 * Adds the given element to the set only if an equivalent element does 
+	 * not already exist in the set. The check and the add are done atomically
+	 * regardless of whether this set is a multiset.
+	 * 
+	 * @param e
+	 * 		The element to add.
+	 * @return
+	 * 		True if the element was added, false if it already existed.
+	 */
+	public boolean addIfAbsent(E e)
+	{
+		return add(e, true);
+	}
+	
+	/**
+	 * Adds the given element to the set, optionally checking the chain for
+	 * an equivalent element first.
+	 * 
+	 * @param e
+	 * 		The element to add.
+	 * @param unique
+	 * 		Whether the element should not be added if it already exists.
+	 * @return
+	 * 		True if the element was added, otherwise false.
+	 */
+	private boolean add(E e, boolean unique)
+	{
+		if (e == null) {
+			return false;
+		}
+		int i = index(e.hashCode());
+		boolean added;
+		if (stamps == null) {
 			synchronized (table[i]) {
-				Node<E> p = table[i], n = p.next;
-				while (n != null) {
-					if (n.element == o || n.element.equals(o)) {
-						p.next = n.next;
-						return true;
-					}
-					p = n;
-					n = n.next;
-				}
+				added = link(i, e, unique);
 			}
 		}
-		return false;
+		else {
+			StampedLock lock = stamps[i & stampMod];
+			long stamp = lock.writeLock();
+			try {
+				added = link(i, e, unique);
+			}
+			finally {
+				lock.unlockWrite(stamp);
+			}
+		}
+		if (added) {
+			count.increment();
+		}
+		return added;
 	}
 	
 	/**
-	 * Removes all objects from this set that are equivalent to the given item.
+	 * Links a new node holding the given element to the front of the chain at
+	 * the given index of the table. The lock for the chain must be held by 
+	 * the invoking thread.
 	 * 
-	 * @param o
-	 * 		The object to completely remove.
+	 * @param i
+	 * 		The index of the chain in the table.
+	 * @param e
+	 * 		The element to add.
+	 * @param unique
+	 * 		Whether the element should not be added if it already exists.
+	 * @return
+	 * 		True if the element was added, otherwise false.
 	 */
-	public void purge(Object o)
+	private boolean link(int i, E e, boolean unique)
 	{
-		while (remove(o)) {
-			// Do nothing, just wait for all instances to be removed.
+		if (unique && find(table[i].next, e) != null) {
+			return false;
 		}
+		mark(e);
+		table[i].next = new Node<E>(e, table[i].next);
+		return true;
 	}
-
+	
 	/**
-	 * {@inheritDoc}
+	 * Returns the first node in the chain that holds an element equivalent
+	 * to the given object.
+	 * 
+	 * @param c
+	 * 		The first node in the chain to search.
+	 * @param o
+	 * 		The object to search for.
+	 * @return
+	 * 		The node found or null if none exist.
 	 */
-	@Override
-	public boolean removeAll(Collection<?> c) 
+	private Node<E> find(Node<E> c, Object o)
 	{
-		boolean removed = false;
-		for (Object o : c) {
-			removed |= remove(o);
+		while (c != null) {
+			if (c.element == o || c.element.equals(o)) {
+				return c;
+			}
+			c = c.next;
 		}
-		return removed;
+		return null;
 	}
 
 	/**
 	 * {@inheritDoc}
 	 */
 	@Override
-	public boolean retainAll(Collection<?> c) 
+	public boolean addAll(Collection<? extends E> c) 
 	{
-		boolean retained = false;
-		for (int i = 0; i < capacity; i++) {
-			synchronized (table[i]) {
-				Node<E> p = table[i], n = p.next;
-				while (n != null) {
-					if (!c.contains(n.element)) {
-						p.next = n.next;
-						retained = true;
-					}
-					else {
-						p = n;
-					}
-					n = n.next;
+		return (addAll(c.toArray()) > 0);
+	}
+	
+	/**
+	 * Adds the non-null items in the given array to this set, locking each
+	 * chain once.
+	 * 
+	 * @param items
+	 * 		The items to add.
+	 * @return
+	 * 		The number of items added.
+	 */
+	private int addAll(Object[] items)
+	{
+		long[] keys = groupByChain(items);
+		int added = 0;
+		for (int k = 0; k < keys.length;) {
+			int i = chainOf(keys[k]);
+			int end = endOfChain(keys, k);
+			if (stamps == null) {
+				synchronized (table[i]) {
+					added += splice(i, items, keys, k, end);
+				}
+			}
+			else {
+				StampedLock lock = stamps[i & stampMod];
+				long stamp = lock.writeLock();
+				try {
+					added += splice(i, items, keys, k, end);
+				}
+				finally {
+					lock.unlockWrite(stamp);
 				}
 			}
+			k = end;
 		}
-		return retained;
+		count.add(added);
+		return added;
 	}
 	
 	/**
-	 * {@inheritDoc}
+	 * Links the grouped items which belong on the chain at the given index 
+	 * of the table together and then splices them onto the front of the 
+	 * chain. The lock for the chain must be held by the invoking thread.
+	 * 
+	 * @param i
+	 * 		The index of the chain in the table.
+	 * @param items
+	 * 		The items being added.
+	 * @param keys
+	 * 		The grouping keys of the items.
+	 * @param start
+	 * 		The index of the first key on the chain.
+	 * @param end
+	 * 		The index after the last key on the chain.
+	 * @return
+	 * 		The number of items added.
 	 */
-	@Override
-	public int size() 
+	@SuppressWarnings("unchecked")
+	private int splice(int i, Object[] items, long[] keys, int start, int end)
 	{
-		return toList().size();
+		Node<E> first = null, last = null;
+		int added = 0;
+		for (int j = start; j < end; j++) {
+			E e = (E)items[itemOf(keys[j])];
+			if (!multiset && (find(table[i].next, e) != null || find(first, e) != null)) {
+				continue;
+			}
+			mark(e);
+			first = new Node<E>(e, first);
+			if (last == null) {
+				last = first;
+			}
+			added++;
+		}
+		if (first != null) {
+			last.next = table[i].next;
+			table[i].next = first;
+		}
+		return added;
 	}
-
+	
 	/**
-	 * {@inheritDoc}
+	 * Sorts the non-null items in the given array by the index of the chain 
+	 * they belong on. Each key returned holds the index of the chain in its 
+	 * upper 32 bits and the index of the item in the array in its lower 32
+	 * bits, so items on the same chain are adjacent and in their original
+	 * order.
+	 * 
+	 * @param items
+	 * 		The items to group.
+	 * @return
+	 * 		The sorted keys.
 	 */
-	@Override
-	public boolean isEmpty() 
+	private long[] groupByChain(Object[] items)
 	{
-		return toList().isEmpty();
+		long[] keys = new long[items.length];
+		int n = 0;
+		for (int j = 0; j < items.length; j++) {
+			if (items[j] != null) {
+				keys[n++] = ((long)index(items[j].hashCode()) << 32) | j;
+			}
+		}
+		if (n < keys.length) {
+			keys = Arrays.copyOf(keys, n);
+		}
+		Arrays.sort(keys);
+		return keys;
 	}
 	
 	/**
-	 * {@inheritDoc}
+	 * Returns the index of the chain in the given grouping key.
+	 * 
+	 * @param key
+	 * 		The grouping key.
+	 * @return
+	 * 		The index of the chain in the table.
 	 */
-	@Override
-	public Iterator<E> iterator() 
+	private static int chainOf(long key)
 	{
-		return toList().iterator();
+		return (int)(key >>> 32);
 	}
 	
 	/**
-	 * {@inheritDoc}
+	 * Returns the index of the item in the given grouping key.
+	 * 
+	 * @param key
+	 * 		The grouping key.
+	 * @return
+	 * 		The index of the item in the grouped array.
 	 */
-	@Override
-	public Object[] toArray() 
+	private static int itemOf(long key)
 	{
-		return toList().toArray();
+		return (int)key;
 	}
-
+	
+	/**
+	 * Returns the index after the last key which is on the same chain as the
+	 * key at the given index.
+	 * 
+	 * @param keys
+	 * 		The sorted grouping keys.
+	 * @param k
+	 * 		The index of the first key on the chain.
+	 * @return
+	 * 		The index after the last key on the chain.
+	 */
+	private static int endOfChain(long[] keys, int k)
+	{
+		int chain = chainOf(keys[k]);
+		int end = k + 1;
+		while (end < keys.length && chainOf(keys[end]) == chain) {
+			end++;
+		}
+		return end;
+	}
+	
 	/**
 	 * {@inheritDoc}
 	 */
 	@Override
-	public <T> T[] toArray(T[] a) 
+	public void clear() 
 	{
-		return toList().toArray(a);
+		for (int i = 0; i < capacity; i++){ 
+			int removed;
+			if (stamps == null) {
+				synchronized (table[i]) {
+					removed = clear(i);
+				}
+			}
+			else {
+				StampedLock lock = stamps[i & stampMod];
+				long stamp = lock.writeLock();
+				try {
+					removed = clear(i);
+				}
+				finally {
+					lock.unlockWrite(stamp);
+				}
+			}
+			count.add(-removed);
+		}
 	}
-
 	
 	/**
-	 * Returns the contents of this set as a list. The built list is a snapshot
-	 * of the set at the time of invocation, therefore if the list is going
-	 * to be iterated in any fashion some to all of its elements may no longer
-	 * actually exist in the set.
+	 * Removes every node from the chain at the given index of the table. The
+	 * lock for the chain must be held by the invoking thread.
 	 * 
+	 * @param i
+	 * 		The index of the chain in the table.
 	 * @return
-	 * 		The reference to the list of elements in this set.
+	 * 		The number of nodes removed.
+	 */
+	private int clear(int i)
+	{
+		int removed = 0;
+		for (Node<E> c = table[i].next; c != null; c = c.next) {
+			removed++;
+		}
+		table[i].next = null;
+		return removed;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public boolean contains(Object o) 
+	{
+		if (o != null && !filtered(o)) {
+			int i = index(o.hashCode());
+			if (stamps == null) {
+				synchronized (table[i]) {
+					return (find(table[i].next, o) != null);
+				}
+			}
+			StampedLock lock = stamps[i & stampMod];
+			long stamp = lock.tryOptimisticRead();
+			if (stamp != 0) {
+				boolean found = (find(table[i].next, o) != null);
+				if (lock.validate(stamp)) {
+					return found;
+				}
+			}
+			stamp = lock.readLock();
+			try {
+				return (find(table[i].next, o) != null);
+			}
+			finally {
+				lock.unlockRead(stamp);
+			}
+		}
+		return false;
+	}
+
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public boolean containsAll(Collection<?> c) 
+	{
+		Object[] items = c.toArray();
+		long[] keys = groupByChain(items);
+		if (keys.length < items.length) {
+			// A null item can never be in the set.
+			return false;
+		}
+		for (int j = 0; j < items.length; j++) {
+			if (filtered(items[j])) {
+				return false;
+			}
+		}
+		for (int k = 0; k < keys.length;) {
+			int i = chainOf(keys[k]);
+			int end = endOfChain(keys, k);
+			boolean found;
+			if (stamps == null) {
+				synchronized (table[i]) {
+					found = findAll(i, items, keys, k, end);
+				}
+			}
+			else {
+				StampedLock lock = stamps[i & stampMod];
+				long stamp = lock.readLock();
+				try {
+					found = findAll(i, items, keys, k, end);
+				}
+				finally {
+					lock.unlockRead(stamp);
+				}
+			}
+			if (!found) {
+				return false;
+			}
+			k = end;
+		}
+		return true;
+	}
+	
+	/**
+	 * Returns whether all of the grouped items which belong on the chain at 
+	 * the given index of the table exist on the chain. The lock for the chain
+	 * must be held by the invoking thread.
+	 * 
+	 * @param i
+	 * 		The index of the chain in the table.
+	 * @param items
+	 * 		The items being searched for.
+	 * @param keys
+	 * 		The grouping keys of the items.
+	 * @param start
+	 * 		The index of the first key on the chain.
+	 * @param end
+	 * 		The index after the last key on the chain.
+	 * @return
+	 * 		True if all items exist on the chain, otherwise false.
+	 */
+	private boolean findAll(int i, Object[] items, long[] keys, int start, int end)
+	{
+		for (int j = start; j < end; j++) {
+			if (find(table[i].next, items[itemOf(keys[j])]) == null) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public boolean remove(Object o) 
+	{
+		if (o != null) {
+			int i = index(o.hashCode());
+			boolean removed;
+			if (stamps == null) {
+				synchronized (table[i]) {
+					removed = unlink(i, o);
+				}
+			}
+			else {
+				StampedLock lock = stamps[i & stampMod];
+				long stamp = lock.writeLock();
+				try {
+					removed = unlink(i, o);
+				}
+				finally {
+					lock.unlockWrite(stamp);
+				}
+			}
+			if (removed) {
+				count.decrement();
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Unlinks the first node holding an element equivalent to the given 
+	 * object from the chain at the given index of the table. The lock for 
+	 * the chain must be held by the invoking thread.
+	 * 
+	 * @param i
+	 * 		The index of the chain in the table.
+	 * @param o
+	 * 		The object to remove.
+	 * @return
+	 * 		True if a node was unlinked, otherwise false.
+	 */
+	private boolean unlink(int i, Object o)
+	{
+		Node<E> p = table[i], n = p.next;
+		while (n != null) {
+			if (n.element == o || n.element.equals(o)) {
+				p.next = n.next;
+				return true;
+			}
+			p = n;
+			n = n.next;
+		}
+		return false;
+	}
+	
+	/**
+	 * Removes the exact node from the chain at the given index of the table. 
+	 * If the node has already been removed this has no effect.
+	 * 
+	 * @param i
+	 * 		The index of the chain in the table.
+	 * @param node
+	 * 		The node to remove.
+	 * @return
+	 * 		True if the node was removed, false if it no longer exists.
+	 */
+	private boolean remove(int i, Node<E> node)
+	{
+		boolean removed;
+		if (stamps == null) {
+			synchronized (table[i]) {
+				removed = unlink(i, node);
+			}
+		}
+		else {
+			StampedLock lock = stamps[i & stampMod];
+			long stamp = lock.writeLock();
+			try {
+				removed = unlink(i, node);
+			}
+			finally {
+				lock.unlockWrite(stamp);
+			}
+		}
+		if (removed) {
+			count.decrement();
+		}
+		return removed;
+	}
+	
+	/**
+	 * Unlinks the exact node from the chain at the given index of the table.
+	 * The lock for the chain must be held by the invoking thread.
+	 * 
+	 * @param i
+	 * 		The index of the chain in the table.
+	 * @param node
+	 * 		The node to unlink.
+	 * @return
+	 * 		True if the node was unlinked, false if it no longer exists.
+	 */
+	private boolean unlink(int i, Node<E> node)
+	{
+		Node<E> p = table[i], n = p.next;
+		while (n != null) {
+			if (n == node) {
+				p.next = n.next;
+				return true;
+			}
+			p = n;
+			n = n.next;
+		}
+		return false;
+	}
+	
+	/**
+	 * Removes all objects from this set that are equivalent to the given item.
+	 * This is done in a single pass over the chain the item exists on.
+	 * 
+	 * @param o
+	 * 		The object to completely remove.
+	 */
+	public void purge(Object o)
+	{
+		if (o != null) {
+			final Object target = o;
+			removeIf(index(o.hashCode()), new Predicate<E>() {
+				public boolean test(E e) {
+					return (e == target || e.equals(target));
+				}
+			});
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public boolean removeAll(Collection<?> c) 
+	{
+		Object[] items = c.toArray();
+		long[] keys = groupByChain(items);
+		int removed = 0;
+		for (int k = 0; k < keys.length;) {
+			int i = chainOf(keys[k]);
+			int end = endOfChain(keys, k);
+			if (stamps == null) {
+				synchronized (table[i]) {
+					removed += unlinkAll(i, items, keys, k, end);
+				}
+			}
+			else {
+				StampedLock lock = stamps[i & stampMod];
+				long stamp = lock.writeLock();
+				try {
+					removed += unlinkAll(i, items, keys, k, end);
+				}
+				finally {
+					lock.unlockWrite(stamp);
+				}
+			}
+			k = end;
+		}
+		count.add(-removed);
+		return (removed > 0);
+	}
+	
+	/**
+	 * Unlinks a node for each of the grouped items which belong on the chain
+	 * at the given index of the table. The lock for the chain must be held by
+	 * the invoking thread.
+	 * 
+	 * @param i
+	 * 		The index of the chain in the table.
+	 * @param items
+	 * 		The items being removed.
+	 * @param keys
+	 * 		The grouping keys of the items.
+	 * @param start
+	 * 		The index of the first key on the chain.
+	 * @param end
+	 * 		The index after the last key on the chain.
+	 * @return
+	 * 		The number of nodes unlinked.
+	 */
+	private int unlinkAll(int i, Object[] items, long[] keys, int start, int end)
+	{
+		int removed = 0;
+		for (int j = start; j < end; j++) {
+			if (unlink(i, items[itemOf(keys[j])])) {
+				removed++;
+			}
+		}
+		return removed;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public boolean retainAll(final Collection<?> c) 
+	{
+		return removeIf(new Predicate<E>() {
+			public boolean test(E e) {
+				return !c.contains(e);
+			}
+		});
+	}
+	
+	/**
+	 * Removes all elements from this set which satisfy the given filter. Each
+	 * chain is locked one at a time while its elements are tested.
+	 * 
+	 * @param filter
+	 * 		The filter which returns true for elements to remove.
+	 * @return
+	 * 		True if any elements were removed.
+	 */
+	@Override
+	public boolean removeIf(Predicate<? super E> filter) 
+	{
+		boolean removed = false;
+		for (int i = 0; i < capacity; i++) {
+			removed |= (removeIf(i, filter) > 0);
+		}
+		return removed;
+	}
+	
+	/**
+	 * Removes all elements from this set which satisfy the given filter. If 
+	 * the set has at least parallelismThreshold elements the chains are 
+	 * divided among the threads of the common fork/join pool, otherwise they
+	 * are processed by the invoking thread. Each chain is locked one at a time
+	 * while its elements are tested.
+	 * 
+	 * @param parallelismThreshold
+	 * 		The number of elements the set must have to process it in parallel.
+	 * @param filter
+	 * 		The filter which returns true for elements to remove.
+	 * @return
+	 * 		True if any elements were removed.
+	 */
+	public boolean removeIf(long parallelismThreshold, final Predicate<? super E> filter)
+	{
+		if (count.sum() < parallelismThreshold) {
+			return removeIf(filter);
+		}
+		final AtomicBoolean removed = new AtomicBoolean();
+		IntStream.range(0, capacity).parallel().forEach(new IntConsumer() {
+			public void accept(int i) {
+				if (removeIf(i, filter) > 0) {
+					removed.set(true);
+				}
+			}
+		});
+		return removed.get();
+	}
+	
+	/**
+	 * Removes all elements on the chain at the given index of the table which
+	 * satisfy the given filter.
+	 * 
+	 * @param i
+	 * 		The index of the chain in the table.
+	 * @param filter
+	 * 		The filter which returns true for elements to remove.
+	 * @return
+	 * 		The number of elements removed.
+	 */
+	private int removeIf(int i, Predicate<? super E> filter)
+	{
+		int removed;
+		if (stamps == null) {
+			synchronized (table[i]) {
+				removed = unlinkIf(i, filter);
+			}
+		}
+		else {
+			StampedLock lock = stamps[i & stampMod];
+			long stamp = lock.writeLock();
+			try {
+				removed = unlinkIf(i, filter);
+			}
+			finally {
+				lock.unlockWrite(stamp);
+			}
+		}
+		count.add(-removed);
+		return removed;
+	}
+	
+	/**
+	 * Unlinks every node on the chain at the given index of the table whose
+	 * element satisfies the given filter. The lock for the chain must be held
+	 * by the invoking thread.
+	 * 
+	 * @param i
+	 * 		The index of the chain in the table.
+	 * @param filter
+	 * 		The filter which returns true for elements to remove.
+	 * @return
+	 * 		The number of nodes unlinked.
+	 */
+	private int unlinkIf(int i, Predicate<? super E> filter)
+	{
+		int removed = 0;
+		Node<E> p = table[i], n = p.next;
+		while (n != null) {
+			if (filter.test(n.element)) {
+				p.next = n.next;
+				removed++;
+			}
+			else {
+				p = n;
+			}
+			n = n.next;
+		}
+		return removed;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int size() 
+	{
+		long sum = count.sum();
+		return (int)Math.max(0, Math.min(sum, Integer.MAX_VALUE));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public boolean isEmpty() 
+	{
+		return (count.sum() <= 0);
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public Iterator<E> iterator() 
+	{
+		return new SetIterator();
+	}
+	
+	/**
+	 * Returns a spliterator over the elements of this set. The spliterator 
+	 * walks the chains in place like the iterator, and splits by dividing the
+	 * range of chains it has left to walk.
+	 * 
+	 * @return
+	 * 		A new spliterator over the entire table.
+	 */
+	@Override
+	public Spliterator<E> spliterator() 
+	{
+		return new SetSpliterator(0, capacity, count.sum());
+	}
+	
+	/**
+	 * Performs the given action on every element in this set.
+	 * 
+	 * @param action
+	 * 		The action to perform.
+	 */
+	@Override
+	public void forEach(Consumer<? super E> action) 
+	{
+		for (int i = 0; i < capacity; i++) {
+			for (Node<E> c = table[i].next; c != null; c = c.next) {
+				action.accept(c.element);
+			}
+		}
+	}
+	
+	/**
+	 * Performs the given action on every element in this set. If the set has 
+	 * at least parallelismThreshold elements the chains are divided among the 
+	 * threads of the common fork/join pool, otherwise they are walked by the 
+	 * invoking thread. The action may be invoked concurrently.
+	 * 
+	 * @param parallelismThreshold
+	 * 		The number of elements the set must have to process it in parallel.
+	 * @param action
+	 * 		The action to perform.
+	 */
+	public void forEach(long parallelismThreshold, Consumer<? super E> action)
+	{
+		if (count.sum() < parallelismThreshold) {
+			forEach(action);
+		}
+		else {
+			StreamSupport.stream(spliterator(), true).forEach(action);
+		}
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public Object[] toArray() 
+	{
+		return toList().toArray();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public <T> T[] toArray(T[] a) 
+	{
+		return toList().toArray(a);
+	}
+
+	
+	/**
+	 * Returns the contents of this set as a list. The built list is a snapshot
+	 * of the set at the time of invocation, therefore if the list is going
+	 * to be iterated in any fashion some to all of its elements may no longer
+	 * actually exist in the set.
+	 * 
+	 * @return
+	 * 		The reference to the list of elements in this set.
 	 */
 	public List<E> toList() 
 	{
 		ArrayList<E> elements = new ArrayList<E>(capacity);
 		for (int i = 0; i < capacity; i++) {
+			copyChain(i, elements);
+		}
+		return elements;
+	}
+	
+	/**
+	 * Adds the elements on the chain at the given index of the table to the
+	 * given list while holding the lock for the chain.
+	 * 
+	 * @param i
+	 * 		The index of the chain in the table.
+	 * @param elements
+	 * 		The list to add the elements to.
+	 */
+	private void copyChain(int i, List<E> elements)
+	{
+		if (stamps == null) {
 			synchronized (table[i]) {
-				Node<E> c = table[i].next;
-				while (c != null) {
-					elements.add(c.element);
-					c = c.next;
+				copy(i, elements);
+			}
+		}
+		else {
+			StampedLock lock = stamps[i & stampMod];
+			long stamp = lock.readLock();
+			try {
+				copy(i, elements);
+			}
+			finally {
+				lock.unlockRead(stamp);
+			}
+		}
+	}
+	
+	/**
+	 * Writes a snapshot of this set to the given channel. The set is written
+	 * one chain at a time, each chain is copied while its lock is held and 
+	 * then encoded and written after the lock is released, so only one chain
+	 * is ever locked and never while writing. Elements added or removed while
+	 * the snapshot is written may or may not be in the snapshot.
+	 * <p>
+	 * A snapshot starts with a magic number and the capacity of the set, then
+	 * each non-empty chain is written as its index, its number of elements, 
+	 * and the number of bytes that follow, where each element is its encoded
+	 * length followed by its encoded bytes. The snapshot ends with a chain 
+	 * index of -1.
+	 * 
+	 * @param channel
+	 * 		The channel to write the snapshot to.
+	 * @param codec
+	 * 		The codec which encodes the elements.
+	 * @return
+	 * 		The number of elements written.
+	 * @throws IOException
+	 * 		An error occurred writing to the channel.
+	 */
+	public int writeSnapshot(WritableByteChannel channel, Codec<? super E> codec) throws IOException
+	{
+		ByteBuffer buffer = ByteBuffer.allocate(8192);
+		buffer.putInt(SNAPSHOT_MAGIC);
+		buffer.putInt(capacity);
+		
+		ArrayList<E> elements = new ArrayList<E>();
+		int written = 0;
+		for (int i = 0; i < capacity; i++) {
+			elements.clear();
+			copyChain(i, elements);
+			if (elements.isEmpty()) {
+				continue;
+			}
+			int bytes = 0;
+			for (int j = 0; j < elements.size(); j++) {
+				bytes += 4 + codec.sizeOf(elements.get(j));
+			}
+			int needed = CHAIN_HEADER + bytes;
+			if (buffer.remaining() < needed) {
+				drain(channel, buffer);
+				if (buffer.capacity() < needed) {
+					buffer = ByteBuffer.allocate(powerOf2(needed));
+				}
+			}
+			buffer.putInt(i);
+			buffer.putInt(elements.size());
+			buffer.putInt(bytes);
+			for (int j = 0; j < elements.size(); j++) {
+				E e = elements.get(j);
+				int size = codec.sizeOf(e);
+				buffer.putInt(size);
+				int start = buffer.position();
+				codec.encode(e, buffer);
+				if (buffer.position() - start != size) {
+					throw new IllegalStateException("Codec encoded " + (buffer.position() - start) + " bytes for an element of size " + size);
 				}
 			}
+			written += elements.size();
+		}
+		if (buffer.remaining() < 4) {
+			drain(channel, buffer);
+		}
+		buffer.putInt(SNAPSHOT_END);
+		drain(channel, buffer);
+		return written;
+	}
+	
+	/**
+	 * Reads a snapshot written by writeSnapshot from the given channel and 
+	 * adds its elements to this set. Each chain in the snapshot is decoded 
+	 * and then added with a single lock of the chain, and when the set has
+	 * the same capacity as the set the snapshot was taken of every chain in
+	 * the snapshot maps to exactly one chain in this set. If the channel is a
+	 * FileChannel the rest of the file is memory mapped and decoded in place,
+	 * and the position of the channel is moved past the snapshot.
+	 * 
+	 * @param channel
+	 * 		The channel to read the snapshot from.
+	 * @param codec
+	 * 		The codec which decodes the elements.
+	 * @return
+	 * 		The number of elements added to the set.
+	 * @throws IOException
+	 * 		An error occurred reading the channel or the channel does not hold
+	 * 		a valid snapshot.
+	 */
+	public int readSnapshot(ReadableByteChannel channel, Codec<? extends E> codec) throws IOException
+	{
+		if (channel instanceof FileChannel) {
+			FileChannel file = (FileChannel)channel;
+			long start = file.position();
+			long length = file.size() - start;
+			if (length <= Integer.MAX_VALUE) {
+				ByteBuffer map = file.map(FileChannel.MapMode.READ_ONLY, start, length);
+				int added = readSnapshot(map, codec);
+				file.position(start + map.position());
+				return added;
+			}
+		}
+		
+		ByteBuffer buffer = ByteBuffer.allocate(8192);
+		fill(channel, buffer, SNAPSHOT_HEADER);
+		checkHeader(buffer);
+		int added = 0;
+		for (;;) {
+			fill(channel, buffer, 4);
+			int index = buffer.getInt();
+			if (index == SNAPSHOT_END) {
+				break;
+			}
+			fill(channel, buffer, CHAIN_HEADER - 4);
+			int elements = buffer.getInt();
+			int bytes = buffer.getInt();
+			if (bytes < 0) {
+				throw new IOException("Snapshot chain length " + bytes + " is invalid");
+			}
+			if (buffer.capacity() < bytes) {
+				buffer = ByteBuffer.allocate(bytes > (1 << 30) ? bytes : powerOf2(bytes));
+			}
+			fill(channel, buffer, bytes);
+			added += readChain(buffer, elements, codec);
+		}
+		return added;
+	}
+	
+	/**
+	 * Reads a snapshot from the given buffer, leaving the position of the
+	 * buffer after the end of the snapshot.
+	 * 
+	 * @param in
+	 * 		The buffer holding the snapshot.
+	 * @param codec
+	 * 		The codec which decodes the elements.
+	 * @return
+	 * 		The number of elements added to the set.
+	 * @throws IOException
+	 * 		The buffer does not hold a valid snapshot.
+	 */
+	private int readSnapshot(ByteBuffer in, Codec<? extends E> codec) throws IOException
+	{
+		if (in.remaining() < SNAPSHOT_HEADER) {
+			throw new IOException("Snapshot is truncated");
+		}
+		checkHeader(in);
+		int added = 0;
+		for (;;) {
+			if (in.remaining() < 4) {
+				throw new IOException("Snapshot is truncated");
+			}
+			int index = in.getInt();
+			if (index == SNAPSHOT_END) {
+				break;
+			}
+			if (in.remaining() < CHAIN_HEADER - 4) {
+				throw new IOException("Snapshot is truncated");
+			}
+			int elements = in.getInt();
+			int bytes = in.getInt();
+			if (bytes < 0 || in.remaining() < bytes) {
+				throw new IOException("Snapshot is truncated");
+			}
+			ByteBuffer chain = in.slice();
+			chain.limit(bytes);
+			added += readChain(chain, elements, codec);
+			in.position(in.position() + bytes);
+		}
+		return added;
+	}
+	
+	/**
+	 * Reads and validates the header of a snapshot from the given buffer.
+	 * 
+	 * @param in
+	 * 		The buffer to read the header from.
+	 * @throws IOException
+	 * 		The header is not the header of a snapshot.
+	 */
+	private void checkHeader(ByteBuffer in) throws IOException
+	{
+		if (in.getInt() != SNAPSHOT_MAGIC) {
+			throw new IOException("Not a ConcurrentSet snapshot");
+		}
+		// The capacity of the set the snapshot was taken of, elements are 
+		// rehashed on load so any capacity can be restored.
+		in.getInt();
+	}
+	
+	/**
+	 * Decodes the given number of elements from the buffer and adds them to
+	 * the set.
+	 * 
+	 * @param in
+	 * 		The buffer holding exactly the elements of a chain.
+	 * @param elements
+	 * 		The number of elements on the chain.
+	 * @param codec
+	 * 		The codec which decodes the elements.
+	 * @return
+	 * 		The number of elements added to the set.
+	 * @throws IOException
+	 * 		The chain size or the length of an element is invalid, or an 
+	 * 		element could not be decoded.
+	 */
+	private int readChain(ByteBuffer in, int elements, Codec<? extends E> codec) throws IOException
+	{
+		// Every element is preceded by its length, so a chain can't hold more
+		// elements than it has lengths.
+		if (elements < 0 || elements > in.remaining() / 4) {
+			throw new IOException("Snapshot chain size " + elements + " is invalid");
+		}
+		Object[] items = new Object[elements];
+		for (int j = 0; j < elements; j++) {
+			if (in.remaining() < 4) {
+				throw new IOException("Snapshot chain is truncated");
+			}
+			int size = in.getInt();
+			if (size < 0 || size > in.remaining()) {
+				throw new IOException("Snapshot element length " + size + " is invalid");
+			}
+			ByteBuffer element = in.slice();
+			element.limit(size);
+			try {
+				items[j] = codec.decode(element);
+			}
+			catch (BufferUnderflowException e) {
+				throw new IOException("Snapshot element is corrupt", e);
+			}
+			in.position(in.position() + size);
+		}
+		return addAll(items);
+	}
+	
+	/**
+	 * Writes the contents of the given buffer to the channel and clears it.
+	 * 
+	 * @param channel
+	 * 		The channel to write to.
+	 * @param buffer
+	 * 		The buffer to write.
+	 * @throws IOException
+	 * 		An error occurred writing to the channel.
+	 */
+	private static void drain(WritableByteChannel channel, ByteBuffer buffer) throws IOException
+	{
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		buffer.clear();
+	}
+	
+	/**
+	 * Reads exactly the given number of bytes from the channel into the 
+	 * start of the buffer and flips it so the bytes can be read.
+	 * 
+	 * @param channel
+	 * 		The channel to read from.
+	 * @param buffer
+	 * 		The buffer to read into.
+	 * @param bytes
+	 * 		The number of bytes to read.
+	 * @throws IOException
+	 * 		An error occurred reading the channel or the channel ended first.
+	 */
+	private static void fill(ReadableByteChannel channel, ByteBuffer buffer, int bytes) throws IOException
+	{
+		buffer.clear();
+		buffer.limit(bytes);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer) < 0) {
+				throw new IOException("Snapshot is truncated");
+			}
+		}
+		buffer.flip();
+	}
+	
+	/**
+	 * Adds the elements on the chain at the given index of the table to the
+	 * given list. The lock for the chain must be held by the invoking thread.
+	 * 
+	 * @param i
+	 * 		The index of the chain in the table.
+	 * @param elements
+	 * 		The list to add the elements to.
+	 */
+	private void copy(int i, List<E> elements)
+	{
+		for (Node<E> c = table[i].next; c != null; c = c.next) {
+			elements.add(c.element);
+		}
+	}
+	
+	/**
+	 * An iterator which walks the chains of the table in place. Since removal
+	 * only unlinks a node from its predecessor a removed node still points to
+	 * the rest of its chain, so the iterator can never be lost.
+	 * 
+	 * @author Philip Diffenderfer
+	 *
+	 */
+	private class SetIterator implements Iterator<E>
+	{
+		// The index of the chain the next node is on.
+		private int index = -1;
+		// The next node to return.
+		private Node<E> next;
+		// The index of the chain the last returned node is on.
+		private int lastIndex;
+		// The last node returned.
+		private Node<E> last;
+		
+		public SetIterator() {
+			advance();
+		}
+		private void advance() {
+			if (next != null) {
+				next = next.next;
+			}
+			while (next == null && ++index < capacity) {
+				next = table[index].next;
+			}
+		}
+		public boolean hasNext() {
+			return (next != null);
+		}
+		public E next() {
+			if (next == null) {
+				throw new NoSuchElementException();
+			}
+			last = next;
+			lastIndex = index;
+			advance();
+			return last.element;
+		}
+		public void remove() {
+			if (last == null) {
+				throw new IllegalStateException();
+			}
+			ConcurrentSet.this.remove(lastIndex, last);
+			last = null;
+		}
+	}
+	
+	/**
+	 * A spliterator which walks a range of chains in the table in place.
+	 * 
+	 * @author Philip Diffenderfer
+	 *
+	 */
+	private class SetSpliterator implements Spliterator<E>
+	{
+		// The index of the next chain to walk.
+		private int index;
+		// The index after the last chain to walk.
+		private final int end;
+		// The next node to return on the current chain.
+		private Node<E> next;
+		// The estimated number of elements left.
+		private long estimate;
+		
+		public SetSpliterator(int index, int end, long estimate) {
+			this.index = index;
+			this.end = end;
+			this.estimate = estimate;
+		}
+		public boolean tryAdvance(Consumer<? super E> action) {
+			while (next == null) {
+				if (index >= end) {
+					return false;
+				}
+				next = table[index++].next;
+			}
+			E e = next.element;
+			next = next.next;
+			action.accept(e);
+			return true;
+		}
+		public void forEachRemaining(Consumer<? super E> action) {
+			for (; next != null; next = next.next) {
+				action.accept(next.element);
+			}
+			for (; index < end; index++) {
+				for (Node<E> c = table[index].next; c != null; c = c.next) {
+					action.accept(c.element);
+				}
+			}
+		}
+		public Spliterator<E> trySplit() {
+			int middle = (index + end) >>> 1;
+			if (middle <= index) {
+				return null;
+			}
+			estimate >>>= 1;
+			SetSpliterator prefix = new SetSpliterator(index, middle, estimate);
+			index = middle;
+			return prefix;
+		}
+		public long estimateSize() {
+			return estimate;
+		}
+		public int characteristics() {
+			return (multiset ? 0 : DISTINCT) | NONNULL | CONCURRENT;
 		}
-		return elements;
 	}
 
 
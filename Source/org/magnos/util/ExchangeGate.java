@@ -0,0 +1,221 @@
+/* 
+ * NOTICE OF LICENSE
+ * 
+ * This source file is subject to the Open Software License (OSL 3.0) that is 
+ * bundled with this package in the file LICENSE.txt. It is also available 
+ * through the world-wide-web at http://opensource.org/licenses/osl-3.0.php
+ * If you did not receive a copy of the license and are unable to obtain it 
+ * through the world-wide-web, please send an email to pdiffenderfer@gmail.com 
+ * so we can send you a copy immediately. If you use any of this software please
+ * notify me via my website or email, your feedback is much appreciated. 
+ * 
+ * @copyright   Copyright (c) 2011 Magnos Software (http://www.magnos.org)
+ * @license     http://opensource.org/licenses/osl-3.0.php
+ * 				Open Software License (OSL 3.0)
+ */
+
+package org.magnos.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A gate where two threads meet and swap items, each thread deposits its 
+ * item and receives the item of the other thread. This replaces a pair of 
+ * gates used to swap buffers between a producer and a consumer, a swap is a
+ * single compare-and-set of a slot instead of two waits and two opens.
+ * <p>
+ * The first thread to arrive places itself in a lock-free slot and waits, 
+ * the second thread takes the first out of the slot, hands over its item, 
+ * and wakes the first if it had parked. A waiting thread spins for a short 
+ * while before parking since the other thread of a double buffered handoff
+ * usually arrives quickly, on a single processor it only yields. If more 
+ * than two threads exchange on the same gate they are paired in no 
+ * particular order.
+ * 
+ * @author Philip Diffenderfer
+ *
+ * @param <T>
+ * 		The type of item exchanged.
+ */
+public class ExchangeGate<T>
+{
+
+	/**
+	 * A thread waiting in the slot with the item it's offering.
+	 *
+	 * @author Philip Diffenderfer
+	 *
+	 */
+	private static class Node<T>
+	{
+		private final T item;
+		private final Thread thread;
+		private volatile Object match;
+		public Node(T item, Thread thread) {
+			this.item = item;
+			this.thread = thread;
+		}
+	}
+
+	// The match given to a waiting thread when the other thread offered null.
+	private static final Object NULL = new Object();
+
+	// Whether spinning can help, on a single processor it only delays the
+	// thread which would arrive at the gate.
+	private static final boolean MULTIPROCESSOR = (Runtime.getRuntime().availableProcessors() > 1);
+
+	// The number of times a waiting thread checks for a match before parking.
+	private static final int SPINS = 1 << 10;
+
+	// The number of times a waiting thread yields after spinning.
+	private static final int YIELDS = 4;
+
+	// The thread waiting for another to arrive, or null.
+	private final AtomicReference<Node<T>> slot = new AtomicReference<Node<T>>();
+
+
+	/**
+	 * Instantiates a new ExchangeGate.
+	 */
+	public ExchangeGate()
+	{
+	}
+
+	/**
+	 * Returns whether a thread is waiting at the gate for another to arrive.
+	 *
+	 * @return
+	 * 		True if a thread is waiting, otherwise false.
+	 */
+	public boolean isWaiting()
+	{
+		return (slot.get() != null);
+	}
+
+	/**
+	 * Gives the given item to the next thread to exchange and returns its 
+	 * item, waiting indefinitely for another thread to arrive. If the 
+	 * waiting thread is interrupted null is returned and the interrupt 
+	 * status of the thread is kept.
+	 *
+	 * @param item
+	 * 		The item to give to the other thread.
+	 * @return
+	 * 		The item of the other thread.
+	 */
+	public T exchange(T item)
+	{
+		return exchange(item, 0);
+	}
+
+	/**
+	 * Gives the given item to the next thread to exchange and returns its 
+	 * item, waiting for another thread to arrive if necessary. If no thread
+	 * arrives in time or the waiting thread is interrupted null is returned
+	 * and the given item was not given to any thread.
+	 *
+	 * @param item
+	 * 		The item to give to the other thread.
+	 * @param timeout
+	 * 		The maximum amount of time in milliseconds to wait for another
+	 * 		thread, or 0 to wait indefinitely.
+	 * @return
+	 * 		The item of the other thread, or null if no thread arrived.
+	 */
+	public T exchange(T item, long timeout)
+	{
+		Node<T> node = null;
+		for (;;) {
+			Node<T> other = slot.get();
+			if (other != null) {
+				if (slot.compareAndSet(other, null)) {
+					other.match = (item == null ? NULL : item);
+					LockSupport.unpark(other.thread);
+					return other.item;
+				}
+			}
+			else {
+				if (node == null) {
+					node = new Node<T>(item, Thread.currentThread());
+				}
+				if (slot.compareAndSet(null, node)) {
+					return await(node, timeout);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Waits for another thread to take the given node out of the slot and 
+	 * give it a match. The node is taken back out of the slot if the wait 
+	 * times out or is interrupted, unless another thread already took it in
+	 * which case its match is waited for.
+	 *
+	 * @param node
+	 * 		The node of the waiting thread.
+	 * @param timeout
+	 * 		The maximum amount of time in milliseconds to wait, or 0 to wait
+	 * 		indefinitely.
+	 * @return
+	 * 		The item of the other thread, or null if no thread arrived.
+	 */
+	private T await(Node<T> node, long timeout)
+	{
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+		int spins = (MULTIPROCESSOR ? SPINS : 0);
+		int yields = YIELDS;
+		Object match;
+		while ((match = node.match) == null) {
+			if (spins > 0) {
+				spins--;
+				Thread.onSpinWait();
+			}
+			else if (yields > 0) {
+				yields--;
+				Thread.yield();
+			}
+			else if (Thread.interrupted()) {
+				// Ignore interruption, but let it recurse.
+				Thread.currentThread().interrupt();
+				break;
+			}
+			else if (timeout == 0) {
+				LockSupport.park(this);
+			}
+			else {
+				long remaining = deadline - System.nanoTime();
+				if (remaining <= 0) {
+					break;
+				}
+				LockSupport.parkNanos(this, remaining);
+			}
+		}
+		if (match == null) {
+			if (slot.compareAndSet(node, null)) {
+				return null;
+			}
+			// Another thread took the node and is about to give it a match.
+			while ((match = node.match) == null) {
+				Thread.yield();
+			}
+		}
+		return cast(match);
+	}
+
+	/**
+	 * Returns the item of the given match.
+	 *
+	 * @param match
+	 * 		The match given to a waiting thread.
+	 * @return
+	 * 		The item of the other thread.
+	 */
+	@SuppressWarnings("unchecked")
+	private T cast(Object match)
+	{
+		return (match == NULL ? null : (T)match);
+	}
+
+}
@@ -0,0 +1,456 @@
+/* 
+ * NOTICE OF LICENSE
+ * 
+ * This source file is subject to the Open Software License (OSL 3.0) that is 
+ * bundled with this package in the file LICENSE.txt. It is also available 
+ * through the world-wide-web at http://opensource.org/licenses/osl-3.0.php
+ * If you did not receive a copy of the license and are unable to obtain it 
+ * through the world-wide-web, please send an email to pdiffenderfer@gmail.com 
+ * so we can send you a copy immediately. If you use any of this software please
+ * notify me via my website or email, your feedback is much appreciated. 
+ * 
+ * @copyright   Copyright (c) 2011 Magnos Software (http://www.magnos.org)
+ * @license     http://opensource.org/licenses/osl-3.0.php
+ * 				Open Software License (OSL 3.0)
+ */
+
+package org.magnos.util;
+
+import java.lang.reflect.Array;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A thread safe set of objects where each element expires a fixed amount of
+ * time after it was added. This is useful for deduplicating over a sliding
+ * window, an element added again while it exists in the set is rejected and
+ * once it expires it can be added again. Like the ConcurrentSet only the chain
+ * an element exists on is synchronized. New elements are always placed at the
+ * front of their chain, so a chain is ordered from newest to oldest and once
+ * an expired element is found the rest of the chain can be cut off at once.
+ * Expired elements are reclaimed lazily when a lookup runs into them, and on
+ * every add a few chains are swept in a round-robin fashion so the set does
+ * not hold on to expired elements which are never looked up again. The set
+ * never locks more than one chain at a time. The size of the set may include
+ * expired elements which have not been reclaimed yet.
+ *
+ * @author Philip Diffenderfer
+ *
+ * @param <E>
+ * 		The element to contain in the set.
+ */
+public class ExpiringSet<E> extends AbstractSet<E>
+{
+
+	/**
+	 * A node that holds an element, the time it expires, and a pointer.
+	 *
+	 * @author Philip Diffenderfer
+	 *
+	 */
+	private static class Node<T>
+	{
+		private final T element;
+		private final long expires;
+		private volatile Node<T> next;
+		public Node(T element, long expires, Node<T> next) {
+			this.element = element;
+			this.expires = expires;
+			this.next = next;
+		}
+	}
+
+	// The number of chains swept on each add.
+	private static final int SWEEPS_PER_ADD = 2;
+
+	// The table of nodes.
+	private final Node<E>[] table;
+
+	// A value used to calculate the index of an object on the table given
+	// its hashCode. This is essentially the size of the table - 1.
+	private final int mod;
+
+	// The amount of time in nanoseconds an element lives in the set.
+	private final long timeToLive;
+
+	// The index of the next chain to sweep.
+	private final AtomicInteger sweeper = new AtomicInteger();
+
+	// The number of elements in the set, including expired elements which
+	// have not been reclaimed.
+	private final LongAdder count = new LongAdder();
+
+
+	/**
+	 * Instantiates an ExpiringSet with a table size of 32.
+	 *
+	 * @param timeToLive
+	 * 		The amount of time an element lives in the set.
+	 * @param unit
+	 * 		The unit of the time to live.
+	 */
+	public ExpiringSet(long timeToLive, TimeUnit unit)
+	{
+		this(timeToLive, unit, 32);
+	}
+
+	/**
+	 * Instantiates an ExpiringSet.
+	 *
+	 * @param timeToLive
+	 * 		The amount of time an element lives in the set.
+	 * @param unit
+	 * 		The unit of the time to live.
+	 * @param minTableSize
+	 * 		The minimum size of the internal hash table. The actual size of the
+	 * 		internal hash table will be calculated by finding the next highest
+	 * 		power of 2 number.
+	 */
+	@SuppressWarnings("unchecked")
+	public ExpiringSet(long timeToLive, TimeUnit unit, int minTableSize)
+	{
+		int capacity = (minTableSize <= 1 ? 1 : Integer.highestOneBit(minTableSize - 1) << 1);
+		this.timeToLive = unit.toNanos(timeToLive);
+		this.mod = capacity - 1;
+		this.table = (Node<E>[])Array.newInstance(Node.class, capacity);
+		for (int i = 0; i < capacity; i++) {
+			table[i] = new Node<E>(null, 0, null);
+		}
+	}
+
+	/**
+	 * Returns the index in the table an object should go with the given hash.
+	 *
+	 * @param hash
+	 * 		The hash of the object.
+	 * @return
+	 * 		The index in the table.
+	 */
+	private int index(int hash)
+	{
+		return (hash & mod);
+	}
+
+	/**
+	 * Returns the size of the internal hash table.
+	 *
+	 * @return
+	 * 		The size of the internal hash table.
+	 */
+	public int getCapacity()
+	{
+		return table.length;
+	}
+
+	/**
+	 * Returns the amount of time an element lives in the set.
+	 *
+	 * @param unit
+	 * 		The unit to return the time in.
+	 * @return
+	 * 		The amount of time an element lives in the set.
+	 */
+	public long getTimeToLive(TimeUnit unit)
+	{
+		return unit.convert(timeToLive, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Returns whether the given expiration time has passed.
+	 *
+	 * @param expires
+	 * 		The time an element expires.
+	 * @param now
+	 * 		The current time.
+	 * @return
+	 * 		True if the element has expired.
+	 */
+	private static boolean expired(long expires, long now)
+	{
+		return (expires - now <= 0);
+	}
+
+	/**
+	 * Adds the given element to the set if it does not exist or if it has
+	 * expired. The element will expire after the set's time to live.
+	 *
+	 * @param e
+	 * 		The element to add.
+	 * @return
+	 * 		True if the element was added, false if it exists and has not
+	 * 		expired.
+	 */
+	@Override
+	public boolean add(E e)
+	{
+		if (e == null) {
+			return false;
+		}
+		int i = index(e.hashCode());
+		boolean added = false;
+		synchronized (table[i]) {
+			long now = System.nanoTime();
+			if (find(i, e, now) == null) {
+				table[i].next = new Node<E>(e, now + timeToLive, table[i].next);
+				added = true;
+			}
+		}
+		if (added) {
+			count.increment();
+		}
+		sweep(SWEEPS_PER_ADD);
+		return added;
+	}
+
+	/**
+	 * Returns the first unexpired node on the chain at the given index of the
+	 * table which holds an element equivalent to the given object. If an
+	 * expired node is found it and the rest of the chain are cut off. The lock
+	 * for the chain must be held by the invoking thread.
+	 *
+	 * @param i
+	 * 		The index of the chain in the table.
+	 * @param o
+	 * 		The object to search for.
+	 * @param now
+	 * 		The current time.
+	 * @return
+	 * 		The node found or null if none exist.
+	 */
+	private Node<E> find(int i, Object o, long now)
+	{
+		Node<E> p = table[i], n = p.next;
+		while (n != null) {
+			if (expired(n.expires, now)) {
+				truncate(p);
+				return null;
+			}
+			if (n.element == o || n.element.equals(o)) {
+				return n;
+			}
+			p = n;
+			n = n.next;
+		}
+		return null;
+	}
+
+	/**
+	 * Cuts off all nodes after the given node. The lock for the chain must be
+	 * held by the invoking thread.
+	 *
+	 * @param p
+	 * 		The last node to keep on the chain.
+	 */
+	private void truncate(Node<E> p)
+	{
+		int removed = 0;
+		for (Node<E> n = p.next; n != null; n = n.next) {
+			removed++;
+		}
+		p.next = null;
+		count.add(-removed);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public boolean contains(Object o)
+	{
+		if (o == null) {
+			return false;
+		}
+		int i = index(o.hashCode());
+		synchronized (table[i]) {
+			return (find(i, o, System.nanoTime()) != null);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public boolean remove(Object o)
+	{
+		if (o == null) {
+			return false;
+		}
+		int i = index(o.hashCode());
+		synchronized (table[i]) {
+			long now = System.nanoTime();
+			Node<E> p = table[i], n = p.next;
+			while (n != null) {
+				if (expired(n.expires, now)) {
+					truncate(p);
+					return false;
+				}
+				if (n.element == o || n.element.equals(o)) {
+					p.next = n.next;
+					count.decrement();
+					return true;
+				}
+				p = n;
+				n = n.next;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Reclaims the expired elements on the next given number of chains. The
+	 * chains are swept in a round-robin fashion and only one is locked at a
+	 * time. This is invoked on every add, but it can also be invoked
+	 * periodically for sets which are rarely added to.
+	 *
+	 * @param chains
+	 * 		The number of chains to sweep.
+	 */
+	public void sweep(int chains)
+	{
+		for (int k = 0; k < chains; k++) {
+			int i = sweeper.getAndIncrement() & mod;
+			// A chain with nothing on it has nothing to sweep.
+			if (table[i].next != null) {
+				synchronized (table[i]) {
+					reclaim(i, System.nanoTime());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Cuts off the expired nodes on the chain at the given index of the table.
+	 * The lock for the chain must be held by the invoking thread.
+	 *
+	 * @param i
+	 * 		The index of the chain in the table.
+	 * @param now
+	 * 		The current time.
+	 */
+	private void reclaim(int i, long now)
+	{
+		Node<E> p = table[i], n = p.next;
+		while (n != null && !expired(n.expires, now)) {
+			p = n;
+			n = n.next;
+		}
+		if (n != null) {
+			truncate(p);
+		}
+	}
+
+	/**
+	 * Reclaims the expired elements on every chain, only one chain is locked
+	 * at a time.
+	 */
+	public void sweep()
+	{
+		sweep(table.length);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void clear()
+	{
+		for (int i = 0; i < table.length; i++) {
+			synchronized (table[i]) {
+				truncate(table[i]);
+			}
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int size()
+	{
+		long sum = count.sum();
+		return (int)Math.max(0, Math.min(sum, Integer.MAX_VALUE));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public boolean isEmpty()
+	{
+		return (count.sum() <= 0);
+	}
+
+	/**
+	 * Returns an iterator which walks the chains in place and skips expired
+	 * elements. The iterator is weakly consistent.
+	 *
+	 * @return
+	 * 		A new iterator over the unexpired elements.
+	 */
+	@Override
+	public Iterator<E> iterator()
+	{
+		return new SetIterator();
+	}
+
+	/**
+	 * An iterator which walks the chains of the table in place and stops
+	 * walking a chain when it reaches an expired element.
+	 *
+	 * @author Philip Diffenderfer
+	 *
+	 */
+	private class SetIterator implements Iterator<E>
+	{
+		// The time the iterator considers now.
+		private final long now = System.nanoTime();
+		// The index of the chain the next node is on.
+		private int index = -1;
+		// The next node to return.
+		private Node<E> next;
+		// The last node returned.
+		private Node<E> last;
+
+		public SetIterator() {
+			advance();
+		}
+		private void advance() {
+			if (next != null) {
+				next = next.next;
+			}
+			for (;;) {
+				if (next != null && !expired(next.expires, now)) {
+					return;
+				}
+				if (++index >= table.length) {
+					next = null;
+					return;
+				}
+				next = table[index].next;
+			}
+		}
+		public boolean hasNext() {
+			return (next != null);
+		}
+		public E next() {
+			if (next == null) {
+				throw new NoSuchElementException();
+			}
+			last = next;
+			advance();
+			return last.element;
+		}
+		public void remove() {
+			if (last == null) {
+				throw new IllegalStateException();
+			}
+			ExpiringSet.this.remove(last.element);
+			last = null;
+		}
+	}
+
+}
@@ -16,6 +16,16 @@
 
 package org.magnos.util;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
 /**
  * A gate will block invokers until it is opened. Once a gate is opened, all
  * invokers will be notified and their execution will resume. Invokers may also
@@ -26,6 +36,26 @@ package org.magnos.util;
  * open and just resume execution even though the gate is closed. A gate also
  * can hold a given value and waiters can try to acquire that item by waiting
  * for the gate to open before the item is returned.
+ * A gate never uses a monitor, waiting threads push themselves onto a 
+ * lock-free stack and park, and opening the gate takes the whole stack at 
+ * once and unparks each waiter directly. Waiting on an open gate doesn't 
+ * touch the stack at all.
+ * A gate can be reused any number of times. Each time a gate is closed it 
+ * starts a new generation, and a thread waiting on a generation is always 
+ * released when that generation opens even if the gate has been closed again 
+ * before the thread wakes up. Each generation can be opened with its own 
+ * item.
+ * A gate can also be waited on asynchronously, the future returned is placed
+ * on the stack like a waiting thread and is completed when the gate opens, 
+ * so any number of asynchronous waiters don't need any threads. Timeouts of
+ * asynchronous waiters are all handled by a single shared daemon thread.
+ * An adaptive gate is meant for gates which usually open within a few 
+ * microseconds of being waited on. A thread waiting on an adaptive gate 
+ * first spins for a short while, then yields a few times, and only then
+ * parks, which avoids the cost of parking and unparking when the gate opens
+ * quickly. The gate keeps a moving average of how long waiters waited for it
+ * to open and spins for about twice that, and when the average is longer 
+ * than spinning could ever cover waiters park right away.
  *
  * @author Philip Diffenderfer
  *
@@ -35,11 +65,230 @@ package org.magnos.util;
 public class Gate<T>
 {
 
-	// The item the gate is holding behind it.
-	private final T item;
+	/**
+	 * A thread waiting for the gate to open. A waiter is cancelled when it 
+	 * gives up so it can be unlinked from the stack.
+	 * 
+	 * @author Philip Diffenderfer
+	 *
+	 */
+	private static class Waiter
+	{
+		private final Thread thread;
+		private volatile boolean released;
+		private volatile boolean cancelled;
+		private volatile Waiter next;
+		public Waiter(Thread thread) {
+			this.thread = thread;
+		}
+		public void release(Opened<?> opened) {
+			released = true;
+			if (!cancelled) {
+				signal(opened);
+			}
+		}
+		protected void signal(Opened<?> opened) {
+			LockSupport.unpark(thread);
+		}
+	}
+	
+	/**
+	 * A waiter which is told when the gate opens or is woken up instead of
+	 * unparking a thread, used to wait on several gates at once.
+	 * 
+	 * @author Philip Diffenderfer
+	 *
+	 */
+	static abstract class Link extends Waiter
+	{
+		public Link() {
+			super(null);
+		}
+		protected final void signal(Opened<?> opened) {
+			released(opened != null);
+		}
+		
+		/**
+		 * Invoked when the generation the link was placed on opens or is 
+		 * woken up.
+		 * 
+		 * @param opened
+		 * 		True if the generation opened, false if it was woken up.
+		 */
+		protected abstract void released(boolean opened);
+	}
+	
+	/**
+	 * A future waiting for the gate to open. The future is completed either 
+	 * by the thread which releases the waiter or on the waiter's executor, 
+	 * and either the release or the timeout completes it, never both.
+	 * 
+	 * @author Philip Diffenderfer
+	 *
+	 */
+	private static class AsyncWaiter<T> extends Waiter implements Runnable
+	{
+		private final Cancellable<T> items;
+		private final Cancellable<Boolean> flags;
+		private final Executor executor;
+		private final AtomicBoolean claimed = new AtomicBoolean();
+		private volatile ScheduledFuture<?> timeout;
+		private Opened<T> opened;
+		public AsyncWaiter(Cancellable<T> items, Cancellable<Boolean> flags, Executor executor) {
+			super(null);
+			this.items = items;
+			this.flags = flags;
+			this.executor = executor;
+		}
+		@SuppressWarnings("unchecked")
+		protected void signal(Opened<?> opened) {
+			if (claim()) {
+				ScheduledFuture<?> t = timeout;
+				if (t != null) {
+					t.cancel(false);
+				}
+				complete((Opened<T>)opened);
+			}
+		}
+		public boolean claim() {
+			return claimed.compareAndSet(false, true);
+		}
+		public void complete(Opened<T> opened) {
+			this.opened = opened;
+			if (executor == null) {
+				run();
+			}
+			else {
+				try {
+					executor.execute(this);
+				}
+				catch (RuntimeException e) {
+					if (items != null) {
+						items.completeExceptionally(e);
+					}
+					else {
+						flags.completeExceptionally(e);
+					}
+				}
+			}
+		}
+		public void run() {
+			if (items != null) {
+				items.complete(opened != null ? opened.item : null);
+			}
+			else {
+				flags.complete(opened != null);
+			}
+		}
+	}
+	
+	/**
+	 * The future of an asynchronous waiter, which takes the waiter off the
+	 * stack of its generation when the future is cancelled.
+	 * 
+	 * @author Philip Diffenderfer
+	 *
+	 */
+	private static class Cancellable<T> extends CompletableFuture<T>
+	{
+		private volatile Runnable onCancel;
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			boolean cancelled = super.cancel(mayInterruptIfRunning);
+			Runnable r = onCancel;
+			if (cancelled && r != null) {
+				r.run();
+			}
+			return cancelled;
+		}
+	}
+	
+	/**
+	 * Holds the timer shared by all gates for the timeouts of asynchronous
+	 * waiters, it's only created once a timeout is needed.
+	 * 
+	 * @author Philip Diffenderfer
+	 *
+	 */
+	private static class Timer
+	{
+		private static final ScheduledThreadPoolExecutor INSTANCE;
+		static {
+			INSTANCE = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "Gate-Timer");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			INSTANCE.setRemoveOnCancelPolicy(true);
+		}
+	}
 
-	// Whether the gate is open or closed.
-	private volatile boolean closed = true;
+	/**
+	 * Marks a generation as opened and holds the item it was opened with and
+	 * the time it was opened at if the gate is adaptive.
+	 * 
+	 * @author Philip Diffenderfer
+	 *
+	 */
+	private static class Opened<T>
+	{
+		private final T item;
+		private final long time;
+		public Opened(T item, long time) {
+			this.item = item;
+			this.time = time;
+		}
+	}
+
+	/**
+	 * A generation of the gate. The head of a generation is either null, the
+	 * top of the stack of threads waiting for it to open, or an Opened once
+	 * it has been opened. A generation never closes again, closing the gate 
+	 * starts a new generation.
+	 * 
+	 * @author Philip Diffenderfer
+	 *
+	 */
+	private static class Generation<T>
+	{
+		private final long number;
+		private final T item;
+		private final AtomicReference<Object> head = new AtomicReference<Object>();
+		public Generation(long number, T item) {
+			this.number = number;
+			this.item = item;
+		}
+		@SuppressWarnings("unchecked")
+		public Opened<T> opened() {
+			Object h = head.get();
+			return (h instanceof Opened ? (Opened<T>)h : null);
+		}
+	}
+
+	// Whether spinning can help, on a single processor it only delays the
+	// thread which would open the gate.
+	private static final boolean MULTIPROCESSOR = (Runtime.getRuntime().availableProcessors() > 1);
+
+	// The longest amount of time in nanoseconds an adaptive waiter spins.
+	private static final long MAX_SPIN_NANOS = 20000;
+
+	// The number of times an adaptive waiter yields after spinning.
+	private static final int YIELDS = 4;
+
+	// The weight of the newest latency in the moving average, as a shift.
+	private static final int LATENCY_SHIFT = 3;
+
+	// The current generation of the gate.
+	private final AtomicReference<Generation<T>> current;
+
+	// Whether waiters spin and yield before parking.
+	private final boolean adaptive;
+
+	// The moving average of the time in nanoseconds between a thread starting
+	// to wait on an adaptive gate and the gate opening, not counting the time
+	// taken to wake the thread.
+	private volatile long latency = MAX_SPIN_NANOS / 4;
 
 
 	/**
@@ -47,7 +296,7 @@ public class Gate<T>
 	 */
 	public Gate()
 	{
-		this.item = null;
+		this(null);
 	}
 
 	/**
@@ -58,7 +307,47 @@ public class Gate<T>
 	 */
 	public Gate(T item)
 	{
-		this.item = item;
+		this(item, false);
+	}
+
+	/**
+	 * Instantiates a new Gate.
+	 *
+	 * @param item
+	 * 		The item the gate is holding behind it.
+	 * @param adaptive
+	 * 		Whether waiters spin and yield before parking, which is faster when
+	 * 		the gate is expected to open within a few microseconds.
+	 */
+	public Gate(T item, boolean adaptive)
+	{
+		this.current = new AtomicReference<Generation<T>>(new Generation<T>(0, item));
+		this.adaptive = adaptive;
+	}
+
+	/**
+	 * Returns whether waiters spin and yield before parking.
+	 *
+	 * @return
+	 * 		True if the gate is adaptive, otherwise false.
+	 */
+	public boolean isAdaptive()
+	{
+		return adaptive;
+	}
+
+	/**
+	 * Returns the moving average of the time waiters have waited for an 
+	 * adaptive gate to open.
+	 *
+	 * @param unit
+	 * 		The unit to return the time in.
+	 * @return
+	 * 		The average time waiters waited for the gate to open.
+	 */
+	public long getOpenLatency(TimeUnit unit)
+	{
+		return unit.convert(latency, TimeUnit.NANOSECONDS);
 	}
 
 	/**
@@ -70,7 +359,9 @@ public class Gate<T>
 	 */
 	public T get()
 	{
-		return item;
+		Generation<T> gen = current.get();
+		Opened<T> opened = gen.opened();
+		return (opened != null ? opened.item : gen.item);
 	}
 
 	/**
@@ -83,7 +374,7 @@ public class Gate<T>
 	 */
 	public T acquire()
 	{
-		return (await(0) ? item : null);
+		return acquire(0);
 	}
 
 	/**
@@ -100,7 +391,8 @@ public class Gate<T>
 	 */
 	public T acquire(long timeout)
 	{
-		return (await(timeout) ? item : null);
+		Opened<T> opened = await(current.get(), timeout);
+		return (opened != null ? opened.item : null);
 	}
 
 	/**
@@ -112,7 +404,7 @@ public class Gate<T>
 	 */
 	public boolean isClosed()
 	{
-		return closed;
+		return (current.get().opened() == null);
 	}
 
 	/**
@@ -124,18 +416,51 @@ public class Gate<T>
 	 */
 	public boolean isOpen()
 	{
-		return !closed;
+		return (current.get().opened() != null);
+	}
+
+	/**
+	 * Returns the current generation of the gate. The generation starts at 0
+	 * and increases by one each time an open gate is closed.
+	 *
+	 * @return
+	 * 		The current generation of the gate.
+	 */
+	public long generation()
+	{
+		return current.get().number;
+	}
+
+	/**
+	 * Returns the number of threads and asynchronous waiters waiting for the
+	 * current generation of the gate to open. If the gate is being waited on
+	 * the value returned is only an estimate.
+	 *
+	 * @return
+	 * 		The number of waiters.
+	 */
+	public int getWaiting()
+	{
+		Object h = current.get().head.get();
+		int count = 0;
+		if (h instanceof Waiter) {
+			for (Waiter w = (Waiter)h; w != null; w = w.next) {
+				if (!w.cancelled && !w.released) {
+					count++;
+				}
+			}
+		}
+		return count;
 	}
 
 	/**
 	 * Waits an indefinite amount of time for the gate to open and returns
-	 * whether the gate is now open. The invoking thread may be awaken
-	 * (another thread invokes wake-up) before the gate is opened. When this
-	 * method returns the gate could toggle openness making the value returned
-	 * unreliable.
+	 * whether the gate opened. The invoking thread may be awaken (another 
+	 * thread invokes wake-up) before the gate is opened. The gate may have 
+	 * been closed again by the time this method returns.
 	 *
 	 * @return
-	 * 		True if the gate is currently open, otherwise false.
+	 * 		True if the generation of the gate waited on opened, otherwise false.
 	 */
 	public boolean await()
 	{
@@ -144,33 +469,387 @@ public class Gate<T>
 
 	/**
 	 * Waits a maximum amount of time for the gate to open and returns
-	 * whether the gate is now open. The invoking thread may be awaken
-	 * (another thread invokes wake-up) before the gate is opened. When this
-	 * method returns the gate could toggle openness making the value returned
-	 * unreliable.
+	 * whether the gate opened. The invoking thread may be awaken (another 
+	 * thread invokes wake-up) before the gate is opened. The gate may have 
+	 * been closed again by the time this method returns.
 	 *
 	 * @param timeout
 	 * 		The maximum amount of time in milliseconds to wait for the gate
 	 * 		to open.
 	 * @return
-	 * 		True if the gate is currently open, otherwise false.
+	 * 		True if the generation of the gate waited on opened, otherwise false.
 	 */
 	public boolean await(long timeout)
 	{
-		if (closed) {
-			synchronized (this) {
-				if (closed) {
-					try {
-						this.wait(timeout);
-					}
-					catch (InterruptedException e) {
-						// Ignore interruption, but let it recurse.
-						Thread.currentThread().interrupt();
+		return (await(current.get(), timeout) != null);
+	}
+
+	/**
+	 * Waits a maximum amount of time for the given generation of the gate to
+	 * open. If the generation has already opened this returns immediately, 
+	 * even if the gate has been closed since.
+	 *
+	 * @param generation
+	 * 		The generation to wait for, typically a value returned by 
+	 * 		generation().
+	 * @param timeout
+	 * 		The maximum amount of time in milliseconds to wait for the 
+	 * 		generation to open.
+	 * @return
+	 * 		True if the generation opened, otherwise false.
+	 * @throws IllegalArgumentException
+	 * 		The generation is later than the current generation.
+	 */
+	public boolean await(long generation, long timeout)
+	{
+		Generation<T> gen = current.get();
+		if (generation > gen.number) {
+			throw new IllegalArgumentException("generation " + generation + " has not started");
+		}
+		return (generation < gen.number || await(gen, timeout) != null);
+	}
+
+	/**
+	 * Waits for the given generation to open.
+	 * 
+	 * @param gen
+	 * 		The generation to wait for.
+	 * @param timeout
+	 * 		The maximum amount of time in milliseconds to wait, or 0 to wait
+	 * 		indefinitely.
+	 * @return
+	 * 		The Opened of the generation, or null if it did not open before the
+	 * 		waiter timed out, was interrupted, or was woken up.
+	 */
+	private Opened<T> await(Generation<T> gen, long timeout)
+	{
+		Opened<T> opened = gen.opened();
+		if (opened != null) {
+			return opened(opened, opened.time);
+		}
+		long start = System.nanoTime();
+		long deadline = start + TimeUnit.MILLISECONDS.toNanos(timeout);
+		if (adaptive) {
+			opened = spin(gen, start, deadline, timeout != 0);
+			if (opened != null) {
+				return opened;
+			}
+		}
+		Waiter w = new Waiter(Thread.currentThread());
+		if (!push(gen, w)) {
+			return opened(gen.opened(), start);
+		}
+		while (!w.released) {
+			if (timeout == 0) {
+				LockSupport.park(this);
+			}
+			else {
+				long remaining = deadline - System.nanoTime();
+				if (remaining <= 0) {
+					break;
+				}
+				LockSupport.parkNanos(this, remaining);
+			}
+			if (Thread.interrupted()) {
+				// Ignore interruption, but let it recurse.
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		if (!w.released) {
+			cancel(gen, w);
+		}
+		return opened(gen.opened(), start);
+	}
+
+	/**
+	 * Spins and then yields waiting for the given generation to open. The 
+	 * amount of time spent spinning is about twice the average time waiters
+	 * have waited for the gate to open, and no time at all if that's longer
+	 * than MAX_SPIN_NANOS or if there is only a single processor.
+	 * 
+	 * @param gen
+	 * 		The generation to wait for.
+	 * @param start
+	 * 		The time the thread started waiting.
+	 * @param deadline
+	 * 		The time the thread stops waiting if the wait is timed.
+	 * @param timed
+	 * 		Whether the wait is timed.
+	 * @return
+	 * 		The Opened of the generation, or null if it did not open.
+	 */
+	private Opened<T> spin(Generation<T> gen, long start, long deadline, boolean timed)
+	{
+		long budget = latency << 1;
+		if (budget > MAX_SPIN_NANOS) {
+			return null;
+		}
+		long end = start + (MULTIPROCESSOR ? budget : 0);
+		if (timed && end - deadline > 0) {
+			end = deadline;
+		}
+		Opened<T> opened;
+		while ((opened = gen.opened()) == null && end - System.nanoTime() > 0) {
+			Thread.onSpinWait();
+		}
+		for (int i = 0; i < YIELDS && opened == null; i++) {
+			Thread.yield();
+			opened = gen.opened();
+		}
+		return opened(opened, start);
+	}
+
+	/**
+	 * Adds the time between a waiter starting to wait and the gate opening 
+	 * to the moving average if the gate is adaptive and the generation 
+	 * opened. The time is taken from when the gate was opened, so the time
+	 * it took to unpark the waiter isn't included and a gate which opens 
+	 * quickly again after always parking goes back to spinning. A generation
+	 * which opened before the waiter started counts as no time at all.
+	 * 
+	 * @param opened
+	 * 		The Opened of the generation, or null if it did not open.
+	 * @param start
+	 * 		The time the waiter started waiting.
+	 * @return
+	 * 		The given Opened.
+	 */
+	private Opened<T> opened(Opened<T> opened, long start)
+	{
+		if (adaptive && opened != null) {
+			long average = latency;
+			long next = average + ((Math.max(0, opened.time - start) - average) >> LATENCY_SHIFT);
+			// Waiters on an open gate don't write to it once the average settles.
+			if (next != average) {
+				latency = next;
+			}
+		}
+		return opened;
+	}
+
+	/**
+	 * Pushes the given waiter onto the stack of waiters of the generation 
+	 * unless the generation has opened.
+	 * 
+	 * @param gen
+	 * 		The generation to wait for.
+	 * @param w
+	 * 		The waiter to push.
+	 * @return
+	 * 		True if the waiter was pushed, false if the generation has opened.
+	 */
+	private boolean push(Generation<T> gen, Waiter w)
+	{
+		for (;;) {
+			Object h = gen.head.get();
+			if (h instanceof Opened) {
+				return false;
+			}
+			w.next = (Waiter)h;
+			if (gen.head.compareAndSet(h, w)) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Marks the given waiter as no longer waiting and unlinks every waiter 
+	 * which has given up from the stack of the generation. A given up waiter
+	 * may be relinked when two adjacent waiters are unlinked at the same time,
+	 * which is harmless since releasing a given up waiter does nothing.
+	 * 
+	 * @param gen
+	 * 		The generation the waiter was waiting for.
+	 * @param w
+	 * 		The waiter which is no longer waiting.
+	 */
+	private void cancel(Generation<T> gen, Waiter w)
+	{
+		w.cancelled = true;
+		Object h = gen.head.get();
+		while (h instanceof Waiter && ((Waiter)h).cancelled) {
+			gen.head.compareAndSet(h, ((Waiter)h).next);
+			h = gen.head.get();
+		}
+		if (h instanceof Waiter) {
+			Waiter p = (Waiter)h, n = p.next;
+			while (n != null) {
+				if (n.cancelled) {
+					p.next = n.next;
+				}
+				else {
+					p = n;
+				}
+				n = n.next;
+			}
+		}
+	}
+
+	/**
+	 * Releases every waiter on the given stack.
+	 * 
+	 * @param h
+	 * 		The top of the stack, may be null.
+	 * @param opened
+	 * 		The Opened of the generation, or null if the waiters are being 
+	 * 		woken up.
+	 */
+	private static void release(Object h, Opened<?> opened)
+	{
+		Waiter w = (Waiter)h;
+		while (w != null) {
+			Waiter next = w.next;
+			w.release(opened);
+			w = next;
+		}
+	}
+	
+	/**
+	 * Returns a future which is completed with the item held by the gate 
+	 * when the gate opens. The future is completed by the thread which opens
+	 * the gate. If the gate is woken up the future is completed with null.
+	 * 
+	 * @return
+	 * 		A new future of the item held by the gate.
+	 */
+	public CompletableFuture<T> acquireAsync()
+	{
+		return acquireAsync(0, null);
+	}
+	
+	/**
+	 * Returns a future which is completed with the item held by the gate 
+	 * when the gate opens. If the gate does not open in time or the gate is
+	 * woken up the future is completed with null. Cancelling the future 
+	 * stops waiting.
+	 * 
+	 * @param timeout
+	 * 		The maximum amount of time in milliseconds to wait for the gate
+	 * 		to open, or 0 to wait indefinitely.
+	 * @param executor
+	 * 		The executor to complete the future on, or null to complete it on 
+	 * 		the thread which opens the gate.
+	 * @return
+	 * 		A new future of the item held by the gate.
+	 */
+	public CompletableFuture<T> acquireAsync(long timeout, Executor executor)
+	{
+		Cancellable<T> future = new Cancellable<T>();
+		awaitAsync(new AsyncWaiter<T>(future, null, executor), timeout);
+		return future;
+	}
+	
+	/**
+	 * Returns a future which is completed with true when the gate opens. The
+	 * future is completed by the thread which opens the gate. If the gate is
+	 * woken up the future is completed with false.
+	 * 
+	 * @return
+	 * 		A new future of whether the gate opened.
+	 */
+	public CompletableFuture<Boolean> awaitAsync()
+	{
+		return awaitAsync(0, null);
+	}
+	
+	/**
+	 * Returns a future which is completed with true when the gate opens. If
+	 * the gate does not open in time or the gate is woken up the future is
+	 * completed with false.
+	 * 
+	 * @param timeout
+	 * 		The maximum amount of time in milliseconds to wait for the gate
+	 * 		to open, or 0 to wait indefinitely.
+	 * @param executor
+	 * 		The executor to complete the future on, or null to complete it on 
+	 * 		the thread which opens the gate.
+	 * @return
+	 * 		A new future of whether the gate opened.
+	 */
+	public CompletableFuture<Boolean> awaitAsync(long timeout, Executor executor)
+	{
+		Cancellable<Boolean> future = new Cancellable<Boolean>();
+		awaitAsync(new AsyncWaiter<T>(null, future, executor), timeout);
+		return future;
+	}
+	
+	/**
+	 * Places the given link on the stack of the current generation.
+	 * 
+	 * @param link
+	 * 		The link to place.
+	 * @return
+	 * 		The generation the link was placed on, or null if the gate is open
+	 * 		and the link was not placed.
+	 */
+	Object link(Link link)
+	{
+		Generation<T> gen = current.get();
+		return (push(gen, link) ? gen : null);
+	}
+	
+	/**
+	 * Removes the given link from the stack of the generation it was placed 
+	 * on, if it's not already released.
+	 * 
+	 * @param generation
+	 * 		The generation returned when the link was placed.
+	 * @param link
+	 * 		The link to remove.
+	 */
+	@SuppressWarnings("unchecked")
+	void unlink(Object generation, Link link)
+	{
+		cancel((Generation<T>)generation, link);
+	}
+	
+	/**
+	 * Places the given asynchronous waiter on the stack of the current 
+	 * generation and schedules its timeout. If the gate is open the waiter 
+	 * is completed immediately.
+	 * 
+	 * @param w
+	 * 		The waiter to place.
+	 * @param timeout
+	 * 		The maximum amount of time in milliseconds to wait for the gate
+	 * 		to open, or 0 to wait indefinitely.
+	 */
+	private void awaitAsync(final AsyncWaiter<T> w, long timeout)
+	{
+		final Generation<T> gen = current.get();
+		if (!push(gen, w)) {
+			w.release(gen.opened());
+			return;
+		}
+		if (timeout > 0) {
+			ScheduledFuture<?> t = Timer.INSTANCE.schedule(new Runnable() {
+				public void run() {
+					if (w.claim()) {
+						cancel(gen, w);
+						w.complete(null);
 					}
 				}
+			}, timeout, TimeUnit.MILLISECONDS);
+			w.timeout = t;
+			// The waiter may have been released before the timeout was set.
+			if (w.claimed.get()) {
+				t.cancel(false);
 			}
 		}
-		return !closed;
+		// A waiter whose future is cancelled gives up its place on the stack.
+		Cancellable<?> future = (w.items != null ? w.items : w.flags);
+		future.onCancel = new Runnable() {
+			public void run() {
+				if (w.claim()) {
+					ScheduledFuture<?> t = w.timeout;
+					if (t != null) {
+						t.cancel(false);
+					}
+					cancel(gen, w);
+				}
+			}
+		};
 	}
 
 	/**
@@ -178,20 +857,46 @@ public class Gate<T>
 	 */
 	public void open()
 	{
-		if (closed) {
-			closed = false;
-			synchronized (this) {
-				this.notifyAll();
+		open(get());
+	}
+
+	/**
+	 * Opens the gate with the given item if its currently closed and notifies
+	 * all waiters. The waiters of the current generation acquire the given
+	 * item.
+	 * 
+	 * @param item
+	 * 		The item the gate holds while this generation is open.
+	 * @return
+	 * 		True if the gate was opened, false if it was already open.
+	 */
+	public boolean open(T item)
+	{
+		Opened<T> opened = new Opened<T>(item, adaptive ? System.nanoTime() : 0L);
+		for (;;) {
+			Generation<T> gen = current.get();
+			Object h = gen.head.get();
+			if (h instanceof Opened) {
+				return false;
+			}
+			if (gen.head.compareAndSet(h, opened)) {
+				release(h, opened);
+				return true;
 			}
 		}
 	}
 
 	/**
-	 * Closes the gate.
+	 * Closes the gate if its open, starting a new generation. Threads still 
+	 * waking up from the previous generation will see it opened.
 	 */
 	public void close()
 	{
-		closed = true;
+		Generation<T> gen = current.get();
+		Opened<T> opened = gen.opened();
+		if (opened != null) {
+			current.compareAndSet(gen, new Generation<T>(gen.number + 1, opened.item));
+		}
 	}
 
 	/**
@@ -199,11 +904,15 @@ public class Gate<T>
 	 */
 	public void wakeup()
 	{
-		if (closed) {
-			synchronized (this) {
-				if (closed) {
-					this.notifyAll();
-				}
+		Generation<T> gen = current.get();
+		for (;;) {
+			Object h = gen.head.get();
+			if (h == null || h instanceof Opened) {
+				return;
+			}
+			if (gen.head.compareAndSet(h, null)) {
+				release(h, null);
+				return;
 			}
 		}
 	}
@@ -0,0 +1,173 @@
+/* 
+ * NOTICE OF LICENSE
+ * 
+ * This source file is subject to the Open Software License (OSL 3.0) that is 
+ * bundled with this package in the file LICENSE.txt. It is also available 
+ * through the world-wide-web at http://opensource.org/licenses/osl-3.0.php
+ * If you did not receive a copy of the license and are unable to obtain it 
+ * through the world-wide-web, please send an email to pdiffenderfer@gmail.com 
+ * so we can send you a copy immediately. If you use any of this software please
+ * notify me via my website or email, your feedback is much appreciated. 
+ * 
+ * @copyright   Copyright (c) 2011 Magnos Software (http://www.magnos.org)
+ * @license     http://opensource.org/licenses/osl-3.0.php
+ * 				Open Software License (OSL 3.0)
+ */
+
+package org.magnos.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Waits on several gates at once with a single thread. A link is placed on 
+ * every gate and all links point to the one waiting thread, which is only 
+ * unparked once the wait is satisfied: when any one of the gates opens, or 
+ * when all of them have opened. Once the wait is over the links left on 
+ * gates which did not open are removed. Like waiting on a single gate, a 
+ * wait on several gates stops when any of the gates is woken up, when the 
+ * waiting thread is interrupted, or when the timeout elapses.
+ * 
+ * @author Philip Diffenderfer
+ *
+ */
+public class Gates
+{
+
+	/**
+	 * The state shared by every link of a composite wait.
+	 * 
+	 * @author Philip Diffenderfer
+	 *
+	 */
+	private static class Composite
+	{
+		private final Thread thread = Thread.currentThread();
+		private final AtomicInteger remaining;
+		private final AtomicInteger first = new AtomicInteger(-1);
+		private volatile boolean woken;
+		public Composite(int remaining) {
+			this.remaining = new AtomicInteger(remaining);
+		}
+		public boolean done() {
+			return (remaining.get() <= 0 || woken);
+		}
+	}
+	
+	/**
+	 * A link placed on one of the gates of a composite wait.
+	 * 
+	 * @author Philip Diffenderfer
+	 *
+	 */
+	private static class CompositeLink extends Gate.Link
+	{
+		private final Composite composite;
+		private final int index;
+		private Object generation;
+		public CompositeLink(Composite composite, int index) {
+			this.composite = composite;
+			this.index = index;
+		}
+		protected void released(boolean opened) {
+			if (opened) {
+				composite.first.compareAndSet(-1, index);
+				if (composite.remaining.decrementAndGet() == 0) {
+					LockSupport.unpark(composite.thread);
+				}
+			}
+			else {
+				composite.woken = true;
+				LockSupport.unpark(composite.thread);
+			}
+		}
+	}
+	
+	/**
+	 * Waits a maximum amount of time for any of the given gates to open.
+	 * 
+	 * @param timeout
+	 * 		The maximum amount of time in milliseconds to wait, or 0 to wait
+	 * 		indefinitely.
+	 * @param gates
+	 * 		The gates to wait on.
+	 * @return
+	 * 		The index of a gate which opened, or -1 if none opened before the 
+	 * 		timeout elapsed, a gate was woken up, or the thread was interrupted.
+	 */
+	public static int awaitAny(long timeout, Gate<?> ... gates)
+	{
+		Composite composite = new Composite(Math.min(1, gates.length));
+		await(composite, timeout, gates);
+		return composite.first.get();
+	}
+	
+	/**
+	 * Waits a maximum amount of time for all of the given gates to open.
+	 * 
+	 * @param timeout
+	 * 		The maximum amount of time in milliseconds to wait, or 0 to wait
+	 * 		indefinitely.
+	 * @param gates
+	 * 		The gates to wait on.
+	 * @return
+	 * 		True if every gate opened, false if the timeout elapsed, a gate was
+	 * 		woken up, or the thread was interrupted first.
+	 */
+	public static boolean awaitAll(long timeout, Gate<?> ... gates)
+	{
+		Composite composite = new Composite(gates.length);
+		await(composite, timeout, gates);
+		return (composite.remaining.get() <= 0);
+	}
+	
+	/**
+	 * Links the composite to every gate, waits until it's done, and then
+	 * removes the links which were not released.
+	 * 
+	 * @param composite
+	 * 		The state of the wait.
+	 * @param timeout
+	 * 		The maximum amount of time in milliseconds to wait, or 0 to wait
+	 * 		indefinitely.
+	 * @param gates
+	 * 		The gates to wait on.
+	 */
+	private static void await(Composite composite, long timeout, Gate<?>[] gates)
+	{
+		CompositeLink[] links = new CompositeLink[gates.length];
+		for (int i = 0; i < gates.length && !composite.done(); i++) {
+			links[i] = new CompositeLink(composite, i);
+			links[i].generation = gates[i].link(links[i]);
+			if (links[i].generation == null) {
+				// The gate is already open.
+				links[i].released(true);
+			}
+		}
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+		while (!composite.done()) {
+			if (timeout == 0) {
+				LockSupport.park(composite);
+			}
+			else {
+				long remaining = deadline - System.nanoTime();
+				if (remaining <= 0) {
+					break;
+				}
+				LockSupport.parkNanos(composite, remaining);
+			}
+			if (Thread.interrupted()) {
+				// Ignore interruption, but let it recurse.
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		for (int i = 0; i < links.length; i++) {
+			if (links[i] != null && links[i].generation != null) {
+				gates[i].unlink(links[i].generation, links[i]);
+			}
+		}
+	}
+	
+}
@@ -16,16 +16,29 @@
 
 package org.magnos.util;
 
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.StampedLock;
 
 /**
  * An efficient reentrant read-write lock on a reference. This class ensures 
  * writes to the referenced value are thread-safe by using the lock and unlock
- * methods. This lock prefers writers over readers, meaning all writes must 
- * finish before reading can occur. Being a reentrant lock the thread which is
+ * methods. This lock prefers writers over readers, a reader never gets ahead
+ * of a writer which is already waiting for the lock, so a steady stream of 
+ * readers can't starve writers. Being a reentrant lock the thread which is
  * holding the lock can call the lock and unlock methods without causing 
- * deadlocking. Writes are on a first come first serve basis.
+ * deadlocking. Writes are on a first come first serve basis, writers and 
+ * blocked readers wait in a single queue in the order they arrived. Reading
+ * is optimistic, a reader reads the value and then checks that no writer 
+ * took the lock in the meantime, so readers never write to shared memory 
+ * unless a writer is active or waiting, in which case they queue for the 
+ * lock without blocking each other.
+ * <p>
+ * Every time the value changes its version is incremented. Each reader can
+ * follow the changes with its own Cursor, which remembers the version the 
+ * reader last saw, and check whether the value changed since or wait for it
+ * to change. Unlike hasNewValue any number of readers can see each change.
  * 
  * <h6>Writing with set</h6>
  * <pre>
@@ -60,6 +73,14 @@ import java.util.concurrent.locks.ReentrantLock;
  * <pre>
  * String value = ref.get();
  * </pre>
+ * <h6>Following changes</h6>
+ * <pre>
+ * LockRef.Cursor cursor = ref.cursor();
+ * while (ref.awaitChange(cursor, 0)) {
+ * 		String value = ref.get();
+ * 		// [handle new value]
+ * }
+ * </pre>
  * 
  * @author Philip Diffenderfer
  *
@@ -68,10 +89,38 @@ import java.util.concurrent.locks.ReentrantLock;
  */
 public class LockRef<E> implements Ref<E>
 {
+
+	/**
+	 * The version of a LockRef a reader last saw. A cursor belongs to a 
+	 * single reader and is not thread-safe.
+	 *
+	 * @author Philip Diffenderfer
+	 *
+	 */
+	public static final class Cursor
+	{
+		private final LockRef<?> ref;
+		private long version;
+		private Cursor(LockRef<?> ref, long version) {
+			this.ref = ref;
+			this.version = version;
+		}
+		public long getVersion() {
+			return version;
+		}
+	}
 	
-	// A write barrier for the reference. This is locked to make readers block 
-	// when a writer is holding a lock.
+	// A write barrier for the reference. This is locked by the writer holding
+	// the write lock so a writer can lock the reference multiple times.
 	private final ReentrantLock barrier = new ReentrantLock();
+
+	// The lock readers validate against. The outermost lock of a writer takes
+	// its write lock, so writers and blocked readers share one queue and 
+	// readers block while a writer is holding a lock.
+	private final StampedLock stamps = new StampedLock();
+
+	// The stamp of the write lock held by the writer holding the barrier.
+	private long writeStamp;
 	
 	// The number of writes currently happening. If this is greater than 1 other
 	// writers are waiting for the first writer to unlock the barrier.
@@ -83,6 +132,13 @@ public class LockRef<E> implements Ref<E>
 	// The value referenced.
 	private volatile E value;
 
+	// The number of times the value has changed, only changed by the writer 
+	// holding the barrier.
+	private volatile long version;
+
+	// The gate opened and closed every time the value changes.
+	private final Gate<Object> changed = new Gate<Object>();
+
 
 	/**
 	 * Instantiates a new Ref with an initial value of null.
@@ -113,7 +169,16 @@ public class LockRef<E> implements Ref<E>
 	public final E lock() 
 	{
 		writes.incrementAndGet();
-		barrier.lock();
+		// Only the outermost lock waits in the queue, after which the barrier
+		// is never contended.
+		if (!barrier.isHeldByCurrentThread()) {
+			long stamp = stamps.writeLock();
+			barrier.lock();
+			writeStamp = stamp;
+		}
+		else {
+			barrier.lock();
+		}
 		return value;
 	}
 
@@ -125,7 +190,12 @@ public class LockRef<E> implements Ref<E>
 	 */
 	public final void unlock() 
 	{
+		boolean outermost = (barrier.getHoldCount() == 1);
+		long stamp = writeStamp;
 		barrier.unlock();
+		if (outermost) {
+			stamps.unlockWrite(stamp);
+		}
 		writes.decrementAndGet();
 	}
 
@@ -141,11 +211,18 @@ public class LockRef<E> implements Ref<E>
 	public final void unlock(E newValue) 
 	{
 		// Only set the value and send the signal if its different.
-		if (newValue != value) {
+		boolean different = (newValue != value);
+		if (different) {
 			value = newValue;
+			version++;
 			writeSignal.send();	
 		}
 		unlock();
+		// Wake the readers waiting for a change once they can read it.
+		if (different) {
+			changed.open();
+			changed.close();
+		}
 	}
 
 	/**
@@ -165,20 +242,33 @@ public class LockRef<E> implements Ref<E>
 
 	/**
 	 * Returns the referred value. If the reference is currently locked this
-	 * method will block until the holding thread unlocks this reference.
+	 * method will block until the holding thread unlocks this reference. When
+	 * no writer is active the value is read optimistically without locking.
 	 *
 	 * @return
 	 * 		The value.
 	 */
 	public final E get() 
 	{
-		// If writing is occurring continue to wait for it to finish. This will
-		// let all writes complete before read occurs.
-		while (writes.get() > 0) {
-			barrier.lock();
-			barrier.unlock();
+		long stamp = stamps.tryOptimisticRead();
+		E current = value;
+		if (writes.get() == 0 && stamps.validate(stamp)) {
+			return current;
+		}
+		// The writer holding the lock reads its own value.
+		if (barrier.isHeldByCurrentThread()) {
+			return value;
+		}
+		// If writing is occurring block until the writer holding the lock and
+		// every writer queued before this reader are finished, the value can't
+		// change while the read lock is held.
+		stamp = stamps.readLock();
+		try {
+			return value;
+		}
+		finally {
+			stamps.unlockRead(stamp);
 		}
-		return value;
 	}
 	
 	/**
@@ -192,5 +282,94 @@ public class LockRef<E> implements Ref<E>
 	{
 		return writeSignal.recieved();
 	}
+
+	/**
+	 * Returns the number of times the value has been set to a new value.
+	 * 
+	 * @return
+	 * 		The current version of the value.
+	 */
+	public final long getVersion()
+	{
+		return version;
+	}
+
+	/**
+	 * Returns a new cursor at the current version, which a reader can use to
+	 * check for or wait for changes made after this call.
+	 * 
+	 * @return
+	 * 		A new cursor for a single reader.
+	 */
+	public final Cursor cursor()
+	{
+		return new Cursor(this, version);
+	}
+
+	/**
+	 * Returns whether the value has been set to a new value since the given
+	 * cursor last saw it, and moves the cursor to the current version.
+	 * 
+	 * @param cursor
+	 * 		The cursor of the reader.
+	 * @return
+	 * 		True if the value changed since the cursor last saw it.
+	 * @throws IllegalArgumentException
+	 * 		The cursor was not created by this reference.
+	 */
+	public final boolean changedSince(Cursor cursor)
+	{
+		if (cursor.ref != this) {
+			throw new IllegalArgumentException("cursor was created by another reference");
+		}
+		long current = version;
+		if (current == cursor.version) {
+			return false;
+		}
+		cursor.version = current;
+		return true;
+	}
+
+	/**
+	 * Waits until the value has been set to a new value since the given 
+	 * cursor last saw it and moves the cursor to the current version, or 
+	 * until a maximum amount of time has elapsed. If the waiting thread is 
+	 * interrupted false is returned and the interrupt status of the thread 
+	 * is kept.
+	 * 
+	 * @param cursor
+	 * 		The cursor of the reader.
+	 * @param timeout
+	 * 		The maximum amount of time in milliseconds to wait for a change, or
+	 * 		0 to wait indefinitely.
+	 * @return
+	 * 		True if the value changed, false if the wait timed out or was 
+	 * 		interrupted.
+	 * @throws IllegalArgumentException
+	 * 		The cursor was not created by this reference.
+	 */
+	public final boolean awaitChange(Cursor cursor, long timeout)
+	{
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+		for (;;) {
+			// The generation is read before the version, so a change after 
+			// the version is read opens a generation at or after this one.
+			long generation = changed.generation();
+			if (changedSince(cursor)) {
+				return true;
+			}
+			long remaining = 0;
+			if (timeout != 0) {
+				long nanos = deadline - System.nanoTime();
+				if (nanos <= 0) {
+					return false;
+				}
+				remaining = TimeUnit.NANOSECONDS.toMillis(nanos + 999999);
+			}
+			if (!changed.await(generation, remaining) && Thread.currentThread().isInterrupted()) {
+				return false;
+			}
+		}
+	}
 	
 }
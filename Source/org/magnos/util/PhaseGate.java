@@ -0,0 +1,536 @@
+/* 
+ * NOTICE OF LICENSE
+ * 
+ * This source file is subject to the Open Software License (OSL 3.0) that is 
+ * bundled with this package in the file LICENSE.txt. It is also available 
+ * through the world-wide-web at http://opensource.org/licenses/osl-3.0.php
+ * If you did not receive a copy of the license and are unable to obtain it 
+ * through the world-wide-web, please send an email to pdiffenderfer@gmail.com 
+ * so we can send you a copy immediately. If you use any of this software please
+ * notify me via my website or email, your feedback is much appreciated. 
+ * 
+ * @copyright   Copyright (c) 2011 Magnos Software (http://www.magnos.org)
+ * @license     http://opensource.org/licenses/osl-3.0.php
+ * 				Open Software License (OSL 3.0)
+ */
+
+package org.magnos.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A reusable barrier where a changing number of parties arrive and advance 
+ * through numbered phases together, which replaces allocating and opening a
+ * Gate for every phase of a staged computation. 
+ * <p>
+ * The phase, the number of registered parties, and the number of parties 
+ * which have not yet arrived are packed into a single atomic value, so 
+ * registering, deregistering, and arriving are each a single compare-and-set
+ * and the last party to arrive advances the phase with that same 
+ * compare-and-set. Parties which wait for a phase to advance park on a 
+ * Gate which is opened and closed each time the phase advances.
+ * <p>
+ * With many parties a single atomic value becomes contended, so gates can be
+ * arranged in a tree where each child gate counts as a single party of its 
+ * parent. A child is registered with its parent while it has parties, and 
+ * once every party of a child has arrived the child arrives at its parent. 
+ * Only the root of a tree advances, every gate in a tree shares the phase of
+ * the root and waits on the root. A party of a child gate may not arrive 
+ * again until the phase has advanced.
+ * <p>
+ * A gate may hold at most 65535 parties and the phase wraps around to 0 
+ * after Integer.MAX_VALUE.
+ * 
+ * @author Philip Diffenderfer
+ *
+ */
+public class PhaseGate
+{
+
+	// The maximum number of parties a gate may hold.
+	private static final int MAX_PARTIES = 0xFFFF;
+
+	// The maximum phase before it wraps around to 0.
+	private static final int MAX_PHASE = Integer.MAX_VALUE;
+
+	// The number of bits the number of parties are shifted in the state.
+	private static final int PARTIES_SHIFT = 16;
+
+	// The number of bits the phase is shifted in the state.
+	private static final int PHASE_SHIFT = 32;
+
+	// The change in state when a party arrives.
+	private static final long ONE_ARRIVAL = 1L;
+
+	// The change in state when a party registers.
+	private static final long ONE_REGISTER = (1L << PARTIES_SHIFT) | ONE_ARRIVAL;
+
+	// The change in state when a party arrives and deregisters.
+	private static final long ONE_DEREGISTER = (1L << PARTIES_SHIFT) | ONE_ARRIVAL;
+
+	// The gate this gate is a party of, or null if this is a root.
+	private final PhaseGate parent;
+
+	// The root of the tree this gate is in.
+	private final PhaseGate root;
+
+	// The phase, number of parties, and number of unarrived parties.
+	private final AtomicLong state;
+
+	// The gate opened and closed when the phase advances, only used by a root.
+	private final Gate<Object> advanced;
+
+
+	/**
+	 * Instantiates a new PhaseGate with no parties.
+	 */
+	public PhaseGate()
+	{
+		this(null, 0);
+	}
+
+	/**
+	 * Instantiates a new PhaseGate.
+	 *
+	 * @param parties
+	 * 		The number of parties registered initially.
+	 */
+	public PhaseGate(int parties)
+	{
+		this(null, parties);
+	}
+
+	/**
+	 * Instantiates a new PhaseGate with no parties.
+	 *
+	 * @param parent
+	 * 		The gate this gate is a party of, or null if this is a root.
+	 */
+	public PhaseGate(PhaseGate parent)
+	{
+		this(parent, 0);
+	}
+
+	/**
+	 * Instantiates a new PhaseGate.
+	 *
+	 * @param parent
+	 * 		The gate this gate is a party of, or null if this is a root.
+	 * @param parties
+	 * 		The number of parties registered initially, if there are any this
+	 * 		gate is registered with its parent.
+	 */
+	public PhaseGate(PhaseGate parent, int parties)
+	{
+		if (parties < 0 || parties > MAX_PARTIES) {
+			throw new IllegalArgumentException("parties must be between 0 and " + MAX_PARTIES);
+		}
+		this.parent = parent;
+		this.root = (parent == null ? this : parent.root);
+		this.advanced = (parent == null ? new Gate<Object>() : null);
+		this.state = new AtomicLong(stateOf(parent == null ? 0 : root.getPhase(), 0));
+		if (parties > 0) {
+			register(parties);
+		}
+	}
+
+	/**
+	 * Returns the state of a gate with the given phase where the given 
+	 * number of parties are registered and none have arrived.
+	 * 
+	 * @param phase
+	 * 		The phase of the gate.
+	 * @param parties
+	 * 		The number of parties registered.
+	 * @return
+	 * 		The state of the gate.
+	 */
+	private static long stateOf(int phase, int parties)
+	{
+		return ((long)phase << PHASE_SHIFT) | ((long)parties << PARTIES_SHIFT) | parties;
+	}
+
+	/**
+	 * Returns the phase of the given state.
+	 * 
+	 * @param s
+	 * 		The state of a gate.
+	 * @return
+	 * 		The phase of the gate.
+	 */
+	private static int phaseOf(long s)
+	{
+		return (int)(s >>> PHASE_SHIFT);
+	}
+
+	/**
+	 * Returns the number of parties of the given state.
+	 * 
+	 * @param s
+	 * 		The state of a gate.
+	 * @return
+	 * 		The number of parties registered with the gate.
+	 */
+	private static int partiesOf(long s)
+	{
+		return ((int)s >>> PARTIES_SHIFT);
+	}
+
+	/**
+	 * Returns the number of unarrived parties of the given state.
+	 * 
+	 * @param s
+	 * 		The state of a gate.
+	 * @return
+	 * 		The number of parties which have not arrived at the gate.
+	 */
+	private static int unarrivedOf(long s)
+	{
+		return ((int)s & MAX_PARTIES);
+	}
+
+	/**
+	 * Returns the state of this gate, bringing the state of a child up to 
+	 * the phase of the root first. A child which has arrived at its parent 
+	 * is not told when the root advances, so it resets itself lazily the 
+	 * next time it's used.
+	 * 
+	 * @return
+	 * 		The current state of this gate.
+	 */
+	private long reconcile()
+	{
+		long s = state.get();
+		if (root != this) {
+			int phase;
+			while ((phase = root.getPhase()) != phaseOf(s)) {
+				if (state.compareAndSet(s, stateOf(phase, partiesOf(s)))) {
+					return stateOf(phase, partiesOf(s));
+				}
+				s = state.get();
+			}
+		}
+		return s;
+	}
+
+	/**
+	 * Returns the gate this gate is a party of.
+	 *
+	 * @return
+	 * 		The parent of this gate, or null if this gate is a root.
+	 */
+	public PhaseGate getParent()
+	{
+		return parent;
+	}
+
+	/**
+	 * Returns the root of the tree this gate is in.
+	 *
+	 * @return
+	 * 		The root of the tree, which may be this gate.
+	 */
+	public PhaseGate getRoot()
+	{
+		return root;
+	}
+
+	/**
+	 * Returns the current phase, which is the phase of the root.
+	 *
+	 * @return
+	 * 		The current phase.
+	 */
+	public int getPhase()
+	{
+		return phaseOf(root.state.get());
+	}
+
+	/**
+	 * Returns the number of parties registered with this gate.
+	 *
+	 * @return
+	 * 		The number of parties registered.
+	 */
+	public int getParties()
+	{
+		return partiesOf(state.get());
+	}
+
+	/**
+	 * Returns the number of parties registered with this gate which have 
+	 * not yet arrived at the current phase.
+	 *
+	 * @return
+	 * 		The number of unarrived parties.
+	 */
+	public int getUnarrived()
+	{
+		return unarrivedOf(reconcile());
+	}
+
+	/**
+	 * Returns the number of parties registered with this gate which have 
+	 * arrived at the current phase.
+	 *
+	 * @return
+	 * 		The number of arrived parties.
+	 */
+	public int getArrived()
+	{
+		long s = reconcile();
+		return partiesOf(s) - unarrivedOf(s);
+	}
+
+	/**
+	 * Registers a single party with this gate.
+	 *
+	 * @return
+	 * 		The phase the party is registered into.
+	 * @see #register(int)
+	 */
+	public int register()
+	{
+		return register(1);
+	}
+
+	/**
+	 * Registers the given number of parties with this gate, the parties must
+	 * arrive at the phase returned. If this is a child which has no parties 
+	 * it registers with its parent, and if this is a child which has already
+	 * arrived at its parent this waits until the phase advances.
+	 *
+	 * @param parties
+	 * 		The number of parties to register.
+	 * @return
+	 * 		The phase the parties are registered into.
+	 * @throws IllegalStateException
+	 * 		The gate would hold more than the maximum number of parties.
+	 */
+	public int register(int parties)
+	{
+		if (parties < 0) {
+			throw new IllegalArgumentException("parties must be >= 0");
+		}
+		if (parties == 0) {
+			return getPhase();
+		}
+		boolean interrupted = false;
+		try {
+			for (;;) {
+				long s = reconcile();
+				int registered = partiesOf(s);
+				if (registered + parties > MAX_PARTIES) {
+					throw new IllegalStateException("a gate may hold at most " + MAX_PARTIES + " parties");
+				}
+				if (registered == 0 && root != this) {
+					Integer phase = registerFirst(parties);
+					if (phase != null) {
+						return phase;
+					}
+				}
+				else if (registered != 0 && unarrivedOf(s) == 0) {
+					// Only a child waits here, a root never has every party arrived.
+					while (root.awaitAdvance(phaseOf(s), 0) < 0) {
+						interrupted |= Thread.interrupted();
+					}
+				}
+				else if (state.compareAndSet(s, s + parties * ONE_REGISTER)) {
+					return phaseOf(s);
+				}
+			}
+		}
+		finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Registers the first parties of a child, which registers the child with
+	 * its parent.
+	 * 
+	 * @param parties
+	 * 		The number of parties to register.
+	 * @return
+	 * 		The phase the parties are registered into, or null if another 
+	 * 		thread registered parties first and registering should be retried.
+	 */
+	private synchronized Integer registerFirst(int parties)
+	{
+		if (partiesOf(reconcile()) != 0) {
+			return null;
+		}
+		// The root can't advance past this phase until this child arrives.
+		int phase = parent.register(1);
+		state.set(stateOf(phase, parties));
+		return phase;
+	}
+
+	/**
+	 * Arrives at the current phase without waiting for it to advance. 
+	 *
+	 * @return
+	 * 		The phase arrived at.
+	 * @throws IllegalStateException
+	 * 		The gate has no parties, or every party has already arrived.
+	 */
+	public int arrive()
+	{
+		return arrive(ONE_ARRIVAL);
+	}
+
+	/**
+	 * Arrives at the current phase and deregisters a party without waiting
+	 * for the phase to advance. If this is a child which has no parties left
+	 * it deregisters from its parent.
+	 *
+	 * @return
+	 * 		The phase arrived at.
+	 * @throws IllegalStateException
+	 * 		The gate has no parties, or every party has already arrived.
+	 */
+	public int arriveAndDeregister()
+	{
+		return arrive(ONE_DEREGISTER);
+	}
+
+	/**
+	 * Arrives at the current phase and waits for it to advance. If the 
+	 * waiting thread is interrupted -1 is returned and the interrupt status 
+	 * of the thread is kept.
+	 *
+	 * @return
+	 * 		The phase after the phase arrived at, or -1 if interrupted.
+	 * @throws IllegalStateException
+	 * 		The gate has no parties, or every party has already arrived.
+	 */
+	public int arriveAndAwait()
+	{
+		return root.awaitAdvance(arrive(ONE_ARRIVAL), 0);
+	}
+
+	/**
+	 * Arrives at the current phase and waits for it to advance or for a 
+	 * maximum amount of time to elapse. 
+	 *
+	 * @param timeout
+	 * 		The maximum amount of time in milliseconds to wait for the phase
+	 * 		to advance, or 0 to wait indefinitely.
+	 * @return
+	 * 		The phase after the phase arrived at, or -1 if the phase did not
+	 * 		advance in time or the waiting thread was interrupted.
+	 * @throws IllegalStateException
+	 * 		The gate has no parties, or every party has already arrived.
+	 */
+	public int arriveAndAwait(long timeout)
+	{
+		return root.awaitAdvance(arrive(ONE_ARRIVAL), timeout);
+	}
+
+	/**
+	 * Arrives a party at this gate. The last party to arrive at a root 
+	 * advances the phase, and the last party to arrive at a child arrives 
+	 * the child at its parent.
+	 * 
+	 * @param adjust
+	 * 		The change in state, either ONE_ARRIVAL or ONE_DEREGISTER.
+	 * @return
+	 * 		The phase arrived at.
+	 */
+	private int arrive(long adjust)
+	{
+		for (;;) {
+			long s = reconcile();
+			int phase = phaseOf(s);
+			int parties = partiesOf(s);
+			int unarrived = unarrivedOf(s);
+			if (parties == 0) {
+				throw new IllegalStateException("no parties are registered");
+			}
+			if (unarrived == 0) {
+				throw new IllegalStateException("every party has already arrived at phase " + phase);
+			}
+			if (unarrived > 1) {
+				if (state.compareAndSet(s, s - adjust)) {
+					return phase;
+				}
+			}
+			else if (root == this) {
+				int remaining = (adjust == ONE_DEREGISTER ? parties - 1 : parties);
+				if (state.compareAndSet(s, stateOf((phase + 1) & MAX_PHASE, remaining))) {
+					advanced.open();
+					advanced.close();
+					return phase;
+				}
+			}
+			else if (state.compareAndSet(s, s - adjust)) {
+				parent.arrive(partiesOf(s - adjust) == 0 ? ONE_DEREGISTER : ONE_ARRIVAL);
+				return phase;
+			}
+		}
+	}
+
+	/**
+	 * Waits for the given phase to advance. If the current phase is not the
+	 * given phase this returns immediately. If the waiting thread is 
+	 * interrupted -1 is returned and the interrupt status of the thread is 
+	 * kept.
+	 *
+	 * @param phase
+	 * 		The phase to wait for.
+	 * @return
+	 * 		The current phase once it's not the given phase, or -1 if 
+	 * 		interrupted.
+	 */
+	public int awaitAdvance(int phase)
+	{
+		return awaitAdvance(phase, 0);
+	}
+
+	/**
+	 * Waits for the given phase to advance or for a maximum amount of time 
+	 * to elapse. If the current phase is not the given phase this returns 
+	 * immediately.
+	 *
+	 * @param phase
+	 * 		The phase to wait for.
+	 * @param timeout
+	 * 		The maximum amount of time in milliseconds to wait for the phase
+	 * 		to advance, or 0 to wait indefinitely.
+	 * @return
+	 * 		The current phase once it's not the given phase, or -1 if the 
+	 * 		phase did not advance in time or the waiting thread was 
+	 * 		interrupted.
+	 */
+	public int awaitAdvance(int phase, long timeout)
+	{
+		if (root != this) {
+			return root.awaitAdvance(phase, timeout);
+		}
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+		for (;;) {
+			// The generation is read before the phase, so an advance after 
+			// the phase is read opens a generation at or after this one.
+			long generation = advanced.generation();
+			int current = phaseOf(state.get());
+			if (current != phase) {
+				return current;
+			}
+			long remaining = 0;
+			if (timeout != 0) {
+				long nanos = deadline - System.nanoTime();
+				if (nanos <= 0) {
+					return -1;
+				}
+				remaining = TimeUnit.NANOSECONDS.toMillis(nanos + 999999);
+			}
+			if (!advanced.await(generation, remaining) && Thread.currentThread().isInterrupted()) {
+				return -1;
+			}
+		}
+	}
+
+}
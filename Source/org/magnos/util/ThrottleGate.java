@@ -0,0 +1,393 @@
+/* 
+ * NOTICE OF LICENSE
+ * 
+ * This source file is subject to the Open Software License (OSL 3.0) that is 
+ * bundled with this package in the file LICENSE.txt. It is also available 
+ * through the world-wide-web at http://opensource.org/licenses/osl-3.0.php
+ * If you did not receive a copy of the license and are unable to obtain it 
+ * through the world-wide-web, please send an email to pdiffenderfer@gmail.com 
+ * so we can send you a copy immediately. If you use any of this software please
+ * notify me via my website or email, your feedback is much appreciated. 
+ * 
+ * @copyright   Copyright (c) 2011 Magnos Software (http://www.magnos.org)
+ * @license     http://opensource.org/licenses/osl-3.0.php
+ * 				Open Software License (OSL 3.0)
+ */
+
+package org.magnos.util;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A gate which lets a limited number of threads through, either a number of
+ * threads per interval of time (a rate limiter) or a number of threads at 
+ * the same time (a turnstile). 
+ * <p>
+ * A rate limiting gate is a token bucket which holds up to the given number
+ * of permits and refills continuously so the given number of permits are 
+ * added over each interval. The bucket is never refilled by a timer, instead
+ * the time at which the next permit is available is kept in a single atomic
+ * value and compared against System.nanoTime when a permit is taken, so 
+ * taking a permit is a single compare-and-set. A thread which has to wait 
+ * knows exactly how long to wait and parks for that long.
+ * <p>
+ * A turnstile gate holds the given number of permits and a thread takes one
+ * on its way through and gives it back by invoking release once it's done.
+ * <p>
+ * Threads which have to wait are placed in a lock-free queue and parked 
+ * like the waiters of a Gate, and only the thread at the front of the queue
+ * tries to take a permit, waking the next thread once it leaves. A fair gate
+ * always places a thread in the queue if there are threads waiting, a 
+ * barging gate lets a thread take a permit ahead of the waiting threads if 
+ * one is available. The number of threads which had to wait and the total 
+ * amount of time they waited are counted.
+ * 
+ * @author Philip Diffenderfer
+ *
+ */
+public class ThrottleGate
+{
+
+	// The value returned when no permit can be taken until one is released.
+	private static final long UNTIL_RELEASED = Long.MAX_VALUE;
+
+	// The number of permits in the bucket or turnstile.
+	private final int permits;
+
+	// Whether waiting threads are always let through in order.
+	private final boolean fair;
+
+	// The number of nanoseconds it takes to refill a single permit, or 0 if
+	// the gate is a turnstile.
+	private final long emission;
+
+	// The number of nanoseconds a permit may be taken ahead of its time, this
+	// is how many permits fit in the bucket besides the next one.
+	private final long tolerance;
+
+	// The time at which the next permit of a rate limiting gate is available.
+	private final AtomicLong next;
+
+	// The number of permits available in a turnstile.
+	private final AtomicInteger available;
+
+	// The threads waiting for a permit.
+	private final ConcurrentLinkedQueue<Thread> queue = new ConcurrentLinkedQueue<Thread>();
+
+	// The number of permits taken.
+	private final LongAdder acquired = new LongAdder();
+
+	// The number of permits taken by threads which had to wait.
+	private final LongAdder throttled = new LongAdder();
+
+	// The total number of nanoseconds threads waited for permits.
+	private final LongAdder throttledTime = new LongAdder();
+
+	// The number of threads which gave up waiting for a permit.
+	private final LongAdder rejected = new LongAdder();
+
+
+	/**
+	 * Instantiates a rate limiting ThrottleGate.
+	 * 
+	 * @param permits
+	 * 		The number of threads let through each interval, this is also the
+	 * 		number of threads which can go through at once after the gate has
+	 * 		been idle.
+	 * @param interval
+	 * 		The length of the interval.
+	 * @param unit
+	 * 		The unit of the interval.
+	 * @param fair
+	 * 		Whether waiting threads are always let through in order, otherwise
+	 * 		an arriving thread may go ahead of the waiting threads.
+	 */
+	public ThrottleGate(int permits, long interval, TimeUnit unit, boolean fair)
+	{
+		if (permits < 1) {
+			throw new IllegalArgumentException("permits must be >= 1");
+		}
+		this.permits = permits;
+		this.fair = fair;
+		this.emission = Math.max(1, unit.toNanos(interval) / permits);
+		this.tolerance = emission * (permits - 1);
+		this.next = new AtomicLong(System.nanoTime());
+		this.available = null;
+	}
+
+	/**
+	 * Instantiates a turnstile ThrottleGate.
+	 * 
+	 * @param permits
+	 * 		The number of threads which can be through the gate at once.
+	 * @param fair
+	 * 		Whether waiting threads are always let through in order, otherwise
+	 * 		an arriving thread may go ahead of the waiting threads.
+	 */
+	public ThrottleGate(int permits, boolean fair)
+	{
+		if (permits < 1) {
+			throw new IllegalArgumentException("permits must be >= 1");
+		}
+		this.permits = permits;
+		this.fair = fair;
+		this.emission = 0;
+		this.tolerance = 0;
+		this.next = null;
+		this.available = new AtomicInteger(permits);
+	}
+
+	/**
+	 * Returns the number of permits the gate was created with.
+	 * 
+	 * @return
+	 * 		The number of permits per interval or at once.
+	 */
+	public int getPermits()
+	{
+		return permits;
+	}
+
+	/**
+	 * Returns whether waiting threads are always let through in order.
+	 * 
+	 * @return
+	 * 		True if the gate is fair, false if arriving threads can barge.
+	 */
+	public boolean isFair()
+	{
+		return fair;
+	}
+
+	/**
+	 * Returns whether the gate limits the number of threads per interval.
+	 * 
+	 * @return
+	 * 		True if this is a rate limiting gate, false if it's a turnstile.
+	 */
+	public boolean isRateLimited()
+	{
+		return (available == null);
+	}
+
+	/**
+	 * Returns the number of permits which can be taken right now. When this
+	 * method returns the value may already be out of date.
+	 * 
+	 * @return
+	 * 		The number of permits available.
+	 */
+	public int getAvailable()
+	{
+		if (available != null) {
+			return Math.max(0, available.get());
+		}
+		long ahead = Math.max(0, next.get() - System.nanoTime());
+		return (int)Math.max(0, (tolerance + emission - ahead) / emission);
+	}
+
+	/**
+	 * Returns the number of permits taken.
+	 * 
+	 * @return
+	 * 		The number of permits taken.
+	 */
+	public long getAcquired()
+	{
+		return acquired.sum();
+	}
+
+	/**
+	 * Returns the number of permits taken by threads which had to wait.
+	 * 
+	 * @return
+	 * 		The number of threads throttled.
+	 */
+	public long getThrottled()
+	{
+		return throttled.sum();
+	}
+
+	/**
+	 * Returns the total amount of time threads have waited for permits, 
+	 * including threads which gave up.
+	 * 
+	 * @param unit
+	 * 		The unit to return the time in.
+	 * @return
+	 * 		The total time spent waiting for permits.
+	 */
+	public long getThrottledTime(TimeUnit unit)
+	{
+		return unit.convert(throttledTime.sum(), TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Returns the number of threads which gave up waiting for a permit.
+	 * 
+	 * @return
+	 * 		The number of threads which timed out or were interrupted.
+	 */
+	public long getRejected()
+	{
+		return rejected.sum();
+	}
+
+	/**
+	 * Tries to take a permit.
+	 * 
+	 * @return
+	 * 		0 if a permit was taken, otherwise the number of nanoseconds until
+	 * 		a permit is available or UNTIL_RELEASED if a turnstile has no 
+	 * 		permits.
+	 */
+	private long take()
+	{
+		if (available != null) {
+			int current;
+			do {
+				current = available.get();
+				if (current <= 0) {
+					return UNTIL_RELEASED;
+				}
+			} while (!available.compareAndSet(current, current - 1));
+			return 0;
+		}
+		for (;;) {
+			long now = System.nanoTime();
+			long time = next.get();
+			long ahead = time - now;
+			if (ahead > tolerance) {
+				return ahead - tolerance;
+			}
+			if (next.compareAndSet(time, (ahead < 0 ? now : time) + emission)) {
+				return 0;
+			}
+		}
+	}
+
+	/**
+	 * Takes a permit if one is available without waiting. A fair gate never
+	 * lets a thread through ahead of waiting threads.
+	 * 
+	 * @return
+	 * 		True if a permit was taken, otherwise false.
+	 */
+	public boolean tryAcquire()
+	{
+		if ((fair && !queue.isEmpty()) || take() != 0) {
+			return false;
+		}
+		acquired.increment();
+		return true;
+	}
+
+	/**
+	 * Waits an indefinite amount of time for a permit.
+	 * 
+	 * @return
+	 * 		True if a permit was taken, false if the thread was interrupted.
+	 */
+	public boolean acquire()
+	{
+		return acquire(0);
+	}
+
+	/**
+	 * Waits a maximum amount of time for a permit.
+	 * 
+	 * @param timeout
+	 * 		The maximum amount of time in milliseconds to wait for a permit, or
+	 * 		0 to wait indefinitely.
+	 * @return
+	 * 		True if a permit was taken, false if the timeout elapsed or the 
+	 * 		thread was interrupted first.
+	 */
+	public boolean acquire(long timeout)
+	{
+		if (tryAcquire()) {
+			return true;
+		}
+		Thread thread = Thread.currentThread();
+		long start = System.nanoTime();
+		long deadline = start + TimeUnit.MILLISECONDS.toNanos(timeout);
+		boolean taken = false;
+		queue.add(thread);
+		try {
+			for (;;) {
+				long wait = UNTIL_RELEASED;
+				if (queue.peek() == thread) {
+					wait = take();
+					if (wait == 0) {
+						taken = true;
+						break;
+					}
+				}
+				if (timeout != 0) {
+					long remaining = deadline - System.nanoTime();
+					if (remaining <= 0) {
+						break;
+					}
+					wait = Math.min(wait, remaining);
+				}
+				if (wait == UNTIL_RELEASED) {
+					LockSupport.park(this);
+				}
+				else {
+					LockSupport.parkNanos(this, wait);
+				}
+				if (Thread.interrupted()) {
+					// Ignore interruption, but let it recurse.
+					thread.interrupt();
+					break;
+				}
+			}
+		}
+		finally {
+			queue.remove(thread);
+			wakeNext();
+		}
+		throttledTime.add(System.nanoTime() - start);
+		if (taken) {
+			acquired.increment();
+			throttled.increment();
+		}
+		else {
+			rejected.increment();
+		}
+		return taken;
+	}
+
+	/**
+	 * Gives back a permit of a turnstile and wakes the next waiting thread.
+	 * 
+	 * @throws IllegalStateException
+	 * 		The gate is a rate limiting gate, its permits refill on their own.
+	 */
+	public void release()
+	{
+		if (available == null) {
+			throw new IllegalStateException("A rate limiting gate has nothing to release");
+		}
+		available.incrementAndGet();
+		wakeNext();
+	}
+
+	/**
+	 * Unparks the thread at the front of the queue so it can try to take a
+	 * permit.
+	 */
+	private void wakeNext()
+	{
+		Thread head = queue.peek();
+		if (head != null) {
+			LockSupport.unpark(head);
+		}
+	}
+
+}
@@ -0,0 +1,215 @@
+/* 
+ * NOTICE OF LICENSE
+ * 
+ * This source file is subject to the Open Software License (OSL 3.0) that is 
+ * bundled with this package in the file LICENSE.txt. It is also available 
+ * through the world-wide-web at http://opensource.org/licenses/osl-3.0.php
+ * If you did not receive a copy of the license and are unable to obtain it 
+ * through the world-wide-web, please send an email to pdiffenderfer@gmail.com 
+ * so we can send you a copy immediately. If you use any of this software please
+ * notify me via my website or email, your feedback is much appreciated. 
+ * 
+ * @copyright   Copyright (c) 2011 Magnos Software (http://www.magnos.org)
+ * @license     http://opensource.org/licenses/osl-3.0.php
+ * 				Open Software License (OSL 3.0)
+ */
+
+package org.magnos.util;
+
+import static org.junit.Assert.*;
+
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.magnos.test.BaseTest;
+import org.magnos.util.AtomicSet;
+
+
+public class TestAtomicSet extends BaseTest 
+{
+
+	@Test
+	public void testConstructor()
+	{
+		assertEquals( 32, new AtomicSet<Integer>().getCapacity() );
+		assertEquals( 16, new AtomicSet<Integer>(16).getCapacity() );
+		assertEquals( 64, new AtomicSet<Integer>(33).getCapacity() );
+	}
+	
+	@Test
+	public void testAddContainsRemove()
+	{
+		AtomicSet<Integer> set = new AtomicSet<Integer>(4);
+		
+		assertTrue( set.isEmpty() );
+		assertTrue( set.add(0) );
+		assertTrue( set.add(4) );
+		assertFalse( set.add(0) );
+		assertFalse( set.add(null) );
+		assertEquals( 2, set.size() );
+		
+		assertTrue( set.contains(0) );
+		assertTrue( set.contains(4) );
+		assertFalse( set.contains(8) );
+		assertFalse( set.contains(null) );
+		
+		assertTrue( set.remove(0) );
+		assertFalse( set.remove(0) );
+		assertFalse( set.contains(0) );
+		assertTrue( set.contains(4) );
+		assertEquals( 1, set.size() );
+		
+		assertTrue( set.add(0) );
+		assertTrue( set.contains(0) );
+		assertEquals( 2, set.size() );
+	}
+	
+	@Test
+	public void testRebuild()
+	{
+		AtomicSet<Integer> set = new AtomicSet<Integer>(4);
+		
+		for (int i = 0; i < 1000; i++) {
+			assertTrue( set.add(i) );
+		}
+		assertEquals( 1000, set.size() );
+		assertTrue( set.getCapacity() >= 2000 );
+		
+		for (int i = 0; i < 1000; i++) {
+			assertTrue( set.contains(i) );
+		}
+		
+		// Churn through tombstones without growing the table.
+		int capacity = set.getCapacity();
+		for (int i = 0; i < 100000; i++) {
+			assertTrue( set.remove(i) );
+			assertTrue( set.add(i + 1000) );
+		}
+		assertEquals( 1000, set.size() );
+		assertEquals( capacity, set.getCapacity() );
+	}
+	
+	@Test
+	public void testIterator()
+	{
+		AtomicSet<Integer> set = new AtomicSet<Integer>(4);
+		
+		for (int i = 0; i < 10; i++) {
+			set.add(i);
+		}
+		
+		int sum = 0;
+		Iterator<Integer> it = set.iterator();
+		while (it.hasNext()) {
+			int x = it.next();
+			sum += x;
+			if (x % 2 == 0) {
+				it.remove();
+			}
+		}
+		
+		assertEquals( 45, sum );
+		assertEquals( 5, set.size() );
+		assertFalse( set.contains(4) );
+		assertTrue( set.contains(5) );
+	}
+	
+	@Test
+	public void testClear()
+	{
+		AtomicSet<Integer> set = new AtomicSet<Integer>(4);
+		
+		for (int i = 0; i < 10; i++) {
+			set.add(i);
+		}
+		set.clear();
+		
+		assertTrue( set.isEmpty() );
+		assertFalse( set.contains(3) );
+		assertTrue( set.add(3) );
+	}
+	
+	@Test
+	public void testConcurrent()
+	{
+		final int THREADS = 6;
+		final int ELEMENTS = 20000;
+		final AtomicSet<Integer> set = new AtomicSet<Integer>(4);
+		final AtomicInteger added = new AtomicInteger();
+		
+		Runnable adder = new Runnable() {
+			public void run() {
+				for (int i = 0; i < ELEMENTS; i++) {
+					if (set.add(i)) {
+						added.incrementAndGet();
+					}
+				}
+			}
+		};
+		
+		GroupTask.initialize(THREADS);
+		GroupTask.add(adder, THREADS);
+		GroupTask.execute();
+		
+		assertEquals( ELEMENTS, added.get() );
+		assertEquals( ELEMENTS, set.size() );
+		
+		final AtomicInteger removed = new AtomicInteger();
+		
+		Runnable remover = new Runnable() {
+			public void run() {
+				for (int i = 0; i < ELEMENTS; i++) {
+					if (set.remove(i)) {
+						removed.incrementAndGet();
+					}
+				}
+			}
+		};
+		
+		GroupTask.initialize(THREADS);
+		GroupTask.add(remover, THREADS);
+		GroupTask.execute();
+		
+		assertEquals( ELEMENTS, removed.get() );
+		assertTrue( set.isEmpty() );
+	}
+	
+	@Test
+	public void testConcurrentRebuilds()
+	{
+		final int THREADS = 6;
+		final int ELEMENTS = 500;
+		final int ROUNDS = 40;
+		final AtomicSet<Integer> set = new AtomicSet<Integer>(4);
+		final AtomicInteger offset = new AtomicInteger();
+		
+		// Tombstones keep every thread's writes running into rebuilds.
+		Runnable churner = new Runnable() {
+			public void run() {
+				int start = offset.getAndAdd(ELEMENTS);
+				for (int k = 0; k < ROUNDS; k++) {
+					for (int i = 0; i < ELEMENTS; i++) {
+						assertTrue( set.add(start + i) );
+					}
+					for (int i = 0; i < ELEMENTS; i++) {
+						assertTrue( set.remove(start + i) );
+					}
+				}
+				for (int i = 0; i < ELEMENTS; i++) {
+					assertTrue( set.add(start + i) );
+				}
+			}
+		};
+		
+		GroupTask.initialize(THREADS);
+		GroupTask.add(churner, THREADS);
+		GroupTask.execute();
+		
+		assertEquals( ELEMENTS * THREADS, set.size() );
+		for (int i = 0; i < ELEMENTS * THREADS; i++) {
+			assertTrue( set.contains(i) );
+		}
+	}
+	
+}
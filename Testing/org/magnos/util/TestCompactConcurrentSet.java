@@ -0,0 +1,126 @@
+/* 
+ * NOTICE OF LICENSE
+ * 
+ * This source file is subject to the Open Software License (OSL 3.0) that is 
+ * bundled with this package in the file LICENSE.txt. It is also available 
+ * through the world-wide-web at http://opensource.org/licenses/osl-3.0.php
+ * If you did not receive a copy of the license and are unable to obtain it 
+ * through the world-wide-web, please send an email to pdiffenderfer@gmail.com 
+ * so we can send you a copy immediately. If you use any of this software please
+ * notify me via my website or email, your feedback is much appreciated. 
+ * 
+ * @copyright   Copyright (c) 2011 Magnos Software (http://www.magnos.org)
+ * @license     http://opensource.org/licenses/osl-3.0.php
+ * 				Open Software License (OSL 3.0)
+ */
+
+
+package org.magnos.util;
+
+import static org.junit.Assert.*;
+
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+import org.magnos.test.BaseTest;
+import org.magnos.util.CompactConcurrentSet;
+
+
+public class TestCompactConcurrentSet extends BaseTest 
+{
+
+	@Test
+	public void testConstructor()
+	{
+		CompactConcurrentSet<Integer> set = new CompactConcurrentSet<Integer>(60, 100);
+		
+		assertEquals( 64, set.getCapacity() );
+		assertEquals( 64, set.getConcurrency() );
+		assertEquals( 4, new CompactConcurrentSet<Integer>(16, 3).getConcurrency() );
+	}
+	
+	@Test
+	public void testAddRemove()
+	{
+		CompactConcurrentSet<Integer> set = new CompactConcurrentSet<Integer>(4, 2);
+		
+		assertTrue( set.add(1) );
+		assertFalse( set.add(1) );
+		assertTrue( set.add(5) );
+		assertTrue( set.add(9) );
+		assertFalse( set.add(null) );
+		assertEquals( 3, set.size() );
+		
+		assertTrue( set.contains(5) );
+		assertTrue( set.remove(5) );
+		assertFalse( set.contains(5) );
+		assertTrue( set.contains(1) );
+		assertTrue( set.contains(9) );
+		assertFalse( set.remove(5) );
+		assertEquals( 2, set.size() );
+		
+		set.clear();
+		assertTrue( set.isEmpty() );
+		assertFalse( set.contains(1) );
+	}
+	
+	@Test
+	public void testIterator()
+	{
+		CompactConcurrentSet<Integer> set = new CompactConcurrentSet<Integer>(4);
+		for (int i = 0; i < 20; i++) {
+			set.add(i);
+		}
+		
+		int found = 0;
+		Iterator<Integer> it = set.iterator();
+		while (it.hasNext()) {
+			if (it.next() % 2 == 0) {
+				it.remove();
+			}
+			found++;
+		}
+		
+		assertEquals( 20, found );
+		assertEquals( 10, set.size() );
+		assertFalse( set.contains(4) );
+		assertTrue( set.contains(5) );
+	}
+	
+	@Test
+	public void testConcurrent()
+	{
+		final int THREADS = 4;
+		final int ELEMENTS = 10000;
+		final CompactConcurrentSet<Integer> set = new CompactConcurrentSet<Integer>(256, 8);
+		final AtomicLong found = new AtomicLong();
+		
+		Runnable writer = new Runnable() {
+			public void run() {
+				for (int i = 0; i < ELEMENTS; i++) {
+					set.add(i);
+				}
+			}
+		};
+		Runnable reader = new Runnable() {
+			public void run() {
+				for (int i = 0; i < ELEMENTS; i++) {
+					while (!set.contains(i)) {
+						Thread.yield();
+					}
+					found.incrementAndGet();
+				}
+			}
+		};
+		
+		GroupTask.initialize(THREADS * 2);
+		GroupTask.add(writer, THREADS);
+		GroupTask.add(reader, THREADS);
+		GroupTask.execute();
+		
+		assertEquals( ELEMENTS, set.size() );
+		assertEquals( ELEMENTS * THREADS, found.get() );
+	}
+	
+}
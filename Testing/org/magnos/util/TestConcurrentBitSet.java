@@ -0,0 +1,143 @@
+/* 
+ * NOTICE OF LICENSE
+ * 
+ * This source file is subject to the Open Software License (OSL 3.0) that is 
+ * bundled with this package in the file LICENSE.txt. It is also available 
+ * through the world-wide-web at http://opensource.org/licenses/osl-3.0.php
+ * If you did not receive a copy of the license and are unable to obtain it 
+ * through the world-wide-web, please send an email to pdiffenderfer@gmail.com 
+ * so we can send you a copy immediately. If you use any of this software please
+ * notify me via my website or email, your feedback is much appreciated. 
+ * 
+ * @copyright   Copyright (c) 2011 Magnos Software (http://www.magnos.org)
+ * @license     http://opensource.org/licenses/osl-3.0.php
+ * 				Open Software License (OSL 3.0)
+ */
+
+
+package org.magnos.util;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+import org.magnos.test.BaseTest;
+import org.magnos.util.ConcurrentBitSet;
+
+
+public class TestConcurrentBitSet extends BaseTest 
+{
+
+	@Test
+	public void testSetClear()
+	{
+		ConcurrentBitSet bits = new ConcurrentBitSet(100, false);
+		
+		assertEquals( 4096, bits.getCapacity() );
+		assertTrue( bits.isEmpty() );
+		assertTrue( bits.set(0) );
+		assertTrue( bits.set(63) );
+		assertTrue( bits.set(64) );
+		assertTrue( bits.set(4095) );
+		assertFalse( bits.set(64) );
+		assertEquals( 4, bits.cardinality() );
+		
+		assertTrue( bits.get(63) );
+		assertFalse( bits.get(62) );
+		assertFalse( bits.get(5000) );
+		assertFalse( bits.get(-1) );
+		
+		assertTrue( bits.clear(63) );
+		assertFalse( bits.clear(63) );
+		assertFalse( bits.clear(5000) );
+		assertEquals( 3, bits.cardinality() );
+		
+		bits.clear();
+		assertTrue( bits.isEmpty() );
+	}
+	
+	@Test(expected = IndexOutOfBoundsException.class)
+	public void testFixed()
+	{
+		new ConcurrentBitSet(100, false).set(4096);
+	}
+	
+	@Test
+	public void testGrow()
+	{
+		ConcurrentBitSet bits = new ConcurrentBitSet(0, true);
+		
+		assertEquals( 0, bits.getCapacity() );
+		assertTrue( bits.set(10) );
+		assertEquals( 4096, bits.getCapacity() );
+		assertTrue( bits.set(100000) );
+		assertTrue( bits.getCapacity() > 100000 );
+		assertTrue( bits.get(10) );
+		assertTrue( bits.get(100000) );
+	}
+	
+	@Test
+	public void testNextSetBit()
+	{
+		ConcurrentBitSet bits = new ConcurrentBitSet();
+		int[] expected = {3, 64, 65, 4095, 4096, 9000};
+		for (int bit : expected) {
+			bits.set(bit);
+		}
+		
+		int k = 0;
+		for (int i = bits.nextSetBit(0); i >= 0; i = bits.nextSetBit(i + 1)) {
+			assertEquals( expected[k++], i );
+		}
+		assertEquals( expected.length, k );
+		assertEquals( -1, bits.nextSetBit(9001) );
+	}
+	
+	@Test
+	public void testBulk()
+	{
+		ConcurrentBitSet a = new ConcurrentBitSet();
+		ConcurrentBitSet b = new ConcurrentBitSet(10000, false);
+		for (int i = 0; i < 100; i++) {
+			a.set(i);
+			b.set(i + 50);
+		}
+		b.set(9999);
+		
+		a.or(b);
+		assertEquals( 151, a.cardinality() );
+		assertTrue( a.get(9999) );
+		
+		a.andNot(b);
+		assertEquals( 50, a.cardinality() );
+		assertFalse( a.get(50) );
+		
+		a.set(60);
+		a.set(20000);
+		a.and(b);
+		assertEquals( 1, a.cardinality() );
+		assertTrue( a.get(60) );
+	}
+	
+	@Test
+	public void testConcurrent()
+	{
+		final int THREADS = 4;
+		final int BITS = 20000;
+		final ConcurrentBitSet bits = new ConcurrentBitSet(0, true);
+		
+		Runnable setter = new Runnable() {
+			public void run() {
+				for (int i = 0; i < BITS; i++) {
+					bits.set(i);
+				}
+			}
+		};
+		
+		GroupTask.initialize(THREADS);
+		GroupTask.add(setter, THREADS);
+		GroupTask.execute();
+		
+		assertEquals( BITS, bits.cardinality() );
+	}
+	
+}
@@ -0,0 +1,106 @@
+/* 
+ * NOTICE OF LICENSE
+ * 
+ * This source file is subject to the Open Software License (OSL 3.0) that is 
+ * bundled with this package in the file LICENSE.txt. It is also available 
+ * through the world-wide-web at http://opensource.org/licenses/osl-3.0.php
+ * If you did not receive a copy of the license and are unable to obtain it 
+ * through the world-wide-web, please send an email to pdiffenderfer@gmail.com 
+ * so we can send you a copy immediately. If you use any of this software please
+ * notify me via my website or email, your feedback is much appreciated. 
+ * 
+ * @copyright   Copyright (c) 2011 Magnos Software (http://www.magnos.org)
+ * @license     http://opensource.org/licenses/osl-3.0.php
+ * 				Open Software License (OSL 3.0)
+ */
+
+
+package org.magnos.util;
+
+import static org.junit.Assert.*;
+
+import java.util.Iterator;
+
+import org.junit.Test;
+import org.magnos.test.BaseTest;
+import org.magnos.util.ConcurrentIdentitySet;
+
+
+public class TestConcurrentIdentitySet extends BaseTest 
+{
+
+	@Test
+	public void testIdentity()
+	{
+		ConcurrentIdentitySet<String> set = new ConcurrentIdentitySet<String>(false, 4);
+		
+		String a = new String("a");
+		String b = new String("a");
+		
+		assertFalse( set.isWeak() );
+		assertEquals( 4, set.getCapacity() );
+		assertTrue( set.add(a) );
+		assertFalse( set.add(a) );
+		assertTrue( set.add(b) );
+		assertFalse( set.add(null) );
+		assertEquals( 2, set.size() );
+		
+		assertTrue( set.contains(a) );
+		assertFalse( set.contains("b") );
+		assertTrue( set.remove(a) );
+		assertFalse( set.contains(a) );
+		assertTrue( set.contains(b) );
+		assertEquals( 1, set.size() );
+		
+		set.clear();
+		assertTrue( set.isEmpty() );
+	}
+	
+	@Test
+	public void testIterator()
+	{
+		ConcurrentIdentitySet<Object> set = new ConcurrentIdentitySet<Object>(true, 2);
+		Object[] items = {new Object(), new Object(), new Object(), new Object()};
+		for (Object o : items) {
+			set.add(o);
+		}
+		
+		int found = 0;
+		Iterator<Object> it = set.iterator();
+		while (it.hasNext()) {
+			Object o = it.next();
+			if (o == items[0]) {
+				it.remove();
+			}
+			found++;
+		}
+		
+		assertEquals( 4, found );
+		assertEquals( 3, set.size() );
+		assertFalse( set.contains(items[0]) );
+		assertTrue( set.contains(items[3]) );
+	}
+	
+	@Test
+	public void testWeak()
+	{
+		ConcurrentIdentitySet<Object> set = new ConcurrentIdentitySet<Object>(true);
+		Object kept = new Object();
+		
+		assertTrue( set.isWeak() );
+		assertTrue( set.add(kept) );
+		for (int i = 0; i < 1000; i++) {
+			set.add(new Object());
+		}
+		
+		for (int i = 0; i < 50 && set.size() > 1; i++) {
+			System.gc();
+			sleep(10);
+			set.expunge();
+		}
+		
+		assertEquals( 1, set.size() );
+		assertTrue( set.contains(kept) );
+	}
+	
+}
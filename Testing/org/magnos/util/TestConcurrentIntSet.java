@@ -0,0 +1,75 @@
+/* 
+ * NOTICE OF LICENSE
+ * 
+ * This source file is subject to the Open Software License (OSL 3.0) that is 
+ * bundled with this package in the file LICENSE.txt. It is also available 
+ * through the world-wide-web at http://opensource.org/licenses/osl-3.0.php
+ * If you did not receive a copy of the license and are unable to obtain it 
+ * through the world-wide-web, please send an email to pdiffenderfer@gmail.com 
+ * so we can send you a copy immediately. If you use any of this software please
+ * notify me via my website or email, your feedback is much appreciated. 
+ * 
+ * @copyright   Copyright (c) 2011 Magnos Software (http://www.magnos.org)
+ * @license     http://opensource.org/licenses/osl-3.0.php
+ * 				Open Software License (OSL 3.0)
+ */
+
+package org.magnos.util;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+import org.magnos.test.BaseTest;
+import org.magnos.util.ConcurrentIntSet;
+
+
+public class TestConcurrentIntSet extends BaseTest 
+{
+
+	@Test
+	public void testAddContainsRemove()
+	{
+		ConcurrentIntSet set = new ConcurrentIntSet(4, 2);
+		
+		assertTrue( set.add(0) );
+		assertTrue( set.add(1) );
+		assertTrue( set.add(Integer.MIN_VALUE) );
+		assertFalse( set.add(1) );
+		assertEquals( 3, set.size() );
+		
+		assertTrue( set.contains(0) );
+		assertTrue( set.contains(1) );
+		assertTrue( set.contains(Integer.MIN_VALUE) );
+		assertFalse( set.contains(2) );
+		
+		assertTrue( set.remove(0) );
+		assertTrue( set.remove(1) );
+		assertFalse( set.remove(1) );
+		assertEquals( 1, set.size() );
+	}
+	
+	@Test
+	public void testGrowAndRemove()
+	{
+		ConcurrentIntSet set = new ConcurrentIntSet(4, 2);
+		
+		for (int i = 0; i < 10000; i++) {
+			assertTrue( set.add(i) );
+		}
+		for (int i = 0; i < 10000; i += 2) {
+			assertTrue( set.remove(i) );
+		}
+		for (int i = 0; i < 10000; i++) {
+			assertEquals( (i & 1) == 1, set.contains(i) );
+		}
+		
+		int[] values = set.toArray();
+		Arrays.sort(values);
+		assertEquals( 5000, values.length );
+		assertEquals( 1, values[0] );
+		assertEquals( 9999, values[4999] );
+	}
+	
+}
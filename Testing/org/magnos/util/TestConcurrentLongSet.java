@@ -0,0 +1,155 @@
+/* 
+ * NOTICE OF LICENSE
+ * 
+ * This source file is subject to the Open Software License (OSL 3.0) that is 
+ * bundled with this package in the file LICENSE.txt. It is also available 
+ * through the world-wide-web at http://opensource.org/licenses/osl-3.0.php
+ * If you did not receive a copy of the license and are unable to obtain it 
+ * through the world-wide-web, please send an email to pdiffenderfer@gmail.com 
+ * so we can send you a copy immediately. If you use any of this software please
+ * notify me via my website or email, your feedback is much appreciated. 
+ * 
+ * @copyright   Copyright (c) 2011 Magnos Software (http://www.magnos.org)
+ * @license     http://opensource.org/licenses/osl-3.0.php
+ * 				Open Software License (OSL 3.0)
+ */
+
+package org.magnos.util;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.magnos.test.BaseTest;
+import org.magnos.util.ConcurrentLongSet;
+
+
+public class TestConcurrentLongSet extends BaseTest 
+{
+
+	@Test
+	public void testConstructor()
+	{
+		assertEquals( 16, new ConcurrentLongSet().getConcurrency() );
+		assertEquals( 4, new ConcurrentLongSet(16, 3).getConcurrency() );
+		assertEquals( 1, new ConcurrentLongSet(16, 1).getConcurrency() );
+	}
+	
+	@Test
+	public void testAddContainsRemove()
+	{
+		ConcurrentLongSet set = new ConcurrentLongSet(4, 2);
+		
+		assertTrue( set.isEmpty() );
+		assertTrue( set.add(1L) );
+		assertTrue( set.add(-1L) );
+		assertTrue( set.add(Long.MAX_VALUE) );
+		assertTrue( set.add(Long.MIN_VALUE) );
+		assertFalse( set.add(1L) );
+		assertEquals( 4, set.size() );
+		
+		assertTrue( set.contains(1L) );
+		assertTrue( set.contains(-1L) );
+		assertTrue( set.contains(Long.MAX_VALUE) );
+		assertTrue( set.contains(Long.MIN_VALUE) );
+		assertFalse( set.contains(2L) );
+		
+		assertTrue( set.remove(-1L) );
+		assertFalse( set.remove(-1L) );
+		assertFalse( set.contains(-1L) );
+		assertEquals( 3, set.size() );
+	}
+	
+	@Test
+	public void testZero()
+	{
+		ConcurrentLongSet set = new ConcurrentLongSet();
+		
+		assertFalse( set.contains(0L) );
+		assertTrue( set.add(0L) );
+		assertFalse( set.add(0L) );
+		assertTrue( set.contains(0L) );
+		assertEquals( 1, set.size() );
+		assertTrue( Arrays.equals(new long[] {0L}, set.toArray()) );
+		assertTrue( set.remove(0L) );
+		assertFalse( set.contains(0L) );
+		assertTrue( set.isEmpty() );
+	}
+	
+	@Test
+	public void testGrowAndRemove()
+	{
+		ConcurrentLongSet set = new ConcurrentLongSet(4, 2);
+		
+		for (long i = 1; i <= 10000; i++) {
+			assertTrue( set.add(i * 31) );
+		}
+		assertEquals( 10000, set.size() );
+		
+		for (long i = 1; i <= 10000; i += 2) {
+			assertTrue( set.remove(i * 31) );
+		}
+		assertEquals( 5000, set.size() );
+		
+		for (long i = 1; i <= 10000; i++) {
+			assertEquals( (i & 1) == 0, set.contains(i * 31) );
+		}
+		
+		long[] values = set.toArray();
+		Arrays.sort(values);
+		assertEquals( 5000, values.length );
+		assertEquals( 62L, values[0] );
+		assertEquals( 310000L, values[4999] );
+		
+		set.clear();
+		assertTrue( set.isEmpty() );
+		assertFalse( set.contains(62L) );
+	}
+	
+	@Test
+	public void testConcurrent()
+	{
+		final int THREADS = 6;
+		final int VALUES = 20000;
+		final ConcurrentLongSet set = new ConcurrentLongSet();
+		final AtomicInteger added = new AtomicInteger();
+		final AtomicInteger removed = new AtomicInteger();
+		
+		Runnable adder = new Runnable() {
+			public void run() {
+				for (long i = 0; i < VALUES; i++) {
+					if (set.add(i)) {
+						added.incrementAndGet();
+					}
+				}
+			}
+		};
+		
+		Runnable remover = new Runnable() {
+			public void run() {
+				for (long i = 0; i < VALUES; i += 2) {
+					if (set.remove(i)) {
+						removed.incrementAndGet();
+					}
+				}
+			}
+		};
+		
+		GroupTask.initialize(THREADS);
+		GroupTask.add(adder, THREADS);
+		GroupTask.execute();
+		
+		assertEquals( VALUES, added.get() );
+		assertEquals( VALUES, set.size() );
+		
+		GroupTask.initialize(THREADS);
+		GroupTask.add(remover, THREADS);
+		GroupTask.execute();
+		
+		assertEquals( VALUES / 2, removed.get() );
+		assertEquals( VALUES / 2, set.size() );
+	}
+	
+}
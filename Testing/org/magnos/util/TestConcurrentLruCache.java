@@ -0,0 +1,201 @@
+/* 
+ * NOTICE OF LICENSE
+ * 
+ * This source file is subject to the Open Software License (OSL 3.0) that is 
+ * bundled with this package in the file LICENSE.txt. It is also available 
+ * through the world-wide-web at http://opensource.org/licenses/osl-3.0.php
+ * If you did not receive a copy of the license and are unable to obtain it 
+ * through the world-wide-web, please send an email to pdiffenderfer@gmail.com 
+ * so we can send you a copy immediately. If you use any of this software please
+ * notify me via my website or email, your feedback is much appreciated. 
+ * 
+ * @copyright   Copyright (c) 2011 Magnos Software (http://www.magnos.org)
+ * @license     http://opensource.org/licenses/osl-3.0.php
+ * 				Open Software License (OSL 3.0)
+ */
+
+
+package org.magnos.util;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import org.junit.Test;
+import org.magnos.test.BaseTest;
+import org.magnos.util.ConcurrentLruCache;
+
+
+public class TestConcurrentLruCache extends BaseTest 
+{
+
+	@Test
+	public void testPutGet()
+	{
+		ConcurrentLruCache<String, Integer> cache = new ConcurrentLruCache<String, Integer>(10);
+		
+		assertNull( cache.put("a", 1) );
+		assertEquals( Integer.valueOf(1), cache.put("a", 2) );
+		assertEquals( Integer.valueOf(2), cache.get("a") );
+		assertNull( cache.get("b") );
+		assertEquals( 1, cache.getHits() );
+		assertEquals( 1, cache.getMisses() );
+		assertEquals( 1, cache.size() );
+		
+		assertEquals( Integer.valueOf(2), cache.remove("a") );
+		assertNull( cache.getIfPresent("a") );
+		assertEquals( 0, cache.size() );
+	}
+	
+	@Test
+	public void testEviction()
+	{
+		ConcurrentLruCache<Integer, Integer> cache = new ConcurrentLruCache<Integer, Integer>(4, 1, null);
+		
+		assertEquals( 1, cache.getConcurrency() );
+		for (int i = 0; i < 4; i++) {
+			cache.put(i, i);
+		}
+		// Reference every entry but 2, so 2 is evicted first.
+		cache.get(0);
+		cache.get(1);
+		cache.get(3);
+		cache.put(4, 4);
+		
+		assertEquals( 4, cache.size() );
+		assertEquals( 1, cache.getEvictions() );
+		assertNull( cache.getIfPresent(2) );
+		assertEquals( Integer.valueOf(0), cache.getIfPresent(0) );
+		assertEquals( Integer.valueOf(4), cache.getIfPresent(4) );
+		
+		for (int i = 10; i < 100; i++) {
+			cache.put(i, i);
+		}
+		assertEquals( 4, cache.size() );
+		assertEquals( 91, cache.getEvictions() );
+		
+		cache.clear();
+		assertEquals( 0, cache.size() );
+	}
+	
+	@Test
+	public void testLoader()
+	{
+		final AtomicInteger loads = new AtomicInteger();
+		ConcurrentLruCache<Integer, String> cache = new ConcurrentLruCache<Integer, String>(100, new Function<Integer, String>() {
+			public String apply(Integer key) {
+				loads.incrementAndGet();
+				return (key < 0 ? null : "v" + key);
+			}
+		});
+		
+		assertEquals( "v1", cache.get(1) );
+		assertEquals( "v1", cache.get(1) );
+		assertNull( cache.get(-1) );
+		assertEquals( 2, loads.get() );
+		assertEquals( 1, cache.size() );
+		assertEquals( 1, cache.getHits() );
+		assertEquals( 2, cache.getMisses() );
+	}
+	
+	@Test
+	public void testLoaderOutsideLock()
+	{
+		final Gate<Object> loading = new Gate<Object>();
+		final Gate<Object> release = new Gate<Object>();
+		final ConcurrentLruCache<Integer, String> cache = new ConcurrentLruCache<Integer, String>(100, 1, new Function<Integer, String>() {
+			public String apply(Integer key) {
+				if (key == 1) {
+					loading.open();
+					release.await();
+				}
+				return "v" + key;
+			}
+		});
+		
+		GroupTask.initialize(1);
+		GroupTask.add(new Runnable() {
+			public void run() {
+				assertEquals( "v1", cache.get(1) );
+			}
+		}, 1);
+		GroupTask.begin();
+		
+		// Every key shares the one stripe, a slow load must not block it.
+		loading.await();
+		assertEquals( "v2", cache.get(2) );
+		assertNull( cache.getIfPresent(1) );
+		
+		release.open();
+		GroupTask.finish();
+		
+		assertEquals( "v1", cache.getIfPresent(1) );
+	}
+	
+	@Test
+	public void testLoadOnce()
+	{
+		final int THREADS = 4;
+		final AtomicInteger loads = new AtomicInteger();
+		final Gate<Object> release = new Gate<Object>();
+		final ConcurrentLruCache<Integer, String> cache = new ConcurrentLruCache<Integer, String>(100, new Function<Integer, String>() {
+			public String apply(Integer key) {
+				loads.incrementAndGet();
+				release.await();
+				return "v" + key;
+			}
+		});
+		
+		GroupTask.initialize(THREADS);
+		GroupTask.add(new Runnable() {
+			public void run() {
+				assertEquals( "v1", cache.get(1) );
+			}
+		}, THREADS);
+		GroupTask.begin();
+		
+		// Every thread misses while the first load is still running.
+		while (cache.getMisses() < THREADS) {
+			Thread.yield();
+		}
+		release.open();
+		GroupTask.finish();
+		
+		assertEquals( 1, loads.get() );
+		assertEquals( 1, cache.size() );
+	}
+	
+	@Test
+	public void testConcurrent()
+	{
+		final int THREADS = 4;
+		final int KEYS = 2000;
+		final AtomicInteger loads = new AtomicInteger();
+		final ConcurrentLruCache<Integer, Integer> cache = new ConcurrentLruCache<Integer, Integer>(500, 8, new Function<Integer, Integer>() {
+			public Integer apply(Integer key) {
+				loads.incrementAndGet();
+				return key * 2;
+			}
+		});
+		
+		Runnable reader = new Runnable() {
+			public void run() {
+				for (int k = 0; k < 5; k++) {
+					for (int i = 0; i < KEYS; i++) {
+						assertEquals( Integer.valueOf(i * 2), cache.get(i) );
+					}
+				}
+			}
+		};
+		
+		GroupTask.initialize(THREADS);
+		GroupTask.add(reader, THREADS);
+		GroupTask.execute();
+		
+		assertTrue( cache.size() <= 504 );
+		assertEquals( KEYS * THREADS * 5, cache.getHits() + cache.getMisses() );
+		assertEquals( loads.get() - cache.size(), cache.getEvictions() );
+	}
+	
+}
@@ -0,0 +1,119 @@
+/* 
+ * NOTICE OF LICENSE
+ * 
+ * This source file is subject to the Open Software License (OSL 3.0) that is 
+ * bundled with this package in the file LICENSE.txt. It is also available 
+ * through the world-wide-web at http://opensource.org/licenses/osl-3.0.php
+ * If you did not receive a copy of the license and are unable to obtain it 
+ * through the world-wide-web, please send an email to pdiffenderfer@gmail.com 
+ * so we can send you a copy immediately. If you use any of this software please
+ * notify me via my website or email, your feedback is much appreciated. 
+ * 
+ * @copyright   Copyright (c) 2011 Magnos Software (http://www.magnos.org)
+ * @license     http://opensource.org/licenses/osl-3.0.php
+ * 				Open Software License (OSL 3.0)
+ */
+
+
+package org.magnos.util;
+
+import static org.junit.Assert.*;
+
+import java.util.Iterator;
+
+import org.junit.Test;
+import org.magnos.test.BaseTest;
+import org.magnos.util.ConcurrentMultiset;
+
+
+public class TestConcurrentMultiset extends BaseTest 
+{
+
+	@Test
+	public void testCounts()
+	{
+		ConcurrentMultiset<String> bag = new ConcurrentMultiset<String>(4);
+		
+		assertEquals( 0, bag.add("a") );
+		assertEquals( 1, bag.add("a", 4) );
+		assertEquals( 0, bag.add("b", 2) );
+		assertEquals( 5, bag.count("a") );
+		assertEquals( 2, bag.count("b") );
+		assertEquals( 0, bag.count("c") );
+		assertEquals( 7, bag.size() );
+		assertEquals( 2, bag.distinct() );
+		
+		assertEquals( 5, bag.remove("a", 3) );
+		assertEquals( 2, bag.count("a") );
+		assertEquals( 2, bag.remove("b", 10) );
+		assertFalse( bag.contains("b") );
+		assertEquals( 2, bag.size() );
+		assertEquals( 1, bag.distinct() );
+		
+		assertEquals( 2, bag.purge("a") );
+		assertEquals( 0, bag.purge("a") );
+		assertTrue( bag.isEmpty() );
+		assertEquals( 0, bag.size() );
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void testNegative()
+	{
+		new ConcurrentMultiset<String>().add("a", -1);
+	}
+	
+	@Test
+	public void testIterator()
+	{
+		ConcurrentMultiset<Integer> bag = new ConcurrentMultiset<Integer>(4);
+		for (int i = 0; i < 10; i++) {
+			bag.add(i, i + 1);
+		}
+		
+		int found = 0;
+		Iterator<Integer> it = bag.iterator();
+		while (it.hasNext()) {
+			if (it.next() == 3) {
+				it.remove();
+			}
+			found++;
+		}
+		
+		assertEquals( 10, found );
+		assertEquals( 9, bag.distinct() );
+		assertEquals( 51, bag.size() );
+		
+		bag.clear();
+		assertTrue( bag.isEmpty() );
+		assertEquals( 0, bag.size() );
+	}
+	
+	@Test
+	public void testConcurrent()
+	{
+		final int THREADS = 4;
+		final int ELEMENTS = 1000;
+		final ConcurrentMultiset<Integer> bag = new ConcurrentMultiset<Integer>(64);
+		
+		Runnable adder = new Runnable() {
+			public void run() {
+				for (int k = 0; k < 10; k++) {
+					for (int i = 0; i < ELEMENTS; i++) {
+						bag.add(i);
+					}
+				}
+			}
+		};
+		
+		GroupTask.initialize(THREADS);
+		GroupTask.add(adder, THREADS);
+		GroupTask.execute();
+		
+		assertEquals( ELEMENTS, bag.distinct() );
+		assertEquals( ELEMENTS * THREADS * 10, bag.size() );
+		for (int i = 0; i < ELEMENTS; i++) {
+			assertEquals( THREADS * 10, bag.count(i) );
+		}
+	}
+	
+}
@@ -18,10 +18,27 @@ package org.magnos.util;
 
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Spliterator;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 
 import org.junit.Test;
 import org.magnos.test.BaseTest;
@@ -181,10 +198,43 @@ public class TestConcurrentSet extends BaseTest
 		assertTrue( set.containsAll(newList(0, 1, 2, 3, 4, 5, 8)) );
 	}
 	
+	@Test
+	public void testAddDuplicate()
+	{
+		ConcurrentSet<Integer> set = new ConcurrentSet<Integer>(4);
+
+		assertFalse( set.isMultiset() );
+		assertTrue( set.add(0) );
+		assertFalse( set.add(0) );
+		assertTrue( set.add(4) );
+		assertFalse( set.add(4) );
+		assertFalse( set.addIfAbsent(0) );
+		assertFalse( set.addAll(newList(0, 4)) );
+		assertEquals( 2, set.size() );
+		
+		assertTrue( set.remove(0) );
+		assertFalse( set.contains(0) );
+		assertTrue( set.add(0) );
+		assertEquals( 2, set.size() );
+	}
+	
+	@Test
+	public void testAddIfAbsentMultiset()
+	{
+		ConcurrentSet<Integer> set = new ConcurrentSet<Integer>(4, true);
+
+		assertTrue( set.isMultiset() );
+		assertTrue( set.add(0) );
+		assertTrue( set.add(0) );
+		assertFalse( set.addIfAbsent(0) );
+		assertTrue( set.addIfAbsent(1) );
+		assertEquals( 3, set.size() );
+	}
+	
 	@Test
 	public void testPurge()
 	{
-		ConcurrentSet<Integer> set = new ConcurrentSet<Integer>();
+		ConcurrentSet<Integer> set = new ConcurrentSet<Integer>(32, true);
 
 		assertTrue( set.add(0) );
 		assertTrue( set.add(0) );
@@ -252,6 +302,512 @@ public class TestConcurrentSet extends BaseTest
 		assertTrue( 0 <= Arrays.binarySearch(data, 8) );
 	}
 	
+	@Test
+	public void testIsEmpty()
+	{
+		ConcurrentSet<Integer> set = new ConcurrentSet<Integer>(4);
+		
+		assertTrue( set.isEmpty() );
+		assertTrue( set.add(1) );
+		assertFalse( set.isEmpty() );
+		assertTrue( set.remove(1) );
+		assertTrue( set.isEmpty() );
+		assertTrue( set.addAll(newList(0, 1, 2, 3, 4, 5, 8)) );
+		assertFalse( set.isEmpty() );
+		assertTrue( set.retainAll(newList(4)) );
+		assertEquals( 1, set.size() );
+		set.clear();
+		assertTrue( set.isEmpty() );
+	}
+	
+	@Test
+	public void testIterator()
+	{
+		ConcurrentSet<Integer> set = new ConcurrentSet<Integer>(4);
+		
+		assertFalse( set.iterator().hasNext() );
+		assertTrue( set.addAll(newList(0, 1, 2, 3, 4, 5, 8)) );
+		
+		List<Integer> found = new ArrayList<Integer>();
+		Iterator<Integer> it = set.iterator();
+		while (it.hasNext()) {
+			found.add(it.next());
+		}
+		Collections.sort(found);
+		
+		assertEquals( newList(0, 1, 2, 3, 4, 5, 8), found );
+	}
+	
+	@Test
+	public void testIteratorRemove()
+	{
+		ConcurrentSet<Integer> set = new ConcurrentSet<Integer>(4);
+		
+		assertTrue( set.addAll(newList(0, 1, 2, 3, 4, 5, 8)) );
+		
+		Iterator<Integer> it = set.iterator();
+		while (it.hasNext()) {
+			if (it.next() % 4 == 0) {
+				it.remove();
+			}
+		}
+		
+		assertEquals( 4, set.size() );
+		assertTrue( set.containsAll(newList(1, 2, 3, 5)) );
+		assertFalse( set.contains(0) );
+		assertFalse( set.contains(4) );
+		assertFalse( set.contains(8) );
+	}
+	
+	@Test(expected = IllegalStateException.class)
+	public void testIteratorRemoveTwice()
+	{
+		ConcurrentSet<Integer> set = new ConcurrentSet<Integer>(4);
+		set.add(1);
+		
+		Iterator<Integer> it = set.iterator();
+		it.next();
+		it.remove();
+		it.remove();
+	}
+	
+	@Test
+	public void testBulkGrouped()
+	{
+		ConcurrentSet<Integer> set = new ConcurrentSet<Integer>(8);
+		List<Integer> batch = new ArrayList<Integer>();
+		for (int i = 0; i < 1000; i++) {
+			batch.add(i);
+			batch.add(i);
+		}
+		batch.add(null);
+		
+		assertTrue( set.addAll(batch) );
+		assertEquals( 1000, set.size() );
+		assertFalse( set.addAll(batch) );
+		assertTrue( set.containsAll(newList(0, 999, 500)) );
+		assertFalse( set.containsAll(batch) );
+		assertFalse( set.containsAll(newList(0, 1000)) );
+		
+		assertTrue( set.removeAll(batch.subList(0, 1000)) );
+		assertEquals( 500, set.size() );
+		assertFalse( set.contains(499) );
+		assertTrue( set.contains(500) );
+		
+		ConcurrentSet<Integer> multi = new ConcurrentSet<Integer>(8, true);
+		assertTrue( multi.addAll(batch) );
+		assertEquals( 2000, multi.size() );
+		assertTrue( multi.removeAll(newList(1, 2)) );
+		assertEquals( 1998, multi.size() );
+		assertTrue( multi.contains(1) );
+	}
+	
+	@Test
+	public void testStampedLocks()
+	{
+		assertEquals( 0, new ConcurrentSet<Integer>(16).getStampedLocks() );
+		assertEquals( 8, new ConcurrentSet<Integer>(16, false, 5).getStampedLocks() );
+		assertEquals( 16, new ConcurrentSet<Integer>(16, false, 64).getStampedLocks() );
+		
+		ConcurrentSet<Integer> set = new ConcurrentSet<Integer>(4, false, 2);
+		
+		assertTrue( set.addAll(newList(0, 1, 2, 3, 4, 5, 8)) );
+		assertFalse( set.add(8) );
+		assertTrue( set.contains(8) );
+		assertFalse( set.contains(7) );
+		assertTrue( set.containsAll(newList(0, 4, 8)) );
+		assertTrue( set.remove(4) );
+		assertFalse( set.contains(4) );
+		assertTrue( set.retainAll(newList(0, 1, 2)) );
+		assertEquals( 3, set.size() );
+		assertEquals( 3, set.toList().size() );
+		set.clear();
+		assertTrue( set.isEmpty() );
+	}
+	
+	@Test
+	public void testStampedConcurrent()
+	{
+		final int THREADS = 4;
+		final int ELEMENTS = 10000;
+		final ConcurrentSet<Integer> set = new ConcurrentSet<Integer>(64, false, 16);
+		final AtomicLong found = new AtomicLong();
+		
+		Runnable writer = new Runnable() {
+			public void run() {
+				for (int i = 0; i < ELEMENTS; i++) {
+					set.add(i);
+				}
+			}
+		};
+		Runnable reader = new Runnable() {
+			public void run() {
+				for (int i = 0; i < ELEMENTS; i++) {
+					while (!set.contains(i)) {
+						Thread.yield();
+					}
+					found.incrementAndGet();
+				}
+			}
+		};
+		
+		GroupTask.initialize(THREADS * 2);
+		GroupTask.add(writer, THREADS);
+		GroupTask.add(reader, THREADS);
+		GroupTask.execute();
+		
+		assertEquals( ELEMENTS, set.size() );
+		assertEquals( ELEMENTS * THREADS, found.get() );
+	}
+	
+	@Test
+	public void testFilter()
+	{
+		ConcurrentSet<Integer> set = new ConcurrentSet<Integer>(16);
+		for (int i = 0; i < 100; i++) {
+			set.add(i);
+		}
+		
+		assertFalse( set.hasFilter() );
+		set.enableFilter(1000);
+		assertTrue( set.hasFilter() );
+		
+		for (int i = 0; i < 100; i++) {
+			assertTrue( set.contains(i) );
+		}
+		assertTrue( set.add(500) );
+		assertTrue( set.contains(500) );
+		assertTrue( set.containsAll(newList(0, 50, 500)) );
+		assertFalse( set.containsAll(newList(0, 501)) );
+		
+		for (int i = 1000; i < 11000; i++) {
+			assertFalse( set.contains(i) );
+		}
+		
+		assertTrue( set.remove(500) );
+		assertFalse( set.contains(500) );
+		set.rebuildFilter();
+		assertTrue( set.contains(99) );
+		assertFalse( set.contains(500) );
+		
+		set.disableFilter();
+		assertFalse( set.hasFilter() );
+		assertTrue( set.contains(0) );
+	}
+	
+	@Test
+	public void testFilterConcurrent()
+	{
+		final int THREADS = 4;
+		final int ELEMENTS = 10000;
+		final ConcurrentSet<Integer> set = new ConcurrentSet<Integer>(64, false, 16);
+		final AtomicLong found = new AtomicLong();
+		set.enableFilter(ELEMENTS);
+		
+		Runnable writer = new Runnable() {
+			public void run() {
+				for (int i = 0; i < ELEMENTS; i++) {
+					set.add(i);
+				}
+			}
+		};
+		Runnable rebuilder = new Runnable() {
+			public void run() {
+				for (int i = 0; i < 20; i++) {
+					set.rebuildFilter();
+				}
+			}
+		};
+		Runnable reader = new Runnable() {
+			public void run() {
+				for (int i = 0; i < ELEMENTS; i++) {
+					while (!set.contains(i)) {
+						Thread.yield();
+					}
+					found.incrementAndGet();
+				}
+			}
+		};
+		
+		GroupTask.initialize(THREADS * 2 + 1);
+		GroupTask.add(writer, THREADS);
+		GroupTask.add(rebuilder, 1);
+		GroupTask.add(reader, THREADS);
+		GroupTask.execute();
+		
+		assertEquals( ELEMENTS, set.size() );
+		assertEquals( ELEMENTS * THREADS, found.get() );
+	}
+	
+	@Test
+	public void testFilterRebuildWhileAdding()
+	{
+		final int THREADS = 4;
+		final int ELEMENTS = 20000;
+		final ConcurrentSet<Integer> set = new ConcurrentSet<Integer>(64, false, 16);
+		final AtomicInteger writing = new AtomicInteger(THREADS);
+		final AtomicInteger offset = new AtomicInteger();
+		set.enableFilter(16);
+		
+		Runnable writer = new Runnable() {
+			public void run() {
+				int start = offset.getAndAdd(ELEMENTS);
+				for (int i = 0; i < ELEMENTS; i++) {
+					set.add(start + i);
+				}
+				writing.decrementAndGet();
+			}
+		};
+		Runnable rebuilder = new Runnable() {
+			public void run() {
+				while (writing.get() > 0) {
+					set.rebuildFilter();
+				}
+			}
+		};
+		
+		GroupTask.initialize(THREADS + 1);
+		GroupTask.add(writer, THREADS);
+		GroupTask.add(rebuilder, 1);
+		GroupTask.execute();
+		
+		// Every element added while the filter was rebuilt is in the filter.
+		for (int i = 0; i < ELEMENTS * THREADS; i++) {
+			assertTrue( set.contains(i) );
+		}
+	}
+	
+	private static final ConcurrentSet.Codec<String> STRINGS = new ConcurrentSet.Codec<String>() {
+		public int sizeOf(String element) {
+			return element.getBytes(StandardCharsets.UTF_8).length;
+		}
+		public void encode(String element, ByteBuffer out) {
+			out.put(element.getBytes(StandardCharsets.UTF_8));
+		}
+		public String decode(ByteBuffer in) {
+			byte[] bytes = new byte[in.remaining()];
+			in.get(bytes);
+			return new String(bytes, StandardCharsets.UTF_8);
+		}
+	};
+	
+	@Test
+	public void testSnapshotStream() throws IOException
+	{
+		ConcurrentSet<String> set = new ConcurrentSet<String>(16);
+		for (int i = 0; i < 5000; i++) {
+			set.add("element" + i);
+		}
+		
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		assertEquals( 5000, set.writeSnapshot(Channels.newChannel(out), STRINGS) );
+		
+		ConcurrentSet<String> copy = new ConcurrentSet<String>(64);
+		assertEquals( 5000, copy.readSnapshot(Channels.newChannel(new ByteArrayInputStream(out.toByteArray())), STRINGS) );
+		assertEquals( 5000, copy.size() );
+		assertTrue( copy.containsAll(set.toList()) );
+		
+		// Elements already in the set aren't added again.
+		assertEquals( 0, copy.readSnapshot(Channels.newChannel(new ByteArrayInputStream(out.toByteArray())), STRINGS) );
+		assertEquals( 5000, copy.size() );
+	}
+	
+	@Test
+	public void testSnapshotFile() throws IOException
+	{
+		ConcurrentSet<String> set = new ConcurrentSet<String>(16, false, 4);
+		for (int i = 0; i < 1000; i++) {
+			set.add("element" + i);
+		}
+		
+		File file = File.createTempFile("snapshot", ".bin");
+		file.deleteOnExit();
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			FileChannel channel = raf.getChannel();
+			assertEquals( 1000, set.writeSnapshot(channel, STRINGS) );
+			assertEquals( 1000, set.writeSnapshot(channel, STRINGS) );
+			
+			channel.position(0);
+			ConcurrentSet<String> copy = new ConcurrentSet<String>(16);
+			assertEquals( 1000, copy.readSnapshot(channel, STRINGS) );
+			assertEquals( 0, copy.readSnapshot(channel, STRINGS) );
+			assertEquals( channel.size(), channel.position() );
+			assertEquals( 1000, copy.size() );
+			assertTrue( copy.contains("element999") );
+		}
+		finally {
+			raf.close();
+		}
+	}
+	
+	@Test
+	public void testSnapshotCorrupt() throws IOException
+	{
+		ConcurrentSet<String> set = new ConcurrentSet<String>(4);
+		for (int i = 0; i < 10; i++) {
+			set.add("element" + i);
+		}
+		
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		set.writeSnapshot(Channels.newChannel(out), STRINGS);
+		byte[] snapshot = out.toByteArray();
+		
+		File file = File.createTempFile("snapshot", ".bin");
+		file.deleteOnExit();
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			FileChannel channel = raf.getChannel();
+			
+			// Every truncation of a snapshot is reported as an IOException.
+			for (int length = 0; length < snapshot.length; length++) {
+				byte[] truncated = Arrays.copyOf(snapshot, length);
+				assertSnapshotInvalid(truncated, channel, STRINGS);
+			}
+			
+			// A chain claiming more elements than it holds is rejected.
+			byte[] corrupt = snapshot.clone();
+			ByteBuffer.wrap(corrupt).putInt(12, Integer.MAX_VALUE);
+			assertSnapshotInvalid(corrupt, channel, STRINGS);
+			
+			// An element its codec can't decode is reported as an IOException.
+			assertSnapshotInvalid(snapshot, channel, new ConcurrentSet.Codec<Long>() {
+				public int sizeOf(Long element) {
+					return 8;
+				}
+				public void encode(Long element, ByteBuffer out) {
+					out.putLong(element);
+				}
+				public Long decode(ByteBuffer in) {
+					in.getLong();
+					return in.getLong();
+				}
+			});
+		}
+		finally {
+			raf.close();
+		}
+	}
+	
+	private <T> void assertSnapshotInvalid(byte[] snapshot, FileChannel file, ConcurrentSet.Codec<T> codec) throws IOException
+	{
+		file.truncate(0);
+		file.write(ByteBuffer.wrap(snapshot), 0);
+		file.position(0);
+		
+		ReadableByteChannel[] channels = {
+			Channels.newChannel(new ByteArrayInputStream(snapshot)), file
+		};
+		for (ReadableByteChannel channel : channels) {
+			try {
+				new ConcurrentSet<T>(16).readSnapshot(channel, codec);
+				fail( "snapshot of " + snapshot.length + " bytes was read" );
+			}
+			catch (IOException e) {
+				// expected
+			}
+		}
+	}
+	
+	@Test(expected = IOException.class)
+	public void testSnapshotInvalid() throws IOException
+	{
+		ConcurrentSet<String> set = new ConcurrentSet<String>(16);
+		set.readSnapshot(Channels.newChannel(new ByteArrayInputStream(new byte[] {1, 2, 3, 4, 5, 6, 7, 8})), STRINGS);
+	}
+	
+	@Test
+	public void testSpliterator()
+	{
+		ConcurrentSet<Integer> set = new ConcurrentSet<Integer>(64);
+		for (int i = 0; i < 1000; i++) {
+			set.add(i);
+		}
+		
+		Spliterator<Integer> a = set.spliterator();
+		Spliterator<Integer> b = a.trySplit();
+		
+		assertNotNull( b );
+		assertTrue( a.hasCharacteristics(Spliterator.DISTINCT) );
+		
+		final AtomicLong sum = new AtomicLong();
+		Consumer<Integer> adder = new Consumer<Integer>() {
+			public void accept(Integer x) {
+				sum.addAndGet(x);
+			}
+		};
+		a.forEachRemaining(adder);
+		while (b.tryAdvance(adder)) {
+			// Keep advancing until the split is exhausted.
+		}
+		
+		assertEquals( 499500L, sum.get() );
+		assertEquals( 1000L, set.stream().count() );
+		
+		sum.set(0);
+		set.parallelStream().forEach(adder);
+		assertEquals( 499500L, sum.get() );
+	}
+	
+	@Test
+	public void testForEach()
+	{
+		ConcurrentSet<Integer> set = new ConcurrentSet<Integer>(64);
+		for (int i = 0; i < 1000; i++) {
+			set.add(i);
+		}
+		
+		final AtomicLong sum = new AtomicLong();
+		Consumer<Integer> adder = new Consumer<Integer>() {
+			public void accept(Integer x) {
+				sum.addAndGet(x);
+			}
+		};
+		
+		set.forEach(adder);
+		assertEquals( 499500L, sum.get() );
+		
+		sum.set(0);
+		set.forEach(1, adder);
+		assertEquals( 499500L, sum.get() );
+		
+		sum.set(0);
+		set.forEach(Long.MAX_VALUE, adder);
+		assertEquals( 499500L, sum.get() );
+	}
+	
+	@Test
+	public void testRemoveIf()
+	{
+		ConcurrentSet<Integer> set = new ConcurrentSet<Integer>(64);
+		for (int i = 0; i < 1000; i++) {
+			set.add(i);
+		}
+		
+		assertTrue( set.removeIf(new Predicate<Integer>() {
+			public boolean test(Integer x) {
+				return x % 2 == 0;
+			}
+		}));
+		assertEquals( 500, set.size() );
+		
+		assertTrue( set.removeIf(1, new Predicate<Integer>() {
+			public boolean test(Integer x) {
+				return x % 5 == 0;
+			}
+		}));
+		assertEquals( 400, set.size() );
+		
+		assertFalse( set.removeIf(1, new Predicate<Integer>() {
+			public boolean test(Integer x) {
+				return x < 0;
+			}
+		}));
+		assertFalse( set.contains(10) );
+		assertFalse( set.contains(15) );
+		assertTrue( set.contains(11) );
+	}
+	
 	private <T> Collection<T> newList(T ... elements) {
 		List<T> list = new ArrayList<T>();
 		for (T el : elements) {
@@ -0,0 +1,136 @@
+/* 
+ * NOTICE OF LICENSE
+ * 
+ * This source file is subject to the Open Software License (OSL 3.0) that is 
+ * bundled with this package in the file LICENSE.txt. It is also available 
+ * through the world-wide-web at http://opensource.org/licenses/osl-3.0.php
+ * If you did not receive a copy of the license and are unable to obtain it 
+ * through the world-wide-web, please send an email to pdiffenderfer@gmail.com 
+ * so we can send you a copy immediately. If you use any of this software please
+ * notify me via my website or email, your feedback is much appreciated. 
+ * 
+ * @copyright   Copyright (c) 2011 Magnos Software (http://www.magnos.org)
+ * @license     http://opensource.org/licenses/osl-3.0.php
+ * 				Open Software License (OSL 3.0)
+ */
+
+
+package org.magnos.util;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.magnos.test.BaseTest;
+import org.magnos.util.ExchangeGate;
+
+
+public class TestExchangeGate extends BaseTest 
+{
+
+	@Test
+	public void testExchange()
+	{
+		final ExchangeGate<String> gate = new ExchangeGate<String>();
+		
+		GroupTask.initialize(1);
+		GroupTask.add(new Runnable() {
+			public void run() {
+				assertEquals( "a", gate.exchange("b") );
+			}
+		});
+		GroupTask.begin();
+		
+		assertEquals( "b", gate.exchange("a") );
+		assertFalse( gate.isWaiting() );
+		
+		GroupTask.finish();
+	}
+	
+	@Test
+	public void testNull()
+	{
+		final ExchangeGate<String> gate = new ExchangeGate<String>();
+		
+		GroupTask.initialize(1);
+		GroupTask.add(new Runnable() {
+			public void run() {
+				assertEquals( "a", gate.exchange(null) );
+			}
+		});
+		GroupTask.begin();
+		
+		assertNull( gate.exchange("a") );
+		
+		GroupTask.finish();
+	}
+	
+	@Test
+	public void testTimeout()
+	{
+		ExchangeGate<String> gate = new ExchangeGate<String>();
+		
+		watch.start("Timeout... ");
+		assertNull( gate.exchange("a", 100) );
+		watch.stop("%.6f seconds.\n");
+		
+		assertTrue( watch.nanos() >= 90000000L );
+		assertFalse( gate.isWaiting() );
+	}
+	
+	@Test
+	public void testInterrupt()
+	{
+		final ExchangeGate<String> gate = new ExchangeGate<String>();
+		final Thread waiter = Thread.currentThread();
+		
+		GroupTask.initialize(1);
+		GroupTask.add(new Runnable() {
+			public void run() {
+				sleep(100);
+				waiter.interrupt();
+			}
+		});
+		GroupTask.begin();
+		
+		assertNull( gate.exchange("a") );
+		assertTrue( Thread.interrupted() );
+		assertFalse( gate.isWaiting() );
+		
+		GroupTask.finish();
+	}
+	
+	@Test
+	public void testDoubleBuffer()
+	{
+		final int SWAPS = 10000;
+		final ExchangeGate<int[]> gate = new ExchangeGate<int[]>();
+		final AtomicInteger consumed = new AtomicInteger();
+		
+		// The consumer always receives the buffer the producer just filled.
+		GroupTask.initialize(1);
+		GroupTask.add(new Runnable() {
+			public void run() {
+				int[] buffer = new int[1];
+				for (int i = 0; i < SWAPS; i++) {
+					buffer = gate.exchange(buffer);
+					assertEquals( i, buffer[0] );
+					consumed.incrementAndGet();
+				}
+			}
+		});
+		GroupTask.begin();
+		
+		int[] buffer = new int[1];
+		for (int i = 0; i < SWAPS; i++) {
+			buffer[0] = i;
+			buffer = gate.exchange(buffer);
+		}
+		
+		GroupTask.finish();
+		
+		assertEquals( SWAPS, consumed.get() );
+	}
+	
+}
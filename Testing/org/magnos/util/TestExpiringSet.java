@@ -0,0 +1,106 @@
+/* 
+ * NOTICE OF LICENSE
+ * 
+ * This source file is subject to the Open Software License (OSL 3.0) that is 
+ * bundled with this package in the file LICENSE.txt. It is also available 
+ * through the world-wide-web at http://opensource.org/licenses/osl-3.0.php
+ * If you did not receive a copy of the license and are unable to obtain it 
+ * through the world-wide-web, please send an email to pdiffenderfer@gmail.com 
+ * so we can send you a copy immediately. If you use any of this software please
+ * notify me via my website or email, your feedback is much appreciated. 
+ * 
+ * @copyright   Copyright (c) 2011 Magnos Software (http://www.magnos.org)
+ * @license     http://opensource.org/licenses/osl-3.0.php
+ * 				Open Software License (OSL 3.0)
+ */
+
+package org.magnos.util;
+
+import static org.junit.Assert.*;
+
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.magnos.test.BaseTest;
+import org.magnos.util.ExpiringSet;
+
+
+public class TestExpiringSet extends BaseTest 
+{
+
+	@Test
+	public void testConstructor()
+	{
+		ExpiringSet<Integer> set = new ExpiringSet<Integer>(5, TimeUnit.SECONDS, 60);
+		
+		assertEquals( 64, set.getCapacity() );
+		assertEquals( 5000, set.getTimeToLive(TimeUnit.MILLISECONDS) );
+	}
+	
+	@Test
+	public void testDeduplicate()
+	{
+		ExpiringSet<Integer> set = new ExpiringSet<Integer>(10, TimeUnit.SECONDS, 4);
+		
+		assertTrue( set.add(1) );
+		assertFalse( set.add(1) );
+		assertTrue( set.add(5) );
+		assertFalse( set.add(null) );
+		assertEquals( 2, set.size() );
+		
+		assertTrue( set.contains(1) );
+		assertTrue( set.remove(1) );
+		assertFalse( set.contains(1) );
+		assertTrue( set.add(1) );
+	}
+	
+	@Test
+	public void testExpire()
+	{
+		ExpiringSet<Integer> set = new ExpiringSet<Integer>(50, TimeUnit.MILLISECONDS, 4);
+		
+		assertTrue( set.add(1) );
+		assertTrue( set.add(2) );
+		assertTrue( set.add(5) );
+		assertEquals( 3, set.size() );
+		
+		sleep(100);
+		
+		assertTrue( set.add(3) );
+		assertTrue( set.contains(3) );
+		assertFalse( set.contains(1) );
+		assertFalse( set.contains(5) );
+		assertFalse( set.remove(2) );
+		
+		Iterator<Integer> it = set.iterator();
+		assertTrue( it.hasNext() );
+		assertEquals( Integer.valueOf(3), it.next() );
+		assertFalse( it.hasNext() );
+		
+		// Expired elements can be added again.
+		assertTrue( set.add(1) );
+		
+		set.sweep();
+		assertEquals( 2, set.size() );
+	}
+	
+	@Test
+	public void testSweepBoundsSize()
+	{
+		ExpiringSet<Integer> set = new ExpiringSet<Integer>(20, TimeUnit.MILLISECONDS, 16);
+		
+		for (int i = 0; i < 1000; i++) {
+			set.add(i);
+		}
+		sleep(50);
+		
+		// Every add sweeps a few chains, enough adds sweep the whole table.
+		for (int i = 1000; i < 1016; i++) {
+			set.add(i);
+		}
+		
+		assertEquals( 16, set.size() );
+	}
+	
+}
@@ -0,0 +1,319 @@
+/* 
+ * NOTICE OF LICENSE
+ * 
+ * This source file is subject to the Open Software License (OSL 3.0) that is 
+ * bundled with this package in the file LICENSE.txt. It is also available 
+ * through the world-wide-web at http://opensource.org/licenses/osl-3.0.php
+ * If you did not receive a copy of the license and are unable to obtain it 
+ * through the world-wide-web, please send an email to pdiffenderfer@gmail.com 
+ * so we can send you a copy immediately. If you use any of this software please
+ * notify me via my website or email, your feedback is much appreciated. 
+ * 
+ * @copyright   Copyright (c) 2011 Magnos Software (http://www.magnos.org)
+ * @license     http://opensource.org/licenses/osl-3.0.php
+ * 				Open Software License (OSL 3.0)
+ */
+
+
+package org.magnos.util;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+import org.junit.Test;
+import org.magnos.test.BaseTest;
+import org.magnos.util.Gate;
+
+
+public class TestGate extends BaseTest 
+{
+
+	@Test
+	public void testOpen()
+	{
+		final int THREADS = 16;
+		final Gate<String> gate = new Gate<String>("item");
+		final AtomicInteger passed = new AtomicInteger();
+		
+		GroupTask.initialize(THREADS);
+		GroupTask.add(new Runnable() {
+			public void run() {
+				assertEquals( "item", gate.acquire() );
+				passed.incrementAndGet();
+			}
+		}, THREADS);
+		GroupTask.begin();
+		
+		sleep(100);
+		assertEquals( 0, passed.get() );
+		gate.open();
+		
+		GroupTask.finish();
+		assertEquals( THREADS, passed.get() );
+		assertTrue( gate.await() );
+	}
+	
+	@Test
+	public void testTimeout()
+	{
+		Gate<String> gate = new Gate<String>("item");
+		
+		watch.start();
+		assertNull( gate.acquire(100) );
+		watch.stop();
+		assertTrue( watch.millis() >= 100 );
+		assertTrue( gate.isClosed() );
+	}
+	
+	@Test
+	public void testWakeup()
+	{
+		final Gate<String> gate = new Gate<String>();
+		
+		GroupTask.initialize(4);
+		GroupTask.add(new Runnable() {
+			public void run() {
+				assertFalse( gate.await() );
+			}
+		}, 4);
+		GroupTask.begin();
+		
+		sleep(100);
+		gate.wakeup();
+		
+		GroupTask.finish();
+		assertTrue( gate.isClosed() );
+	}
+	
+	@Test
+	public void testGenerations()
+	{
+		Gate<String> gate = new Gate<String>("a");
+		
+		assertEquals( 0, gate.generation() );
+		assertTrue( gate.open("b") );
+		assertFalse( gate.open("c") );
+		assertEquals( "b", gate.acquire() );
+		gate.close();
+		gate.close();
+		assertEquals( 1, gate.generation() );
+		assertEquals( "b", gate.get() );
+		assertTrue( gate.await(0, 10) );
+		assertFalse( gate.await(1, 10) );
+		
+		gate.open();
+		assertEquals( "b", gate.get() );
+		gate.close();
+		assertEquals( 2, gate.generation() );
+	}
+	
+	@Test
+	public void testOpenClose()
+	{
+		final int THREADS = 8;
+		final int CYCLES = 1000;
+		final Gate<Integer> gate = new Gate<Integer>();
+		final AtomicInteger released = new AtomicInteger();
+		
+		// Every waiter must be released by the generation it waited on even 
+		// though the gate is closed again immediately.
+		GroupTask.initialize(THREADS);
+		GroupTask.add(new Runnable() {
+			public void run() {
+				for (int i = 0; i < CYCLES; i++) {
+					long generation = gate.generation();
+					assertTrue( gate.await(generation, 0) );
+					released.incrementAndGet();
+				}
+			}
+		}, THREADS);
+		GroupTask.begin();
+		
+		while (released.get() < THREADS * CYCLES) {
+			gate.open(released.get());
+			gate.close();
+			Thread.yield();
+		}
+		
+		GroupTask.finish();
+	}
+	
+	@Test
+	public void testAsync() throws Exception
+	{
+		Gate<String> gate = new Gate<String>();
+		final AtomicReference<Thread> completer = new AtomicReference<Thread>();
+		
+		CompletableFuture<String> item = gate.acquireAsync();
+		CompletableFuture<Boolean> flag = gate.awaitAsync();
+		item.thenAccept(new Consumer<String>() {
+			public void accept(String x) {
+				completer.set(Thread.currentThread());
+			}
+		});
+		
+		assertFalse( item.isDone() );
+		assertFalse( flag.isDone() );
+		gate.open("item");
+		
+		assertEquals( "item", item.getNow(null) );
+		assertTrue( flag.getNow(false) );
+		assertSame( Thread.currentThread(), completer.get() );
+		
+		// An open gate completes immediately.
+		assertEquals( "item", gate.acquireAsync().getNow(null) );
+	}
+	
+	@Test
+	public void testAsyncExecutor() throws Exception
+	{
+		Gate<String> gate = new Gate<String>();
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			final AtomicReference<Thread> completer = new AtomicReference<Thread>();
+			CompletableFuture<String> item = gate.acquireAsync(0, executor);
+			CompletableFuture<Void> after = item.thenAccept(new Consumer<String>() {
+				public void accept(String x) {
+					completer.set(Thread.currentThread());
+				}
+			});
+			
+			gate.open("item");
+			
+			// Waiting on the item could run the dependent on this thread.
+			after.get(1, TimeUnit.SECONDS);
+			assertEquals( "item", item.getNow(null) );
+			assertNotSame( Thread.currentThread(), completer.get() );
+		}
+		finally {
+			executor.shutdown();
+		}
+	}
+	
+	@Test
+	public void testAsyncTimeout() throws Exception
+	{
+		Gate<String> gate = new Gate<String>();
+		
+		CompletableFuture<Boolean> flag = gate.awaitAsync(50, null);
+		CompletableFuture<String> item = gate.acquireAsync(5000, null);
+		
+		assertFalse( flag.get(1, TimeUnit.SECONDS) );
+		assertFalse( item.isDone() );
+		
+		gate.wakeup();
+		assertNull( item.getNow("none") );
+	}
+	
+	@Test
+	public void testAsyncMany()
+	{
+		final int WAITERS = 100000;
+		Gate<Integer> gate = new Gate<Integer>();
+		final AtomicInteger completed = new AtomicInteger();
+		Consumer<Integer> counter = new Consumer<Integer>() {
+			public void accept(Integer x) {
+				completed.incrementAndGet();
+			}
+		};
+		
+		for (int i = 0; i < WAITERS; i++) {
+			gate.acquireAsync().thenAccept(counter);
+		}
+		gate.open(1);
+		
+		assertEquals( WAITERS, completed.get() );
+	}
+	
+	@Test
+	public void testAsyncCancel() throws Exception
+	{
+		final int FUTURES = 10000;
+		Gate<String> gate = new Gate<String>();
+		
+		CompletableFuture<String> kept = gate.acquireAsync();
+		
+		for (int i = 0; i < FUTURES; i++) {
+			assertTrue( gate.acquireAsync().cancel(false) );
+			assertTrue( gate.awaitAsync(60000, null).cancel(false) );
+		}
+		
+		// Cancelled waiters leave the stack, only the kept waiter remains.
+		assertEquals( 1, gate.getWaiting() );
+		
+		gate.open("a");
+		
+		assertEquals( "a", kept.get(1, TimeUnit.SECONDS) );
+		assertEquals( 0, gate.getWaiting() );
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void testFutureGeneration()
+	{
+		new Gate<String>().await(1, 0);
+	}
+	
+	@Test
+	public void testInterrupt()
+	{
+		final Gate<String> gate = new Gate<String>();
+		final Thread waiter = Thread.currentThread();
+		
+		GroupTask.initialize(1);
+		GroupTask.add(new Runnable() {
+			public void run() {
+				sleep(100);
+				waiter.interrupt();
+			}
+		});
+		GroupTask.begin();
+		
+		assertFalse( gate.await() );
+		assertTrue( Thread.interrupted() );
+		
+		GroupTask.finish();
+	}
+	
+	@Test
+	public void testAdaptive()
+	{
+		final Gate<String> gate = new Gate<String>("a", true);
+		
+		assertTrue( gate.isAdaptive() );
+		assertFalse( new Gate<String>().isAdaptive() );
+		
+		// A waiter which spins out must still park and time out.
+		assertFalse( gate.await(50) );
+		
+		GroupTask.initialize(1);
+		GroupTask.add(new Runnable() {
+			public void run() {
+				sleep(100);
+				gate.open("b");
+			}
+		});
+		GroupTask.begin();
+		
+		// A gate which opens long after waiting began stops spinning.
+		assertTrue( gate.await() );
+		assertEquals( "b", gate.get() );
+		assertTrue( gate.getOpenLatency(TimeUnit.MICROSECONDS) > 1000 );
+		
+		GroupTask.finish();
+		
+		// Waits on a gate which is already open bring the average back down
+		// so waiters spin again.
+		for (int i = 0; i < 200; i++) {
+			assertTrue( gate.await() );
+		}
+		assertTrue( gate.getOpenLatency(TimeUnit.MICROSECONDS) < 20 );
+	}
+	
+}
@@ -0,0 +1,105 @@
+/* 
+ * NOTICE OF LICENSE
+ * 
+ * This source file is subject to the Open Software License (OSL 3.0) that is 
+ * bundled with this package in the file LICENSE.txt. It is also available 
+ * through the world-wide-web at http://opensource.org/licenses/osl-3.0.php
+ * If you did not receive a copy of the license and are unable to obtain it 
+ * through the world-wide-web, please send an email to pdiffenderfer@gmail.com 
+ * so we can send you a copy immediately. If you use any of this software please
+ * notify me via my website or email, your feedback is much appreciated. 
+ * 
+ * @copyright   Copyright (c) 2011 Magnos Software (http://www.magnos.org)
+ * @license     http://opensource.org/licenses/osl-3.0.php
+ * 				Open Software License (OSL 3.0)
+ */
+
+
+package org.magnos.util;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+import org.magnos.test.BaseTest;
+import org.magnos.util.Gate;
+import org.magnos.util.Gates;
+
+
+public class TestGates extends BaseTest 
+{
+
+	@Test
+	public void testAny()
+	{
+		final Gate<String> a = new Gate<String>();
+		final Gate<String> b = new Gate<String>();
+		final Gate<String> c = new Gate<String>();
+		
+		GroupTask.initialize(1);
+		GroupTask.add(new Runnable() {
+			public void run() {
+				sleep(100);
+				b.open();
+			}
+		});
+		GroupTask.begin();
+		
+		assertEquals( 1, Gates.awaitAny(0, a, b, c) );
+		GroupTask.finish();
+		
+		// An open gate is found without waiting.
+		assertEquals( 1, Gates.awaitAny(0, a, b, c) );
+		assertEquals( -1, Gates.awaitAny(50, a, c) );
+	}
+	
+	@Test
+	public void testAll()
+	{
+		final Gate<String> a = new Gate<String>();
+		final Gate<String> b = new Gate<String>();
+		
+		GroupTask.initialize(1);
+		GroupTask.add(new Runnable() {
+			public void run() {
+				sleep(50);
+				a.open();
+				sleep(50);
+				b.open();
+			}
+		});
+		GroupTask.begin();
+		
+		watch.start();
+		assertTrue( Gates.awaitAll(0, a, b) );
+		watch.stop();
+		assertTrue( watch.millis() >= 90 );
+		GroupTask.finish();
+		
+		a.close();
+		assertFalse( Gates.awaitAll(50, a, b) );
+	}
+	
+	@Test
+	public void testWakeup()
+	{
+		final Gate<String> a = new Gate<String>();
+		final Gate<String> b = new Gate<String>();
+		
+		GroupTask.initialize(1);
+		GroupTask.add(new Runnable() {
+			public void run() {
+				sleep(100);
+				a.wakeup();
+			}
+		});
+		GroupTask.begin();
+		
+		assertFalse( Gates.awaitAll(0, a, b) );
+		GroupTask.finish();
+		
+		// The link left on the other gate was removed.
+		b.open();
+		assertTrue( b.isOpen() );
+	}
+	
+}
@@ -18,6 +18,7 @@ package org.magnos.util;
 
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static org.junit.Assert.*;
 
@@ -158,4 +159,146 @@ public class TestLockRef extends BaseTest
 		assertFalse( ref.hasNewValue() );
 	}
 	
+	@Test
+	public void testReentrantLock()
+	{
+		final LockRef<String> ref = new LockRef<String>("Hello World");
+		final AtomicReference<String> read = new AtomicReference<String>();
+		
+		ref.lock();
+		ref.lock();
+		
+		assertEquals( "Hello World", ref.get() );
+		
+		GroupTask.initialize(1);
+		GroupTask.add(new Runnable() {
+			public void run() {
+				read.set(ref.get());
+			}
+		});
+		GroupTask.begin();
+		
+		// The reader waits until the outermost lock is released.
+		ref.unlock("A new value!");
+		sleep(100);
+		assertNull( read.get() );
+		
+		ref.unlock();
+		
+		GroupTask.finish();
+		
+		assertEquals( "A new value!", read.get() );
+	}
+	
+	@Test
+	public void testWriterPreferred() throws InterruptedException
+	{
+		final LockRef<String> ref = new LockRef<String>("Hello World");
+		final AtomicReference<String> read = new AtomicReference<String>();
+		
+		ref.lock();
+		
+		GroupTask.initialize(1);
+		GroupTask.add(new Runnable() {
+			public void run() {
+				ref.set("Second write");
+			}
+		});
+		GroupTask.begin();
+		sleep(100);
+		
+		Thread reader = new Thread(new Runnable() {
+			public void run() {
+				read.set(ref.get());
+			}
+		});
+		reader.start();
+		sleep(100);
+		
+		// The reader arrived after the second writer so it reads its value.
+		ref.unlock("First write");
+		reader.join();
+		
+		GroupTask.finish();
+		
+		assertEquals( "Second write", read.get() );
+	}
+	
+	@Test
+	public void testCursor()
+	{
+		LockRef<String> ref = new LockRef<String>("a");
+		LockRef.Cursor first = ref.cursor();
+		LockRef.Cursor second = ref.cursor();
+		
+		assertEquals( 0, ref.getVersion() );
+		assertFalse( ref.changedSince(first) );
+		
+		ref.set("b");
+		
+		// Every reader sees the change, not only the first to check.
+		assertEquals( 1, ref.getVersion() );
+		assertTrue( ref.changedSince(first) );
+		assertFalse( ref.changedSince(first) );
+		assertTrue( ref.changedSince(second) );
+		assertEquals( 1, second.getVersion() );
+		
+		ref.set("b");
+		
+		assertFalse( ref.changedSince(first) );
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void testForeignCursor()
+	{
+		new LockRef<String>().changedSince(new LockRef<String>().cursor());
+	}
+	
+	@Test
+	public void testAwaitChange()
+	{
+		final int READERS = 4;
+		final int CHANGES = 100;
+		final LockRef<Integer> ref = new LockRef<Integer>(0);
+		final AtomicInteger finished = new AtomicInteger();
+		
+		GroupTask.initialize(READERS);
+		GroupTask.add(new Runnable() {
+			public void run() {
+				LockRef.Cursor cursor = ref.cursor();
+				int last = ref.get();
+				while (last < CHANGES) {
+					assertTrue( ref.awaitChange(cursor, 5000) );
+					int current = ref.get();
+					assertTrue( current > last );
+					last = current;
+				}
+				finished.incrementAndGet();
+			}
+		}, READERS);
+		GroupTask.begin();
+		
+		for (int i = 1; i <= CHANGES; i++) {
+			sleep(1);
+			ref.set(i);
+		}
+		
+		GroupTask.finish();
+		
+		assertEquals( READERS, finished.get() );
+	}
+	
+	@Test
+	public void testAwaitChangeTimeout()
+	{
+		LockRef<String> ref = new LockRef<String>("a");
+		LockRef.Cursor cursor = ref.cursor();
+		
+		assertFalse( ref.awaitChange(cursor, 50) );
+		
+		ref.set("b");
+		
+		assertTrue( ref.awaitChange(cursor, 50) );
+	}
+	
 }
@@ -102,5 +102,100 @@ public class TestPerformance extends BaseTest
 		
 		System.out.format("synchronized overhead: %.3f ns\n", overhead);
 	}
+
+	@Test
+	public void testGateHandoff() throws InterruptedException
+	{
+		final int ITERATIONS = 100000;
+		
+		handoff(false, ITERATIONS);
+		handoff(true, ITERATIONS);
+		
+		watch.start("Parking handoff... ");
+		handoff(false, ITERATIONS);
+		watch.stop("%.6f seconds.\n");
+		
+		long x = watch.nanos();
+		
+		watch.start("Adaptive handoff... ");
+		handoff(true, ITERATIONS);
+		watch.stop("%.6f seconds.\n");
+		
+		long y = watch.nanos();
+		
+		System.out.format("parking handoff: %.3f ns\n", x / (double)ITERATIONS);
+		System.out.format("adaptive handoff: %.3f ns\n", y / (double)ITERATIONS);
+	}
+	
+	private void handoff(boolean adaptive, final int iterations) throws InterruptedException
+	{
+		final Gate<Object> ping = new Gate<Object>(null, adaptive);
+		final Gate<Object> pong = new Gate<Object>(null, adaptive);
+		
+		Thread ponger = new Thread() {
+			public void run() {
+				for (int i = 0; i < iterations; i++) {
+					ping.await();
+					ping.close();
+					pong.open();
+				}
+			}
+		};
+		ponger.start();
+		
+		for (int i = 0; i < iterations; i++) {
+			ping.open();
+			pong.await();
+			pong.close();
+		}
+		
+		ponger.join();
+	}
+
+	@Test
+	public void testExchangeHandoff() throws InterruptedException
+	{
+		final int ITERATIONS = 100000;
+		
+		handoff(true, ITERATIONS);
+		exchange(ITERATIONS);
+		
+		watch.start("Gate pair handoff... ");
+		handoff(true, ITERATIONS);
+		watch.stop("%.6f seconds.\n");
+		
+		long x = watch.nanos();
+		
+		watch.start("Exchange handoff... ");
+		exchange(ITERATIONS);
+		watch.stop("%.6f seconds.\n");
+		
+		long y = watch.nanos();
+		
+		System.out.format("gate pair handoff: %.3f ns\n", x / (double)ITERATIONS);
+		System.out.format("exchange handoff: %.3f ns\n", y / (double)ITERATIONS);
+	}
+	
+	private void exchange(final int iterations) throws InterruptedException
+	{
+		final ExchangeGate<Object> gate = new ExchangeGate<Object>();
+		
+		Thread other = new Thread() {
+			public void run() {
+				Object buffer = new Object();
+				for (int i = 0; i < iterations; i++) {
+					buffer = gate.exchange(buffer);
+				}
+			}
+		};
+		other.start();
+		
+		Object buffer = new Object();
+		for (int i = 0; i < iterations; i++) {
+			buffer = gate.exchange(buffer);
+		}
+		
+		other.join();
+	}
 	
 }
@@ -0,0 +1,175 @@
+/* 
+ * NOTICE OF LICENSE
+ * 
+ * This source file is subject to the Open Software License (OSL 3.0) that is 
+ * bundled with this package in the file LICENSE.txt. It is also available 
+ * through the world-wide-web at http://opensource.org/licenses/osl-3.0.php
+ * If you did not receive a copy of the license and are unable to obtain it 
+ * through the world-wide-web, please send an email to pdiffenderfer@gmail.com 
+ * so we can send you a copy immediately. If you use any of this software please
+ * notify me via my website or email, your feedback is much appreciated. 
+ * 
+ * @copyright   Copyright (c) 2011 Magnos Software (http://www.magnos.org)
+ * @license     http://opensource.org/licenses/osl-3.0.php
+ * 				Open Software License (OSL 3.0)
+ */
+
+
+package org.magnos.util;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.magnos.test.BaseTest;
+import org.magnos.util.PhaseGate;
+
+
+public class TestPhaseGate extends BaseTest 
+{
+
+	@Test
+	public void testRegister()
+	{
+		PhaseGate gate = new PhaseGate();
+		
+		assertEquals( 0, gate.getPhase() );
+		assertEquals( 0, gate.getParties() );
+		assertEquals( 0, gate.register(2) );
+		assertEquals( 2, gate.getParties() );
+		assertEquals( 2, gate.getUnarrived() );
+		
+		assertEquals( 0, gate.arrive() );
+		assertEquals( 1, gate.getArrived() );
+		assertEquals( 0, gate.arrive() );
+		
+		assertEquals( 1, gate.getPhase() );
+		assertEquals( 2, gate.getUnarrived() );
+		assertEquals( 1, gate.awaitAdvance(0) );
+	}
+	
+	@Test
+	public void testDeregister()
+	{
+		PhaseGate gate = new PhaseGate(2);
+		
+		assertEquals( 0, gate.arriveAndDeregister() );
+		assertEquals( 1, gate.getParties() );
+		assertEquals( 0, gate.getPhase() );
+		assertEquals( 0, gate.arrive() );
+		assertEquals( 1, gate.getPhase() );
+		
+		assertEquals( 1, gate.arriveAndDeregister() );
+		assertEquals( 0, gate.getParties() );
+		assertEquals( 2, gate.getPhase() );
+	}
+	
+	@Test(expected = IllegalStateException.class)
+	public void testNoParties()
+	{
+		new PhaseGate().arrive();
+	}
+	
+	@Test
+	public void testTimeout()
+	{
+		PhaseGate gate = new PhaseGate(2);
+		
+		assertEquals( -1, gate.arriveAndAwait(50) );
+		assertEquals( 0, gate.getPhase() );
+		assertEquals( 1, gate.arriveAndAwait(50) );
+	}
+	
+	@Test
+	public void testPhases()
+	{
+		final int THREADS = 8;
+		final int PHASES = 200;
+		final PhaseGate gate = new PhaseGate(THREADS);
+		final AtomicInteger arrived = new AtomicInteger();
+		
+		// No thread may start a phase until every thread finished the last.
+		GroupTask.initialize(THREADS);
+		GroupTask.add(new Runnable() {
+			public void run() {
+				for (int i = 0; i < PHASES; i++) {
+					arrived.incrementAndGet();
+					assertEquals( i + 1, gate.arriveAndAwait() );
+					assertTrue( arrived.get() >= (i + 1) * THREADS );
+				}
+			}
+		}, THREADS);
+		GroupTask.execute();
+		
+		assertEquals( PHASES, gate.getPhase() );
+		assertEquals( THREADS * PHASES, arrived.get() );
+	}
+	
+	@Test
+	public void testTree()
+	{
+		final int CHILDREN = 4;
+		final int THREADS = 4;
+		final int PHASES = 100;
+		final PhaseGate root = new PhaseGate();
+		final AtomicInteger arrived = new AtomicInteger();
+		
+		GroupTask.initialize(CHILDREN * THREADS);
+		for (int i = 0; i < CHILDREN; i++) {
+			final PhaseGate child = new PhaseGate(root, THREADS);
+			
+			assertSame( root, child.getParent() );
+			assertSame( root, child.getRoot() );
+			
+			GroupTask.add(new Runnable() {
+				public void run() {
+					for (int p = 0; p < PHASES; p++) {
+						arrived.incrementAndGet();
+						assertEquals( p + 1, child.arriveAndAwait() );
+						assertTrue( arrived.get() >= (p + 1) * CHILDREN * THREADS );
+					}
+					child.arriveAndDeregister();
+				}
+			}, THREADS);
+		}
+		
+		assertEquals( CHILDREN, root.getParties() );
+		
+		GroupTask.execute();
+		
+		// Every child deregistered from the root once its parties left.
+		assertEquals( 0, root.getParties() );
+		assertEquals( PHASES + 1, root.getPhase() );
+	}
+	
+	@Test
+	public void testChildRegister()
+	{
+		PhaseGate root = new PhaseGate(1);
+		PhaseGate child = new PhaseGate(root);
+		
+		assertEquals( 1, root.getParties() );
+		assertEquals( 0, child.register() );
+		assertEquals( 2, root.getParties() );
+		
+		assertEquals( 0, child.arrive() );
+		assertEquals( 0, root.getPhase() );
+		assertEquals( 0, child.getUnarrived() );
+		
+		assertEquals( 0, root.arrive() );
+		assertEquals( 1, child.getPhase() );
+		assertEquals( 1, child.getUnarrived() );
+	}
+	
+	@Test(expected = IllegalStateException.class)
+	public void testChildArriveTwice()
+	{
+		PhaseGate root = new PhaseGate(1);
+		PhaseGate child = new PhaseGate(root, 1);
+		
+		child.arrive();
+		child.arrive();
+	}
+	
+}
@@ -0,0 +1,104 @@
+/* 
+ * NOTICE OF LICENSE
+ * 
+ * This source file is subject to the Open Software License (OSL 3.0) that is 
+ * bundled with this package in the file LICENSE.txt. It is also available 
+ * through the world-wide-web at http://opensource.org/licenses/osl-3.0.php
+ * If you did not receive a copy of the license and are unable to obtain it 
+ * through the world-wide-web, please send an email to pdiffenderfer@gmail.com 
+ * so we can send you a copy immediately. If you use any of this software please
+ * notify me via my website or email, your feedback is much appreciated. 
+ * 
+ * @copyright   Copyright (c) 2011 Magnos Software (http://www.magnos.org)
+ * @license     http://opensource.org/licenses/osl-3.0.php
+ * 				Open Software License (OSL 3.0)
+ */
+
+
+package org.magnos.util;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.magnos.test.BaseTest;
+import org.magnos.util.ThrottleGate;
+
+
+public class TestThrottleGate extends BaseTest 
+{
+
+	@Test
+	public void testRate()
+	{
+		ThrottleGate gate = new ThrottleGate(10, 100, TimeUnit.MILLISECONDS, true);
+		
+		assertTrue( gate.isRateLimited() );
+		assertEquals( 10, gate.getAvailable() );
+		for (int i = 0; i < 10; i++) {
+			assertTrue( gate.tryAcquire() );
+		}
+		assertFalse( gate.tryAcquire() );
+		
+		watch.start();
+		for (int i = 0; i < 10; i++) {
+			assertTrue( gate.acquire() );
+		}
+		watch.stop();
+		
+		assertTrue( watch.millis() >= 80 );
+		assertEquals( 20, gate.getAcquired() );
+		assertEquals( 10, gate.getThrottled() );
+		assertTrue( gate.getThrottledTime(TimeUnit.MILLISECONDS) >= 80 );
+	}
+	
+	@Test
+	public void testRateTimeout()
+	{
+		ThrottleGate gate = new ThrottleGate(1, 1, TimeUnit.SECONDS, false);
+		
+		assertTrue( gate.acquire(10) );
+		assertFalse( gate.acquire(50) );
+		assertEquals( 1, gate.getRejected() );
+	}
+	
+	@Test
+	public void testTurnstile()
+	{
+		final int THREADS = 8;
+		final ThrottleGate gate = new ThrottleGate(2, true);
+		final AtomicInteger inside = new AtomicInteger();
+		final AtomicInteger most = new AtomicInteger();
+		
+		assertFalse( gate.isRateLimited() );
+		
+		GroupTask.initialize(THREADS);
+		GroupTask.add(new Runnable() {
+			public void run() {
+				for (int i = 0; i < 20; i++) {
+					assertTrue( gate.acquire() );
+					int now = inside.incrementAndGet();
+					int max;
+					while ((max = most.get()) < now && !most.compareAndSet(max, now));
+					sleep(1);
+					inside.decrementAndGet();
+					gate.release();
+				}
+			}
+		}, THREADS);
+		GroupTask.execute();
+		
+		assertEquals( 2, most.get() );
+		assertEquals( 2, gate.getAvailable() );
+		assertEquals( THREADS * 20, gate.getAcquired() );
+	}
+	
+	@Test(expected = IllegalStateException.class)
+	public void testRateRelease()
+	{
+		new ThrottleGate(1, 1, TimeUnit.SECONDS, true).release();
+	}
+	
+}